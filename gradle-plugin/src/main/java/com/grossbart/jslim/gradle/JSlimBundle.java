@@ -0,0 +1,66 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim.gradle;
+
+import javax.inject.Inject;
+
+import org.gradle.api.Named;
+import org.gradle.api.file.ConfigurableFileCollection;
+
+/**
+ * A JSlimBundle is one page or entry point in the <code>jslim</code> block.  The bundle
+ * is the main files for the page and the plugin slims the libraries for it.
+ */
+public abstract class JSlimBundle implements Named
+{
+    private final String m_name;
+    
+    /**
+     * Create a new JSlimBundle.
+     * 
+     * @param name   the name of the bundle which is also the name of the output file
+     */
+    @Inject
+    public JSlimBundle(String name)
+    {
+        m_name = name;
+    }
+    
+    @Override
+    public String getName()
+    {
+        return m_name;
+    }
+    
+    /**
+     * Get the main files for this bundle.
+     * 
+     * @return the main files
+     */
+    public abstract ConfigurableFileCollection getJs();
+    
+    /**
+     * Add main files to this bundle.
+     * 
+     * @param files  the files to add
+     */
+    public void js(Object... files)
+    {
+        getJs().from(files);
+    }
+}
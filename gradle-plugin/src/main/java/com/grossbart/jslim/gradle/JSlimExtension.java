@@ -0,0 +1,105 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim.gradle;
+
+import javax.inject.Inject;
+
+import org.gradle.api.NamedDomainObjectContainer;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+
+/**
+ * The JSlimExtension is the <code>jslim</code> block in a build script.  It holds the
+ * settings all of the bundles share and the list of bundles.
+ */
+public abstract class JSlimExtension
+{
+    private final NamedDomainObjectContainer<JSlimBundle> m_bundles;
+    
+    /**
+     * Create a new JSlimExtension.
+     * 
+     * @param objects the factory for the bundles
+     */
+    @Inject
+    public JSlimExtension(ObjectFactory objects)
+    {
+        m_bundles = objects.domainObjectContainer(JSlimBundle.class);
+        
+        getCompilationLevel().convention("SIMPLE_OPTIMIZATIONS");
+        getCharset().convention("UTF-8");
+        getGzip().convention(true);
+    }
+    
+    /**
+     * Get the library files for all the bundles in the order they are added to each bundle.
+     * 
+     * @return the library files
+     */
+    public abstract ConfigurableFileCollection getLibraries();
+    
+    /**
+     * Get the externs files for all the bundles.  Each line of an externs file is the name
+     * of a function which is never removed.
+     * 
+     * @return the externs files
+     */
+    public abstract ConfigurableFileCollection getExterns();
+    
+    /**
+     * Get the Closure Compiler level for the bundles.  This is NONE, WHITESPACE_ONLY,
+     * SIMPLE_OPTIMIZATIONS, or ADVANCED_OPTIMIZATIONS and the default is
+     * SIMPLE_OPTIMIZATIONS.
+     * 
+     * @return the compilation level
+     */
+    public abstract Property<String> getCompilationLevel();
+    
+    /**
+     * Get the charset for reading and writing the files.  The default is UTF-8.
+     * 
+     * @return the charset
+     */
+    public abstract Property<String> getCharset();
+    
+    /**
+     * Get whether a GZIPed copy of each bundle is written next to it.  The default is true.
+     * 
+     * @return true to write the GZIPed copies and false otherwise
+     */
+    public abstract Property<Boolean> getGzip();
+    
+    /**
+     * Get the directory the bundles are written to.  The default is build/jslim.
+     * 
+     * @return the output directory
+     */
+    public abstract DirectoryProperty getOutputDir();
+    
+    /**
+     * Get the bundles.
+     * 
+     * @return the bundles
+     */
+    public NamedDomainObjectContainer<JSlimBundle> getBundles()
+    {
+        return m_bundles;
+    }
+}
@@ -0,0 +1,126 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim.gradle;
+
+import org.gradle.api.Action;
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.tasks.TaskProvider;
+
+/**
+ * <p>
+ * The JSlim Gradle plugin slims JavaScript bundles as part of a Gradle build.  Apply it
+ * with the id <code>com.grossbart.jslim</code> and list the libraries and bundles in the
+ * <code>jslim</code> block:
+ * </p>
+ *
+ * <pre>
+ * jslim {
+ *     libraries.from 'libs/jquery-1.6.4.js', 'libs/underscore.js'
+ *     bundles {
+ *         home {
+ *             js 'src/home.js'
+ *         }
+ *         search {
+ *             js 'src/search.js', 'src/filters.js'
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>
+ * Each bundle gets its own {@link JSlimTask} named after the bundle, like
+ * <code>slimHome</code>, and the <code>slim</code> task runs all of them.  Bundles which
+ * haven't changed are up to date and can come from the build cache.  The bundle tasks run
+ * at the same time through the worker API and share the analyzed libraries.
+ * </p>
+ */
+public class JSlimPlugin implements Plugin<Project>
+{
+    @Override
+    public void apply(final Project project)
+    {
+        final JSlimExtension extension = project.getExtensions().create("jslim", JSlimExtension.class);
+        extension.getOutputDir().convention(project.getLayout().getBuildDirectory().dir("jslim"));
+        
+        /*
+         Every slim task uses the settings from the extension unless the
+         task sets its own.
+         */
+        project.getTasks().withType(JSlimTask.class).configureEach(new Action<JSlimTask>() {
+            @Override
+            public void execute(JSlimTask task)
+            {
+                task.setGroup("build");
+                task.getLibraries().from(extension.getLibraries());
+                task.getExterns().from(extension.getExterns());
+                task.getCompilationLevel().convention(extension.getCompilationLevel());
+                task.getCharset().convention(extension.getCharset());
+                task.getGzip().convention(extension.getGzip());
+            }
+        });
+        
+        final TaskProvider<Task> slimAll = project.getTasks().register("slim", new Action<Task>() {
+            @Override
+            public void execute(Task task)
+            {
+                task.setGroup("build");
+                task.setDescription("Slims all of the JavaScript bundles.");
+            }
+        });
+        
+        extension.getBundles().all(new Action<JSlimBundle>() {
+            @Override
+            public void execute(final JSlimBundle bundle)
+            {
+                final TaskProvider<JSlimTask> slim = project.getTasks().register(getTaskName(bundle), JSlimTask.class,
+                    new Action<JSlimTask>() {
+                        @Override
+                        public void execute(JSlimTask task)
+                        {
+                            task.setDescription("Slims the " + bundle.getName() + " JavaScript bundle.");
+                            task.getJs().from(bundle.getJs());
+                            task.getOutputFile().convention(extension.getOutputDir().file(bundle.getName() + ".js"));
+                        }
+                    });
+                
+                slimAll.configure(new Action<Task>() {
+                    @Override
+                    public void execute(Task task)
+                    {
+                        task.dependsOn(slim);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Get the name of the slim task for a bundle.
+     * 
+     * @param bundle the bundle
+     * 
+     * @return the task name
+     */
+    private static String getTaskName(JSlimBundle bundle)
+    {
+        String name = bundle.getName();
+        return "slim" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
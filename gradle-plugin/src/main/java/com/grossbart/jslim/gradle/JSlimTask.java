@@ -0,0 +1,203 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim.gradle;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.inject.Inject;
+
+import org.gradle.api.Action;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.ProviderFactory;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.workers.WorkerExecutor;
+
+/**
+ * <p>
+ * The JSlimTask slims the libraries for one bundle and writes the bundle with the main
+ * files after the libraries.  It works like running the jslim command with --js,
+ * --lib_js, --externs, and --js_output_file.
+ * </p>
+ *
+ * <p>
+ * All of the files and options are task inputs and the bundle is the task output so
+ * Gradle skips bundles which haven't changed and can restore them from the build cache.
+ * The slimming runs in the worker API so Gradle can run many bundle tasks at the same
+ * time.  The workers share a cache of analyzed libraries so each library is only parsed
+ * once no matter how many bundles use it.
+ * </p>
+ */
+@CacheableTask
+public abstract class JSlimTask extends DefaultTask
+{
+    /**
+     * Get the main files for this bundle.
+     * 
+     * @return the main files
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract ConfigurableFileCollection getJs();
+    
+    /**
+     * Get the library files to slim.
+     * 
+     * @return the library files
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract ConfigurableFileCollection getLibraries();
+    
+    /**
+     * Get the externs files.  Each line of an externs file is the name of a function which
+     * is never removed.
+     * 
+     * @return the externs files
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract ConfigurableFileCollection getExterns();
+    
+    /**
+     * Get the Closure Compiler level.  This is NONE, WHITESPACE_ONLY, SIMPLE_OPTIMIZATIONS,
+     * or ADVANCED_OPTIMIZATIONS.
+     * 
+     * @return the compilation level
+     */
+    @Input
+    public abstract Property<String> getCompilationLevel();
+    
+    /**
+     * Get the charset for reading and writing the files.
+     * 
+     * @return the charset
+     */
+    @Input
+    public abstract Property<String> getCharset();
+    
+    /**
+     * Get whether a GZIPed copy of the bundle is written next to it.
+     * 
+     * @return true to write the GZIPed copy and false otherwise
+     */
+    @Input
+    public abstract Property<Boolean> getGzip();
+    
+    /**
+     * Get the bundle file this task writes.
+     * 
+     * @return the output file
+     */
+    @OutputFile
+    public abstract RegularFileProperty getOutputFile();
+    
+    /**
+     * Get the GZIPed copy of the bundle if this task writes one.
+     * 
+     * @return the GZIPed output file
+     */
+    @OutputFile
+    @Optional
+    public Provider<File> getGzipFile()
+    {
+        return getProviders().provider(new Callable<File>() {
+            @Override
+            public File call()
+            {
+                if (!getGzip().get()) {
+                    return null;
+                }
+                
+                return new File(getOutputFile().get().getAsFile().getPath() + ".gz");
+            }
+        });
+    }
+    
+    /**
+     * Get the names of the main and library files in order.  Gradle doesn't track the order
+     * of input files, but the libraries and main files are written to the bundle in this
+     * order.
+     * 
+     * @return the file names in order
+     */
+    @Input
+    public List<String> getFileOrder()
+    {
+        List<String> names = new ArrayList<String>();
+        for (File file : getLibraries()) {
+            names.add("lib:" + file.getName());
+        }
+        
+        for (File file : getJs()) {
+            names.add("js:" + file.getName());
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Get the factory for the GZIPed output file provider.
+     * 
+     * @return the provider factory
+     */
+    @Inject
+    protected abstract ProviderFactory getProviders();
+    
+    /**
+     * Get the worker executor which runs the slim.
+     * 
+     * @return the worker executor
+     */
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+    
+    /**
+     * Slim the bundle in a worker.
+     */
+    @TaskAction
+    public void slim()
+    {
+        getWorkerExecutor().noIsolation().submit(SlimWorkAction.class, new Action<SlimWorkAction.Parameters>() {
+            @Override
+            public void execute(SlimWorkAction.Parameters params)
+            {
+                params.getJs().setFrom(getJs());
+                params.getLibraries().setFrom(getLibraries());
+                params.getExterns().setFrom(getExterns());
+                params.getCompilationLevel().set(getCompilationLevel());
+                params.getCharset().set(getCharset());
+                params.getGzip().set(getGzip());
+                params.getOutputFile().set(getOutputFile());
+            }
+        });
+    }
+}
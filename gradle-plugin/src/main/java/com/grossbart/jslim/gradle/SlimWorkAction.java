@@ -0,0 +1,208 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim.gradle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import com.google.javascript.jscomp.CompilationLevel;
+import com.google.javascript.jscomp.ErrorManager;
+
+import com.grossbart.jslim.JSFile;
+import com.grossbart.jslim.JSlim;
+import com.grossbart.jslim.JSlimEngine;
+import com.grossbart.jslim.LibraryCache;
+import com.grossbart.jslim.LibraryGraph;
+import com.grossbart.jslim.SlimResult;
+
+/**
+ * The SlimWorkAction slims one bundle for a {@link JSlimTask} in a Gradle worker.
+ */
+public abstract class SlimWorkAction implements WorkAction<SlimWorkAction.Parameters>
+{
+    /**
+     * The Parameters are the files and options for one bundle.
+     */
+    public interface Parameters extends WorkParameters
+    {
+        /**
+         * Get the main files.
+         * 
+         * @return the main files
+         */
+        ConfigurableFileCollection getJs();
+        
+        /**
+         * Get the library files.
+         * 
+         * @return the library files
+         */
+        ConfigurableFileCollection getLibraries();
+        
+        /**
+         * Get the externs files.
+         * 
+         * @return the externs files
+         */
+        ConfigurableFileCollection getExterns();
+        
+        /**
+         * Get the Closure Compiler level.
+         * 
+         * @return the compilation level
+         */
+        Property<String> getCompilationLevel();
+        
+        /**
+         * Get the charset for reading and writing the files.
+         * 
+         * @return the charset
+         */
+        Property<String> getCharset();
+        
+        /**
+         * Get whether a GZIPed copy of the bundle is written.
+         * 
+         * @return true to write the GZIPed copy and false otherwise
+         */
+        Property<Boolean> getGzip();
+        
+        /**
+         * Get the bundle file.
+         * 
+         * @return the output file
+         */
+        RegularFileProperty getOutputFile();
+    }
+    
+    /*
+     The workers run in the Gradle daemon without isolation so they all
+     share this cache.  That means each library is analyzed once for all
+     the bundles in a build and stays analyzed for the next build in the
+     same daemon.  Libraries are looked up by their contents so a changed
+     library is always analyzed again.
+     */
+    private static final LibraryCache LIBRARY_CACHE = new LibraryCache(128L * 1024 * 1024);
+    
+    @Override
+    public void execute()
+    {
+        Parameters params = getParameters();
+        String charset = params.getCharset().get();
+        
+        JSlimEngine engine = new JSlimEngine.Builder()
+            .setCharset(charset)
+            .setCompilationLevel(getCompilationLevel(params.getCompilationLevel().get()))
+            .setLibraryCache(LIBRARY_CACHE)
+            .setLoggingLevel(Level.WARNING)
+            .build();
+        
+        try {
+            List<LibraryGraph> libs = new ArrayList<LibraryGraph>();
+            for (File file : params.getLibraries()) {
+                LibraryGraph lib = engine.analyzeLibrary(new JSFile(file.getName(), readFile(file, charset), true));
+                if (lib.hasErrors()) {
+                    lib.getErrorManager().generateReport();
+                    throw new GradleException("Unable to parse the library file " + file);
+                }
+                libs.add(lib);
+            }
+            
+            List<JSFile> mainFiles = new ArrayList<JSFile>();
+            StringBuffer main = new StringBuffer();
+            for (File file : params.getJs()) {
+                String contents = readFile(file, charset);
+                ErrorManager mgr = JSlim.validate(file.getName(), contents, null);
+                if (mgr.getErrorCount() > 0) {
+                    mgr.generateReport();
+                    throw new GradleException("Unable to parse the file " + file);
+                }
+                
+                mainFiles.add(new JSFile(file.getName(), contents, false));
+                main.append(contents).append('\n');
+            }
+            
+            List<String> externs = new ArrayList<String>();
+            for (File file : params.getExterns()) {
+                externs.addAll(FileUtils.readLines(file, charset));
+            }
+            
+            SlimResult result = engine.slim(mainFiles, externs, libs);
+            
+            File out = params.getOutputFile().get().getAsFile();
+            String code = result.getCode() + "\n" + main;
+            if (engine.getCompilationLevel() != null) {
+                code = engine.compile(out.getName(), code);
+            }
+            
+            FileUtils.writeStringToFile(out, code, charset);
+            if (params.getGzip().get()) {
+                JSlim.writeGzip(code, out, charset);
+            }
+        } catch (IOException e) {
+            throw new GradleException("Unable to slim " + params.getOutputFile().get(), e);
+        }
+    }
+    
+    /**
+     * Read a file.
+     * 
+     * @param file    the file to read
+     * @param charset the charset of the file
+     * 
+     * @return the contents of the file
+     * @exception IOException
+     *                   if there's an error reading the file
+     */
+    private static String readFile(File file, String charset)
+        throws IOException
+    {
+        return FileUtils.readFileToString(file, charset);
+    }
+    
+    /**
+     * Get the Closure Compiler level from its name.
+     * 
+     * @param name   the name of the level or NONE to skip the compile
+     * 
+     * @return the compilation level or null to skip the compile
+     */
+    private static CompilationLevel getCompilationLevel(String name)
+    {
+        if ("NONE".equals(name)) {
+            return null;
+        }
+        
+        try {
+            return CompilationLevel.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new GradleException("Unknown compilation level " + name, e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim.gradle;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This test runs the plugin in a real Gradle build and checks that the slim tasks are up to
+ * date when nothing changed and come from the build cache after a clean.
+ */
+public class JSlimPluginTest
+{
+    /**
+     * Slim a bundle three times: once to build it, once with nothing changed, and once
+     * after deleting the build directory.
+     * 
+     * @exception Exception if there is any error writing the files or running the build
+     */
+    @Test
+    public void cacheTest()
+        throws Exception
+    {
+        File dir = Files.createTempDirectory("jslim-gradle").toFile();
+        try {
+            write(new File(dir, "settings.gradle"),
+                  "rootProject.name = 'slimtest'\n" +
+                  "buildCache {\n" +
+                  "    local {\n" +
+                  "        directory = new File(rootDir, 'build-cache')\n" +
+                  "    }\n" +
+                  "}\n");
+            write(new File(dir, "build.gradle"),
+                  "plugins {\n" +
+                  "    id 'com.grossbart.jslim'\n" +
+                  "}\n" +
+                  "jslim {\n" +
+                  "    libraries.from 'lib.js'\n" +
+                  "    compilationLevel = 'WHITESPACE_ONLY'\n" +
+                  "    gzip = false\n" +
+                  "    bundles {\n" +
+                  "        home {\n" +
+                  "            js 'main.js'\n" +
+                  "        }\n" +
+                  "    }\n" +
+                  "}\n");
+            write(new File(dir, "main.js"), "lib.func1();");
+            write(new File(dir, "lib.js"), "var lib = {};\n" +
+                  "lib.func1 = function() { return 'func1 called'; };\n" +
+                  "lib.func2 = function() { return 'func2 called'; };\n");
+            
+            assertEquals(TaskOutcome.SUCCESS, slim(dir));
+            
+            String out = FileUtils.readFileToString(new File(dir, "build/jslim/home.js"), "UTF-8");
+            assertTrue("The func1 function is kept", out.contains("func1 called"));
+            assertTrue("The func2 function is removed", !out.contains("func2 called"));
+            
+            assertEquals(TaskOutcome.UP_TO_DATE, slim(dir));
+            
+            FileUtils.deleteDirectory(new File(dir, "build"));
+            assertEquals(TaskOutcome.FROM_CACHE, slim(dir));
+            assertTrue("The bundle is back", new File(dir, "build/jslim/home.js").exists());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    /**
+     * Run the slim task with the build cache.
+     * 
+     * @param dir    the project directory
+     * 
+     * @return the outcome of the task which slims the home bundle
+     */
+    private static TaskOutcome slim(File dir)
+    {
+        BuildResult result = GradleRunner.create()
+            .withProjectDir(dir)
+            .withPluginClasspath()
+            .withArguments("slim", "--build-cache")
+            .build();
+        
+        return result.task(":slimHome").getOutcome();
+    }
+    
+    private static void write(File f, String contents)
+        throws Exception
+    {
+        FileUtils.writeStringToFile(f, contents, "UTF-8");
+    }
+}
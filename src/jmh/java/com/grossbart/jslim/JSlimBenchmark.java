@@ -0,0 +1,299 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.apache.commons.io.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.javascript.jscomp.CompilationLevel;
+import com.google.javascript.rhino.Node;
+
+/**
+ * <p>
+ * These benchmarks measure each phase of the slimming process against the libraries and
+ * sample pages in the libs directory.  Each benchmark only runs one phase and the earlier
+ * phases are done once in the setup.
+ * </p>
+ *
+ * <p>
+ * Run them from the project directory with <code>gradle jmh</code>.  That task adds the
+ * GC profiler so the results show the allocation rate next to the throughput.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JSlimBenchmark
+{
+    /*
+     Each corpus is the name, the externs file or null, the main file,
+     and then the library files.  These match the samples in the libs
+     directory and the example in the README.
+     */
+    private static final String CORPUS[][] = {
+        {"jquery", null, "main.js", "libs/jquery-1.6.4.js", "libs/underscore.js"},
+        {"prototype", null, "libs/prototype/main.js", "libs/prototype/prototype.js"},
+        {"mootools", "libs/mootools/extern.txt", "libs/mootools/periodical.js",
+            "libs/mootools/mootools-core-1.3.2-full-compat.js"},
+        {"raphael", null, "libs/chart/chart.js", "libs/chart/raphael.js"},
+        {"backbone", "libs/backbone/externs.txt", "libs/backbone/todos.js",
+            "libs/backbone/json2.js", "libs/backbone/jquery-1.6.4.js", "libs/backbone/underscore-1.1.6.js",
+            "libs/backbone/backbone.js", "libs/backbone/backbone-localstorage.js"},
+        {"modernizr", null, "libs/modernizr/main.js", "libs/modernizr/modernizr-2.0.6.js"}
+    };
+    
+    /**
+     * The name of the corpus this benchmark runs against.
+     */
+    @Param({"jquery", "prototype", "mootools", "raphael", "backbone", "modernizr"})
+    public String corpus;
+    
+    private List<String> m_externs = new ArrayList<String>();
+    private JSFile m_main;
+    private List<JSFile> m_libs = new ArrayList<JSFile>();
+    
+    private List<Node> m_roots = new ArrayList<Node>();
+    private List<LibraryGraph> m_graphs = new ArrayList<LibraryGraph>();
+    
+    private String m_pruned;
+    private String m_compiled;
+    private File m_outFile;
+    
+    /**
+     * The PruneState holds a compiler which is ready to prune.  Pruning changes the
+     * compiler so we need a new one for every call.
+     */
+    @State(Scope.Thread)
+    public static class PruneState
+    {
+        private JSlim m_slim;
+        
+        /**
+         * Create a compiler with all the calls and library copies for the benchmark's
+         * corpus.
+         * 
+         * @param bench  the benchmark with the analyzed corpus
+         */
+        @Setup(org.openjdk.jmh.annotations.Level.Invocation)
+        public void setup(JSlimBenchmark bench)
+        {
+            m_slim = bench.createSlim();
+            m_slim.addCalls(m_slim.analyzeMain(bench.m_main));
+            m_slim.addLibraries(bench.m_graphs);
+        }
+    }
+    
+    /**
+     * Read the corpus and run each phase once so every benchmark has the input it needs.
+     * 
+     * @exception IOException if there is an error reading the corpus
+     */
+    @Setup(org.openjdk.jmh.annotations.Level.Trial)
+    public void setup()
+        throws IOException
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        String files[] = getCorpus(corpus);
+        
+        if (files[1] != null) {
+            m_externs.addAll(FileUtils.readLines(new File(files[1]), "UTF-8"));
+        }
+        
+        m_main = readFile(files[2], false);
+        for (int i = 3; i < files.length; i++) {
+            m_libs.add(readFile(files[i], true));
+        }
+        
+        for (JSFile lib : m_libs) {
+            JSlim slim = createSlim();
+            
+            Node root = slim.parse(lib.getName(), lib.getContent());
+            if (root == null) {
+                throw new IllegalStateException("Unable to parse " + lib.getName());
+            }
+            m_roots.add(root);
+            
+            m_graphs.add(slim.analyzeLibrary(lib));
+        }
+        
+        JSlim slim = createSlim();
+        slim.addSourceFile(m_main);
+        m_pruned = slim.prune(m_graphs, null);
+        
+        m_compiled = JSlim.plainCompile("out.js", m_pruned, CompilationLevel.SIMPLE_OPTIMIZATIONS, null);
+        
+        m_outFile = File.createTempFile("jslim-" + corpus, ".js");
+    }
+    
+    /**
+     * Remove the files written by the gzip benchmark.
+     */
+    @TearDown(org.openjdk.jmh.annotations.Level.Trial)
+    public void tearDown()
+    {
+        FileUtils.deleteQuietly(m_outFile);
+        FileUtils.deleteQuietly(new File(m_outFile.getParentFile(), m_outFile.getName() + ".gz"));
+    }
+    
+    /**
+     * Validate all the library files in the corpus.
+     * 
+     * @return the number of errors
+     */
+    @Benchmark
+    public int validate()
+    {
+        int errors = 0;
+        for (JSFile lib : m_libs) {
+            errors += JSlim.validate(lib.getName(), lib.getContent(), null).getErrorCount();
+        }
+        
+        return errors;
+    }
+    
+    /**
+     * Parse all the library files in the corpus.
+     * 
+     * @param bh     the blackhole for the parse trees
+     */
+    @Benchmark
+    public void parse(Blackhole bh)
+    {
+        JSlim slim = createSlim();
+        for (JSFile lib : m_libs) {
+            bh.consume(slim.parse(lib.getName(), lib.getContent()));
+        }
+    }
+    
+    /**
+     * Find the calls and functions in the parsed library files.  The process phase never
+     * changes the tree so the same trees are used for every call.
+     * 
+     * @param bh     the blackhole for the calls and functions
+     */
+    @Benchmark
+    public void process(Blackhole bh)
+    {
+        JSlim slim = createSlim();
+        for (Node root : m_roots) {
+            CallList calls = new CallList();
+            List<Node> funcs = new ArrayList<Node>();
+            
+            slim.process(root, true, calls, funcs);
+            
+            bh.consume(calls);
+            bh.consume(funcs);
+        }
+    }
+    
+    /**
+     * Run both prune passes over private copies of the library trees.
+     * 
+     * @param state  the compiler which is ready to prune
+     * 
+     * @return the number of kept functions
+     */
+    @Benchmark
+    public int pruneTree(PruneState state)
+    {
+        state.m_slim.pruneTree();
+        state.m_slim.pruneTree();
+        
+        return state.m_slim.getKeptFunctions().length;
+    }
+    
+    /**
+     * Compile the pruned libraries with the Closure Compiler.
+     * 
+     * @return the compiled code
+     */
+    @Benchmark
+    public String plainCompile()
+    {
+        return JSlim.plainCompile("out.js", m_pruned, CompilationLevel.SIMPLE_OPTIMIZATIONS, null);
+    }
+    
+    /**
+     * Write the compiled code as a GZIPed file.
+     * 
+     * @exception IOException if there is an error writing the file
+     */
+    @Benchmark
+    public void writeGzip()
+        throws IOException
+    {
+        JSlim.writeGzip(m_compiled, m_outFile, "UTF-8");
+    }
+    
+    /**
+     * Create a compiler with the externs for this corpus.
+     * 
+     * @return the new compiler
+     */
+    private JSlim createSlim()
+    {
+        JSlim slim = new JSlim();
+        for (String extern : m_externs) {
+            slim.addExtern(extern);
+        }
+        
+        return slim;
+    }
+    
+    private static String[] getCorpus(String name)
+    {
+        for (String files[] : CORPUS) {
+            if (files[0].equals(name)) {
+                return files;
+            }
+        }
+        
+        throw new IllegalArgumentException("Unknown corpus: " + name);
+    }
+    
+    private static JSFile readFile(String name, boolean isLib)
+        throws IOException
+    {
+        File file = new File(name);
+        return new JSFile(file.getName(), FileUtils.readFileToString(file, "UTF-8"), isLib);
+    }
+}
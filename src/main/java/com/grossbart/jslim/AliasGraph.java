@@ -0,0 +1,749 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * <p>
+ * The AliasGraph finds which names in the libraries can refer to the same object.  JSlim
+ * uses it to match calls like <code>_.each()</code> only to the <code>each</code> functions
+ * which can be on the <code>_</code> object instead of every function named
+ * <code>each</code>.
+ * </p>
+ * 
+ * <p>
+ * The graph works on names instead of scopes and ignores the order of the code.  Any
+ * assignment of one name to another puts the two names in the same group, and a call
+ * through one name in a group can reach functions defined on any of them.  A name is only
+ * tracked if we can see every value it gets.  Function parameters, names assigned the
+ * result of a call, and names the libraries never define are untracked and calls through
+ * them can reach any function.  Objects which are passed to functions can have their
+ * members copied anywhere so the functions defined on them match any call.
+ * </p>
+ */
+class AliasGraph
+{
+    private static final int FRESH = 0;
+    private static final int ROOT = 1;
+    private static final int SUB = 2;
+    private static final int OPAQUE = 4;
+    
+    private Map<String, String> m_parents = new HashMap<String, String>();
+    private Set<String> m_defined = new HashSet<String>();
+    private Set<String> m_untracked = new HashSet<String>();
+    private Set<String> m_escaped = new HashSet<String>();
+    private Set<String> m_escapedClasses = new HashSet<String>();
+    private Set<String> m_storeTargets = new HashSet<String>();
+    private Set<String> m_anyProps = new HashSet<String>();
+    private Map<String, List<String[]>> m_propStores = new HashMap<String, List<String[]>>();
+    private List<String[]> m_flows = new ArrayList<String[]>();
+    private Map<Node, String> m_defClasses = new IdentityHashMap<Node, String>();
+    
+    /**
+     * Create a new AliasGraph for the specified library scripts.
+     * 
+     * @param scripts the library scripts
+     */
+    AliasGraph(List<Node> scripts)
+    {
+        for (Node script : scripts) {
+            walk(script);
+        }
+        
+        /*
+         A name assigned from an untracked name is untracked too.
+         */
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (String[] flow : m_flows) {
+                if (m_untracked.contains(flow[1]) && m_untracked.add(flow[0])) {
+                    changed = true;
+                }
+            }
+        }
+        
+        for (String name : m_escaped) {
+            m_escapedClasses.add(find(name));
+        }
+    }
+    
+    /**
+     * Determine if the code in this graph passes objects with any names besides the
+     * specified ones to other functions or copies values into them.  JSlim uses this for
+     * the main files since their code isn't part of the library graph.
+     * 
+     * @param declared the names the code declares itself
+     * 
+     * @return true if the code might change or copy other objects and false otherwise
+     */
+    boolean leaks(Set<String> declared)
+    {
+        Set<String> classes = new HashSet<String>(m_escapedClasses);
+        for (String name : m_storeTargets) {
+            classes.add(find(name));
+        }
+        
+        Set<String> names = new HashSet<String>(m_escaped);
+        names.addAll(m_storeTargets);
+        names.addAll(m_parents.keySet());
+        names.addAll(m_parents.values());
+        for (String name : names) {
+            if (!declared.contains(name) && classes.contains(find(name))) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Determine if the specified call can reach the specified function.
+     * 
+     * @param call   the call with all of its receivers
+     * @param func   the function the call matches by name
+     * 
+     * @return true if the call might call this function and false if it can't
+     */
+    boolean canCall(Call call, Node func)
+    {
+        if (call.hasAnyReceiver() || m_anyProps.contains(call.getName())) {
+            return true;
+        }
+        
+        String defClass = getDefClass(func);
+        if (defClass == null) {
+            return true;
+        }
+        
+        for (String receiver : call.getReceivers()) {
+            if (!isTracked(receiver) || defClass.equals(find(receiver))) {
+                return true;
+            }
+            
+            /*
+             Look for stores like receiver.each = other.each which copy the
+             function from its object to this one.
+             */
+            List<String[]> stores = m_propStores.get(call.getName());
+            if (stores != null) {
+                for (String[] store : stores) {
+                    if (find(store[0]).equals(find(receiver)) &&
+                        (!isTracked(store[1]) || defClass.equals(find(store[1])))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Get the group of the object the specified function is defined on.
+     * 
+     * @param func   the function
+     * 
+     * @return the group or null if the function could be on any object
+     */
+    private String getDefClass(Node func)
+    {
+        if (m_defClasses.containsKey(func)) {
+            return m_defClasses.get(func);
+        }
+        
+        String root = getDefRoot(func);
+        String defClass = null;
+        if (root != null && isTracked(root) && !m_escapedClasses.contains(find(root))) {
+            defClass = find(root);
+        }
+        
+        m_defClasses.put(func, defClass);
+        return defClass;
+    }
+    
+    /**
+     * Determine if we can see every value assigned to the specified name.
+     * 
+     * @param name   the name
+     * 
+     * @return true if the name is tracked and false otherwise
+     */
+    private boolean isTracked(String name)
+    {
+        return m_defined.contains(name) && !m_untracked.contains(name);
+    }
+    
+    /**
+     * Get the name of the object the specified function is defined on.  That's
+     * <code>_</code> for <code>_.each = function() {}</code> and <code>obj</code> for
+     * <code>obj = { each: function() {} }</code>.
+     * 
+     * @param func   the function
+     * 
+     * @return the name of the object or null if we can't tell
+     */
+    private static String getDefRoot(Node func)
+    {
+        if (func.getType() != Token.FUNCTION || func.getParent() == null) {
+            return null;
+        }
+        
+        Node parent = func.getParent();
+        if (parent.getType() == Token.STRING) {
+            /*
+             The function is a member of an object literal.  We look for the
+             name of the outermost literal.
+             */
+            Node lit = parent.getParent();
+            while (lit.getParent() != null && lit.getParent().getType() == Token.STRING) {
+                lit = lit.getParent().getParent();
+            }
+            
+            Node consumer = lit.getParent();
+            if (consumer == null) {
+                return null;
+            } else if (consumer.getType() == Token.NAME) {
+                return consumer.getString();
+            } else if (consumer.getType() == Token.ASSIGN && consumer.getLastChild() == lit) {
+                return getRoot(consumer.getFirstChild());
+            } else if (consumer.getType() == Token.CALL) {
+                return getExtendTarget(consumer, lit);
+            }
+        } else if (parent.getType() == Token.ASSIGN && parent.getLastChild() == func) {
+            /*
+             All of the names in an assignment chain like
+             _.reduce = _.foldl = function() must be on the same object.
+             */
+            String root = null;
+            for (Node assign = parent; assign.getType() == Token.ASSIGN; assign = assign.getParent()) {
+                if (assign.getFirstChild().getType() == Token.NAME) {
+                    return null;
+                }
+                
+                String r = getRoot(assign.getFirstChild());
+                if (r == null || (root != null && !root.equals(r))) {
+                    return null;
+                }
+                root = r;
+            }
+            
+            return root;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Get the object an extend-style call copies the members of an object literal into.
+     * 
+     * @param call   the CALL node
+     * @param lit    the OBJECTLIT argument
+     * 
+     * @return the name of the object or null if this isn't an extend call
+     */
+    private static String getExtendTarget(Node call, Node lit)
+    {
+        Node callee = call.getFirstChild();
+        if (callee.getType() != Token.GETPROP || !"extend".equals(callee.getLastChild().getString())) {
+            return null;
+        }
+        
+        Node arg = callee.getNext();
+        if (arg.getType() == Token.TRUE) {
+            arg = arg.getNext();
+        }
+        
+        if (arg == lit && lit.getNext() == null) {
+            /*
+             jQuery.extend({ ... })
+             */
+            return getRoot(callee.getFirstChild());
+        } else if (arg != lit) {
+            /*
+             _.extend(obj, { ... })
+             */
+            return getRoot(arg);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Get the name at the start of a property chain like <code>a</code> in
+     * <code>a.b.c</code>.
+     * 
+     * @param n      the chain
+     * 
+     * @return the name or null if the chain doesn't start with a name
+     */
+    static String getRoot(Node n)
+    {
+        while (n.getType() == Token.GETPROP || n.getType() == Token.GETELEM) {
+            n = n.getFirstChild();
+        }
+        
+        if (n.getType() == Token.NAME) {
+            return n.getString();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Add all of the names declared or assigned under the specified node.
+     * 
+     * @param node   the node to search
+     * @param names  the set to add the names to
+     */
+    static void addDeclaredNames(Node node, Set<String> names)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if (n.getType() == Token.NAME && n.getString().length() > 0 &&
+                (node.getType() == Token.VAR || node.getType() == Token.FUNCTION ||
+                 node.getType() == Token.LP || node.getType() == Token.CATCH ||
+                 (node.getType() == Token.ASSIGN && n == node.getFirstChild()))) {
+                names.add(n.getString());
+            }
+            
+            addDeclaredNames(n, names);
+        }
+    }
+    
+    /**
+     * Walk the tree and add the assignments and escaping values.
+     * 
+     * @param node   the node to walk
+     */
+    private void walk(Node node)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            switch (n.getType()) {
+                case Token.VAR:
+                    for (Node name = n.getFirstChild(); name != null; name = name.getNext()) {
+                        if (node.getType() == Token.FOR && n == node.getFirstChild() && node.getChildCount() == 3) {
+                            /*
+                             for (var key in obj)
+                             */
+                            define(name.getString());
+                            m_untracked.add(name.getString());
+                        } else if (name.getFirstChild() != null) {
+                            assign(name.getString(), name.getFirstChild());
+                        } else {
+                            define(name.getString());
+                        }
+                    }
+                    break;
+                case Token.NAME:
+                    if (node.getType() == Token.FOR && n == node.getFirstChild() && node.getChildCount() == 3) {
+                        define(n.getString());
+                        m_untracked.add(n.getString());
+                    }
+                    break;
+                case Token.FUNCTION:
+                    walkFunction(n);
+                    break;
+                case Token.ASSIGN:
+                    Node lhs = n.getFirstChild();
+                    if (lhs.getType() == Token.NAME) {
+                        assign(lhs.getString(), n.getLastChild());
+                    } else if (getRoot(lhs) != null) {
+                        store(lhs, n.getLastChild());
+                    } else {
+                        /*
+                         this.obj = value
+                         */
+                        escape(n.getLastChild());
+                    }
+                    break;
+                case Token.ASSIGN_BITOR:
+                case Token.ASSIGN_BITXOR:
+                case Token.ASSIGN_BITAND:
+                case Token.ASSIGN_LSH:
+                case Token.ASSIGN_RSH:
+                case Token.ASSIGN_URSH:
+                case Token.ASSIGN_ADD:
+                case Token.ASSIGN_SUB:
+                case Token.ASSIGN_MUL:
+                case Token.ASSIGN_DIV:
+                case Token.ASSIGN_MOD:
+                case Token.INC:
+                case Token.DEC:
+                    if (n.getFirstChild().getType() == Token.NAME) {
+                        define(n.getFirstChild().getString());
+                        m_untracked.add(n.getFirstChild().getString());
+                    }
+                    break;
+                case Token.CATCH:
+                    define(n.getFirstChild().getString());
+                    m_untracked.add(n.getFirstChild().getString());
+                    break;
+                case Token.CALL:
+                case Token.NEW:
+                    if (n.getType() == Token.CALL && n.getFirstChild().getType() == Token.FUNCTION) {
+                        bindParams(n);
+                    } else {
+                        for (Node arg = n.getFirstChild().getNext(); arg != null; arg = arg.getNext()) {
+                            escape(arg);
+                        }
+                    }
+                    break;
+                case Token.RETURN:
+                    if (n.getFirstChild() != null && !isCalledFunction(findFunction(n))) {
+                        escape(n.getFirstChild());
+                    }
+                    break;
+                case Token.THROW:
+                    escape(n.getFirstChild());
+                    break;
+                default:
+                    break;
+            }
+            
+            walk(n);
+        }
+    }
+    
+    /**
+     * Add the name and parameters of a function.  Parameters are untracked unless this
+     * function is called right where it's defined.
+     * 
+     * @param func   the FUNCTION node
+     */
+    private void walkFunction(Node func)
+    {
+        String name = func.getFirstChild().getString();
+        if (name != null && name.length() > 0) {
+            define(name);
+        }
+        
+        if (!isCalledFunction(func)) {
+            for (Node param = func.getFirstChild().getNext().getFirstChild(); param != null; param = param.getNext()) {
+                define(param.getString());
+                m_untracked.add(param.getString());
+            }
+        }
+    }
+    
+    /**
+     * Bind the parameters of a function which is called where it's defined like
+     * <code>(function($) { ... })(jQuery)</code> to the arguments.
+     * 
+     * @param call   the CALL node
+     */
+    private void bindParams(Node call)
+    {
+        Node arg = call.getFirstChild().getNext();
+        for (Node param = call.getFirstChild().getFirstChild().getNext().getFirstChild(); param != null;
+             param = param.getNext()) {
+            if (arg == null) {
+                define(param.getString());
+            } else {
+                assign(param.getString(), arg);
+                arg = arg.getNext();
+            }
+        }
+        
+        /*
+         The function can get to any extra arguments with the arguments
+         object.
+         */
+        for (; arg != null; arg = arg.getNext()) {
+            escape(arg);
+        }
+    }
+    
+    /**
+     * Determine if the specified function is called right where it's defined.
+     * 
+     * @param func   the FUNCTION node or null
+     * 
+     * @return true if the function is called where it's defined and false otherwise
+     */
+    private static boolean isCalledFunction(Node func)
+    {
+        return func != null && func.getParent() != null && func.getParent().getType() == Token.CALL &&
+            func.getParent().getFirstChild() == func;
+    }
+    
+    /**
+     * Find the function containing the specified node.
+     * 
+     * @param n      the node
+     * 
+     * @return the closest FUNCTION parent or null if there isn't one
+     */
+    private static Node findFunction(Node n)
+    {
+        for (Node parent = n.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent.getType() == Token.FUNCTION) {
+                return parent;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Add an assignment of a value to a name.
+     * 
+     * @param name   the assigned name
+     * @param value  the value
+     */
+    private void assign(String name, Node value)
+    {
+        define(name);
+        
+        Set<String> roots = new HashSet<String>();
+        int flags = classify(value, roots);
+        if ((flags & (OPAQUE | SUB)) != 0) {
+            /*
+             The name gets the result of a call or a property of another
+             object so we can't tell which object it is.
+             */
+            m_untracked.add(name);
+        }
+        
+        for (String root : roots) {
+            union(name, root);
+            m_flows.add(new String[] {name, root});
+        }
+    }
+    
+    /**
+     * Add an assignment of a value to a property of a named object.  We only match calls
+     * made right on a named object like <code>obj.func()</code> so we only need to worry
+     * about properties of the named object itself.  A function copied there from another
+     * object like <code>obj.each = other.each</code> can be called on this object so calls
+     * with that name on this object match the functions of the other object too.
+     * 
+     * @param lhs    the property
+     * @param value  the value
+     */
+    private void store(Node lhs, Node value)
+    {
+        Node obj = lhs.getFirstChild();
+        if (obj.getType() != Token.NAME) {
+            /*
+             This is a property of a property like a.b.c = value.
+             */
+            return;
+        }
+        
+        Set<String> roots = new HashSet<String>();
+        int flags = classify(value, roots);
+        if (flags == FRESH) {
+            /*
+             New functions and objects are defined on this object.
+             */
+            return;
+        }
+        
+        m_storeTargets.add(obj.getString());
+        if (lhs.getType() == Token.GETPROP) {
+            String prop = lhs.getLastChild().getString();
+            if ((flags & OPAQUE) != 0) {
+                m_anyProps.add(prop);
+                return;
+            }
+            
+            List<String[]> stores = m_propStores.get(prop);
+            if (stores == null) {
+                stores = new ArrayList<String[]>();
+                m_propStores.put(prop, stores);
+            }
+            
+            for (String root : roots) {
+                stores.add(new String[] {obj.getString(), root});
+            }
+        } else {
+            /*
+             We don't know which property this is so any of them might
+             have the value.  This is how mixins copy members from one
+             object to another so the objects the value came from might
+             have all of their members copied.
+             */
+            m_untracked.add(obj.getString());
+            m_escaped.addAll(roots);
+        }
+    }
+    
+    /**
+     * Mark the objects in the specified value as escaping.  Code we can't follow might
+     * copy their members to any other object.
+     * 
+     * @param value  the value
+     */
+    private void escape(Node value)
+    {
+        Set<String> roots = new HashSet<String>();
+        classify(value, roots);
+        m_escaped.addAll(roots);
+    }
+    
+    /**
+     * Find the objects the specified value can be.
+     * 
+     * @param value  the value
+     * @param roots  the set to add the names of the objects to
+     * 
+     * @return ROOT if the value is one of the named objects, SUB if it's a property of one
+     *         of them, OPAQUE if it can't be followed, or FRESH if it's a new value
+     */
+    private int classify(Node value, Set<String> roots)
+    {
+        switch (value.getType()) {
+            case Token.NAME:
+                if ("undefined".equals(value.getString())) {
+                    return FRESH;
+                }
+                roots.add(value.getString());
+                return ROOT;
+            case Token.GETPROP:
+            case Token.GETELEM:
+                Node base = value;
+                while (base.getType() == Token.GETPROP || base.getType() == Token.GETELEM) {
+                    base = base.getFirstChild();
+                }
+                
+                if (base.getType() == Token.NAME) {
+                    roots.add(base.getString());
+                    return SUB;
+                } else if (base.getType() == Token.THIS || base.getType() == Token.CALL ||
+                           base.getType() == Token.NEW) {
+                    return OPAQUE;
+                }
+                return FRESH;
+            case Token.ASSIGN:
+            case Token.COMMA:
+                return classify(value.getLastChild(), roots);
+            case Token.OR:
+            case Token.AND:
+                return classify(value.getFirstChild(), roots) | classify(value.getLastChild(), roots);
+            case Token.HOOK:
+                return classify(value.getFirstChild().getNext(), roots) | classify(value.getLastChild(), roots);
+            case Token.OBJECTLIT:
+            case Token.ARRAYLIT:
+                int flags = FRESH;
+                for (Node c = value.getFirstChild(); c != null; c = c.getNext()) {
+                    Node v = c.getType() == Token.STRING ? c.getFirstChild() : c;
+                    if (v != null) {
+                        flags |= classify(v, roots);
+                    }
+                }
+                return flags;
+            case Token.CALL:
+                if (value.getFirstChild().getType() == Token.FUNCTION) {
+                    return classifyReturns(value.getFirstChild().getLastChild(), roots);
+                }
+                return OPAQUE;
+            case Token.THIS:
+            case Token.NEW:
+                return OPAQUE;
+            default:
+                /*
+                 Functions, literals, and operators all make new values.
+                 */
+                return FRESH;
+        }
+    }
+    
+    /**
+     * Find the objects a function called where it's defined can return.
+     * 
+     * @param node   the body of the function
+     * @param roots  the set to add the names of the objects to
+     * 
+     * @return the flags from {@link #classify(Node, Set)}
+     */
+    private int classifyReturns(Node node, Set<String> roots)
+    {
+        int flags = FRESH;
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if (n.getType() == Token.RETURN && n.getFirstChild() != null) {
+                flags |= classify(n.getFirstChild(), roots);
+            } else if (n.getType() != Token.FUNCTION) {
+                flags |= classifyReturns(n, roots);
+            }
+        }
+        
+        return flags;
+    }
+    
+    /**
+     * Note that the libraries define the specified name.
+     * 
+     * @param name   the name
+     */
+    private void define(String name)
+    {
+        m_defined.add(name);
+    }
+    
+    /**
+     * Find the group of the specified name.
+     * 
+     * @param name   the name
+     * 
+     * @return the name which represents the group
+     */
+    private String find(String name)
+    {
+        String root = name;
+        while (m_parents.containsKey(root)) {
+            root = m_parents.get(root);
+        }
+        
+        /*
+         Point every name on the way straight at the root so the next
+         search is quick.
+         */
+        while (!name.equals(root)) {
+            String parent = m_parents.get(name);
+            m_parents.put(name, root);
+            name = parent;
+        }
+        
+        return root;
+    }
+    
+    /**
+     * Put two names in the same group.
+     * 
+     * @param a      the first name
+     * @param b      the second name
+     */
+    private void union(String a, String b)
+    {
+        String rootA = find(a);
+        String rootB = find(b);
+        if (!rootA.equals(rootB)) {
+            m_parents.put(rootA, rootB);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * <p>
+ * The AnalysisReport lists the library functions a prune operation would keep and the
+ * ones it would remove without generating or compiling any code.  It is the result of
+ * {@link JSlim#analyze(List)} and the --analyze_only argument.
+ * </p>
+ *
+ * <p>
+ * The size of each function is estimated from the source offsets in the parse tree so it
+ * is the size of the function in the original library file including whitespace and
+ * comments.  The byte totals don't count functions inside other functions in the same list
+ * twice.
+ * </p>
+ */
+public class AnalysisReport
+{
+    /**
+     * An Entry is a single library function in the report.
+     */
+    public static final class Entry
+    {
+        private String m_name;
+        private String m_file;
+        private int m_line;
+        private int m_size;
+        private boolean m_kept;
+        private int m_parent = -1;
+        
+        private Entry(String name, String file, int line, int size)
+        {
+            m_name = name;
+            m_file = file;
+            m_line = line;
+            m_size = size;
+        }
+        
+        /**
+         * Get the name of the function.  A function in an assignment chain like
+         * <code>A.extend = B.copy = function() {}</code> has all of its names joined with
+         * a <code>|</code> starting with the outer one.
+         * 
+         * @return the function name
+         */
+        public String getName()
+        {
+            return m_name;
+        }
+        
+        /**
+         * Get the name of the library file the function is in.
+         * 
+         * @return the file name
+         */
+        public String getFile()
+        {
+            return m_file;
+        }
+        
+        /**
+         * Get the line the function starts on.
+         * 
+         * @return the line number
+         */
+        public int getLine()
+        {
+            return m_line;
+        }
+        
+        /**
+         * Get the estimated size of the function in the original library file.
+         * 
+         * @return the size in characters
+         */
+        public int getSize()
+        {
+            return m_size;
+        }
+        
+        /**
+         * Determine if the prune operation keeps this function.
+         * 
+         * @return true if the function is kept and false if it is removed
+         */
+        public boolean isKept()
+        {
+            return m_kept;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return m_name + " (" + m_file + ":" + m_line + ", " + m_size + " bytes)";
+        }
+    }
+    
+    private List<Entry> m_entries = new ArrayList<Entry>();
+    private List<Node> m_funcs;
+    private List<Integer> m_funcEntries;
+    private long m_libraryBytes;
+    
+    /**
+     * Create a new AnalysisReport.
+     */
+    AnalysisReport()
+    {
+    }
+    
+    /**
+     * Add the library functions before they are pruned.  Every node of an assignment chain
+     * like <code>A.extend = B.copy = function() {}</code> is in the list of functions, but
+     * they all share one FUNCTION node so they get one entry with the range of the outer
+     * assignment and all of the names.
+     * 
+     * @param libs   the analyzed libraries
+     * @param funcs  the copies of the interesting functions from all of the libraries in
+     *               the same order as the libraries
+     * @param names  the name of each function
+     */
+    void addFunctions(List<LibraryGraph> libs, List<Node> funcs, List<String> names)
+    {
+        m_funcs = new ArrayList<Node>(funcs);
+        m_funcEntries = new ArrayList<Integer>();
+        
+        Map<Node, Integer> byFunction = new IdentityHashMap<Node, Integer>();
+        List<Node> outer = new ArrayList<Node>();
+        List<List<String>> entryNames = new ArrayList<List<String>>();
+        
+        int i = 0;
+        for (LibraryGraph lib : libs) {
+            m_libraryBytes += lib.getLength();
+            
+            int sizes[] = lib.getFunctionSizes();
+            for (int size : sizes) {
+                Node func = funcs.get(i);
+                Node key = getFunctionNode(func);
+                Integer e = byFunction.get(key);
+                
+                if (e == null) {
+                    e = m_entries.size();
+                    byFunction.put(key, e);
+                    m_entries.add(new Entry(null, lib.getName(), func.getLineno(), size));
+                    outer.add(func);
+                    entryNames.add(new ArrayList<String>());
+                }
+                
+                List<String> n = entryNames.get(e);
+                if (isAncestor(func, outer.get(e))) {
+                    /*
+                     This is an outer node of the chain so the entry takes its
+                     range and its name goes first.
+                     */
+                    Entry entry = m_entries.get(e);
+                    entry.m_line = func.getLineno();
+                    entry.m_size = size;
+                    outer.set(e, func);
+                    n.remove(names.get(i));
+                    n.add(0, names.get(i));
+                } else if (!n.contains(names.get(i))) {
+                    n.add(names.get(i));
+                }
+                
+                m_funcEntries.add(e);
+                i++;
+            }
+        }
+        
+        for (i = 0; i < m_entries.size(); i++) {
+            StringBuffer sb = new StringBuffer();
+            for (String name : entryNames.get(i)) {
+                if (sb.length() > 0) {
+                    sb.append('|');
+                }
+                sb.append(name);
+            }
+            m_entries.get(i).m_name = sb.toString();
+        }
+        
+        /*
+         We find the closest function around each function before the prune
+         since removing functions breaks up the tree.
+         */
+        Map<Node, Integer> index = new IdentityHashMap<Node, Integer>();
+        for (i = 0; i < m_funcs.size(); i++) {
+            index.put(m_funcs.get(i), m_funcEntries.get(i));
+        }
+        
+        for (i = 0; i < m_entries.size(); i++) {
+            for (Node n = outer.get(i).getParent(); n != null; n = n.getParent()) {
+                Integer parent = index.get(n);
+                if (parent != null) {
+                    m_entries.get(i).m_parent = parent;
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the FUNCTION node at the end of an assignment chain.
+     * 
+     * @param func   the function or the assignment chain it's in
+     * 
+     * @return the FUNCTION node or the node itself if the chain doesn't end in a function
+     */
+    private static Node getFunctionNode(Node func)
+    {
+        Node n = func;
+        while (n.getType() == Token.ASSIGN) {
+            n = n.getLastChild();
+        }
+        
+        return n.getType() == Token.FUNCTION ? n : func;
+    }
+    
+    /**
+     * Determine if a node is an ancestor of another node.
+     * 
+     * @param ancestor the possible ancestor
+     * @param node     the node to check
+     * 
+     * @return true if the node is inside the ancestor and false otherwise
+     */
+    private static boolean isAncestor(Node ancestor, Node node)
+    {
+        for (Node n = node.getParent(); n != null; n = n.getParent()) {
+            if (n == ancestor) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Mark the functions the prune operation removed.  A function in an assignment chain
+     * is kept if any node of the chain is kept.
+     * 
+     * @param removed  the removed functions
+     */
+    void setRemoved(Set<Node> removed)
+    {
+        for (int i = 0; i < m_funcs.size(); i++) {
+            if (!removed.contains(m_funcs.get(i))) {
+                m_entries.get(m_funcEntries.get(i)).m_kept = true;
+            }
+        }
+        
+        m_funcs = null;
+        m_funcEntries = null;
+    }
+    
+    /**
+     * Get the functions the prune operation keeps.
+     * 
+     * @return the kept functions
+     */
+    public List<Entry> getKept()
+    {
+        return getEntries(true);
+    }
+    
+    /**
+     * Get the functions the prune operation removes.
+     * 
+     * @return the removed functions
+     */
+    public List<Entry> getRemoved()
+    {
+        return getEntries(false);
+    }
+    
+    private List<Entry> getEntries(boolean kept)
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Entry entry : m_entries) {
+            if (entry.m_kept == kept) {
+                entries.add(entry);
+            }
+        }
+        
+        return Collections.unmodifiableList(entries);
+    }
+    
+    /**
+     * Get the estimated size of the kept functions.
+     * 
+     * @return the size in characters
+     */
+    public long getKeptBytes()
+    {
+        return getBytes(true);
+    }
+    
+    /**
+     * Get the estimated size of the removed functions.
+     * 
+     * @return the size in characters
+     */
+    public long getRemovedBytes()
+    {
+        return getBytes(false);
+    }
+    
+    /**
+     * Get the total size of the library files.
+     * 
+     * @return the size in characters
+     */
+    public long getLibraryBytes()
+    {
+        return m_libraryBytes;
+    }
+    
+    /**
+     * Add up the sizes of the kept or removed functions.  Functions inside another function
+     * with the same status are already counted in the size of that function.
+     * 
+     * @param kept   true to add up the kept functions and false for the removed functions
+     * 
+     * @return the size in characters
+     */
+    private long getBytes(boolean kept)
+    {
+        long bytes = 0;
+        for (Entry entry : m_entries) {
+            if (entry.m_kept == kept && !hasAncestor(entry, kept)) {
+                bytes += entry.m_size;
+            }
+        }
+        
+        return bytes;
+    }
+    
+    private boolean hasAncestor(Entry entry, boolean kept)
+    {
+        for (int i = entry.m_parent; i > -1; i = m_entries.get(i).m_parent) {
+            if (m_entries.get(i).m_kept == kept) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Get this report as JSON.
+     * 
+     * @return the JSON report
+     */
+    public String toJSON()
+    {
+        List<Entry> kept = getKept();
+        List<Entry> removed = getRemoved();
+        
+        StringBuffer sb = new StringBuffer();
+        sb.append("{\n");
+        sb.append("  \"kept_count\": " + kept.size() + ",\n");
+        sb.append("  \"removed_count\": " + removed.size() + ",\n");
+        sb.append("  \"kept_bytes\": " + getKeptBytes() + ",\n");
+        sb.append("  \"removed_bytes\": " + getRemovedBytes() + ",\n");
+        sb.append("  \"library_bytes\": " + getLibraryBytes() + ",\n");
+        sb.append("  \"kept\": ");
+        appendEntries(sb, kept);
+        sb.append(",\n");
+        sb.append("  \"removed\": ");
+        appendEntries(sb, removed);
+        sb.append("\n}\n");
+        
+        return sb.toString();
+    }
+    
+    private static void appendEntries(StringBuffer sb, List<Entry> entries)
+    {
+        if (entries.size() == 0) {
+            sb.append("[]");
+            return;
+        }
+        
+        sb.append("[\n");
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            sb.append("    {\"name\": " + quote(entry.m_name) + ", \"file\": " + quote(entry.m_file) +
+                      ", \"line\": " + entry.m_line + ", \"size\": " + entry.m_size + "}");
+            sb.append(i < entries.size() - 1 ? ",\n" : "\n");
+        }
+        sb.append("  ]");
+    }
+    
+    /**
+     * Quote a string for JSON.
+     * 
+     * @param str    the string to quote
+     * 
+     * @return the quoted string
+     */
+    private static String quote(String str)
+    {
+        if (str == null) {
+            return "null";
+        }
+        
+        StringBuffer sb = new StringBuffer("\"");
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        
+        return sb.append('"').toString();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "AnalysisReport: keeps " + getKept().size() + " functions and removes " + getRemoved().size();
+    }
+}
@@ -0,0 +1,137 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import com.google.common.collect.Lists;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * A BatchJob is a single line in a batch manifest file.  Each job has its own main files,
+ * externs, and output file and all the jobs in a batch share the same library files.
+ */
+class BatchJob
+{
+    @Option(name = "--js",
+        usage = "The javascript filename. You may specify multiple")
+    private List<String> m_js = Lists.newArrayList();
+    
+    @Option(name = "--externs", usage = "The file containing javascript externs. You may specify multiple")
+    private List<String> m_externs = Lists.newArrayList();
+    
+    @Option(name = "--js_output_file",
+        usage = "Primary output filename. If not specified, output is " +
+        "written to stdout")
+    private String m_output = null;
+    
+    private int m_line;
+    
+    /**
+     * Create a new BatchJob.
+     * 
+     * @param line   the line number of this job in the manifest file
+     */
+    BatchJob(int line)
+    {
+        m_line = line;
+    }
+    
+    /**
+     * Get the main JavaScript files for this job.
+     * 
+     * @return the file names
+     */
+    List<String> getJs()
+    {
+        return m_js;
+    }
+    
+    /**
+     * Get the externs files for this job.
+     * 
+     * @return the file names
+     */
+    List<String> getExterns()
+    {
+        return m_externs;
+    }
+    
+    /**
+     * Get the output file for this job.
+     * 
+     * @return the output file name or null if the output should go to stdout
+     */
+    String getOutput()
+    {
+        return m_output;
+    }
+    
+    /**
+     * Read all of the jobs in a batch manifest file.  Each line in the file is one job
+     * and blank lines and lines starting with # are ignored.
+     * 
+     * @param manifest the manifest file
+     * @param charset  the charset of the manifest file
+     * 
+     * @return the list of jobs
+     * @exception CmdLineException
+     *                   if there's an error parsing the arguments of a job
+     * @exception IOException
+     *                   if there is an exception reading the file
+     */
+    static List<BatchJob> readManifest(File manifest, String charset)
+        throws CmdLineException, IOException
+    {
+        List<BatchJob> jobs = Lists.newArrayList();
+        List<String> lines = FileUtils.readLines(manifest, charset);
+        
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            
+            List<String> args = Lists.newArrayList();
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            while (tokenizer.hasMoreTokens()) {
+                args.add(tokenizer.nextToken());
+            }
+            
+            BatchJob job = new BatchJob(i + 1);
+            CmdLineParser parser = new CmdLineParser(job);
+            parser.parseArgument(args.toArray(new String[] {}));
+            jobs.add(job);
+        }
+        
+        return jobs;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "BatchJob " + m_line + ": " + (m_output == null ? "stdout" : m_output);
+    }
+}
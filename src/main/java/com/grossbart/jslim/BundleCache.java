@@ -0,0 +1,349 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * The BundleCache slims libraries on demand for a server which builds bundles for each
+ * page.  Many pages call exactly the same set of library functions and those pages all get
+ * the same pruned library.  This cache finds the names each page calls and only prunes and
+ * compiles the libraries the first time it sees a new set of names.
+ * </p>
+ *
+ * <p>
+ * When more than one thread asks for the same bundle at the same time only the first one
+ * builds it and the others wait for the result.  The cache is limited by the size of the
+ * bundles it holds and removes the least recently used bundles first.  This class is
+ * thread-safe.
+ * </p>
+ */
+public class BundleCache
+{
+    private JSlimEngine m_engine;
+    
+    private long m_maxBytes;
+    private long m_bytes;
+    
+    private long m_hits;
+    private long m_misses;
+    private long m_evictions;
+    
+    /*
+     This map is in access order so the first entry is always the least
+     recently used.  Bundles which are still being built are in the map too
+     so other threads can wait for them.
+     */
+    private LinkedHashMap<String, FutureTask<SlimResult>> m_bundles =
+        new LinkedHashMap<String, FutureTask<SlimResult>>(16, 0.75f, true);
+    
+    /*
+     The sizes we've added to m_bytes.  A bundle can be done before its
+     owner counts it so we only evict the bundles with a size here.
+     */
+    private Map<String, Long> m_sizes = new HashMap<String, Long>();
+    
+    /**
+     * Create a new BundleCache.
+     * 
+     * @param engine   the engine to slim the libraries with
+     * @param maxBytes the maximum size in bytes of all the bundles in this cache
+     */
+    public BundleCache(JSlimEngine engine, long maxBytes)
+    {
+        m_engine = engine;
+        m_maxBytes = maxBytes;
+    }
+    
+    /**
+     * Get the pruned and compiled libraries for a page.  The bundle only contains the
+     * library code and not the code from the main files.
+     * 
+     * @param mainFiles the main files of the page
+     * @param externs   the external references for the page
+     * @param libs      the analyzed library files
+     * 
+     * @return the bundle for this page
+     */
+    public SlimResult getBundle(List<JSFile> mainFiles, List<String> externs, List<LibraryGraph> libs)
+    {
+        Set<String> names = new HashSet<String>();
+        SortedSet<String> calls = m_engine.findCalls(mainFiles, names);
+        for (String extern : externs) {
+            if (extern != null && extern.trim().length() > 0) {
+                calls.add(extern);
+            }
+        }
+        
+        /*
+         The names the pages mention only change the bundle if they're the
+         owner of a member group so those are the only ones in the key.
+         */
+        SortedSet<String> owners = new TreeSet<String>();
+        for (LibraryGraph lib : libs) {
+            for (String owner : lib.getGroupOwners()) {
+                if (names.contains(owner)) {
+                    owners.add(owner);
+                }
+            }
+        }
+        
+        return getBundle(calls, owners, libs);
+    }
+    
+    /**
+     * Get the pruned and compiled libraries for a set of called names.
+     * 
+     * @param calls  the sorted names of the called functions
+     * @param libs   the analyzed library files
+     * 
+     * @return the bundle for this set of names
+     */
+    public SlimResult getBundle(SortedSet<String> calls, List<LibraryGraph> libs)
+    {
+        return getBundle(calls, null, libs);
+    }
+    
+    /**
+     * Get the pruned and compiled libraries for a set of called names and the member
+     * group owners the main files mention.
+     * 
+     * @param calls  the sorted names of the called functions
+     * @param owners the sorted owners the main files mention or null if they aren't known
+     * @param libs   the analyzed library files
+     * 
+     * @return the bundle for this set of names
+     */
+    private SlimResult getBundle(final SortedSet<String> calls, final SortedSet<String> owners,
+                                 final List<LibraryGraph> libs)
+    {
+        String key = getKey(calls, owners, libs);
+        
+        FutureTask<SlimResult> task;
+        boolean isOwner = false;
+        
+        synchronized (this) {
+            task = m_bundles.get(key);
+            if (task == null) {
+                m_misses++;
+                isOwner = true;
+                
+                task = new FutureTask<SlimResult>(new Callable<SlimResult>() {
+                    @Override
+                    public SlimResult call()
+                    {
+                        SlimResult result = m_engine.slimCalls(calls, owners, libs);
+                        String code = m_engine.compile("bundle.js", result.getCode());
+                        return new SlimResult(code, result.getColdCode(), result.getKeptFunctions(),
+                                              result.getTotalFunctionCount());
+                    }
+                });
+                m_bundles.put(key, task);
+            } else {
+                m_hits++;
+            }
+        }
+        
+        if (isOwner) {
+            task.run();
+        }
+        
+        try {
+            SlimResult result = task.get();
+            if (isOwner) {
+                addSize(key, result);
+            }
+            
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (isOwner) {
+                /*
+                 We don't cache failures so the next request can try again.
+                 */
+                synchronized (this) {
+                    m_bundles.remove(key);
+                }
+            }
+            
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    /**
+     * Count the size of a new bundle and remove the least recently used bundles if the
+     * cache is too big.
+     * 
+     * @param key    the key of the new bundle
+     * @param result the new bundle
+     */
+    private synchronized void addSize(String key, SlimResult result)
+    {
+        if (m_bundles.get(key) == null) {
+            return;
+        }
+        
+        long size = getSize(result);
+        m_sizes.put(key, size);
+        m_bytes += size;
+        
+        Iterator<Map.Entry<String, FutureTask<SlimResult>>> it = m_bundles.entrySet().iterator();
+        while (m_bytes > m_maxBytes && it.hasNext()) {
+            Map.Entry<String, FutureTask<SlimResult>> entry = it.next();
+            Long entrySize = m_sizes.remove(entry.getKey());
+            if (entrySize == null) {
+                /*
+                 This bundle is still being built or its owner hasn't
+                 counted it yet.
+                 */
+                continue;
+            }
+            
+            m_bytes -= entrySize;
+            m_evictions++;
+            it.remove();
+        }
+    }
+    
+    /**
+     * Get the estimated memory size of a bundle.
+     * 
+     * @param result the bundle
+     * 
+     * @return the estimated size in bytes
+     */
+    private static long getSize(SlimResult result)
+    {
+        return 2L * result.getCode().length();
+    }
+    
+    /**
+     * Get the cache key for a set of called names, member group owners, and libraries.
+     * The libraries are identified by the hash of their contents.
+     * 
+     * @param calls  the sorted names of the called functions
+     * @param owners the sorted owners the main files mention or null if they aren't known
+     * @param libs   the analyzed library files
+     * 
+     * @return the key
+     */
+    private static String getKey(SortedSet<String> calls, SortedSet<String> owners, List<LibraryGraph> libs)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (LibraryGraph lib : libs) {
+            sb.append(lib.getHash()).append(';');
+        }
+        
+        for (String call : calls) {
+            sb.append(call).append('\n');
+        }
+        
+        if (owners != null) {
+            /*
+             Bundles without the owners keep every member group so they
+             need a different key than bundles with no owners.
+             */
+            sb.append(';');
+            for (String owner : owners) {
+                sb.append(owner).append('\n');
+            }
+        }
+        
+        return LibraryGraph.hash(sb.toString());
+    }
+    
+    /**
+     * Get the number of times a bundle was found in the cache or was already being built.
+     * 
+     * @return the hit count
+     */
+    public synchronized long getHitCount()
+    {
+        return m_hits;
+    }
+    
+    /**
+     * Get the number of times a bundle had to be built.
+     * 
+     * @return the miss count
+     */
+    public synchronized long getMissCount()
+    {
+        return m_misses;
+    }
+    
+    /**
+     * Get the number of bundles removed from the cache to make room for new bundles.
+     * 
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount()
+    {
+        return m_evictions;
+    }
+    
+    /**
+     * Get the number of bundles in the cache.
+     * 
+     * @return the bundle count
+     */
+    public synchronized int getBundleCount()
+    {
+        return m_bundles.size();
+    }
+    
+    /**
+     * Get the estimated size in bytes of all the bundles in the cache.
+     * 
+     * @return the estimated size
+     */
+    public synchronized long getEstimatedSize()
+    {
+        return m_bytes;
+    }
+    
+    /**
+     * Get the maximum size in bytes of all the bundles in the cache.
+     * 
+     * @return the maximum size
+     */
+    public long getMaxSize()
+    {
+        return m_maxBytes;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "BundleCache: " + m_bundles.size() + " bundles, " + m_bytes + " of " + m_maxBytes + " bytes";
+    }
+}
@@ -17,16 +17,23 @@
  ******************************************************************************/
 package com.grossbart.jslim;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * A Call represents a single function call within either the library JavaScript files
  * or the main JavaScript files.  Each call is just the name of the function and a count
- * of the number of times it is called.
+ * of the number of times it is called.  Calls made on a named object like
+ * <code>_.each()</code> also remember the names of those objects.
  */
 public class Call
 {
     private int m_count = 1;
     private String m_name;
-    
+    private Set<String> m_receivers;
+    private boolean m_anyReceiver = true;
+
     /**
      * Create a new Call object.
      * 
@@ -37,6 +44,104 @@ public class Call
         m_name = name;
     }
     
+    /**
+     * Create a new Call object with a starting count.
+     * 
+     * @param name   the name of this call
+     * @param count  the number of times this call was made
+     */
+    public Call(String name, int count)
+    {
+        m_name = name;
+        m_count = count;
+    }
+    
+    /**
+     * Create a new Call object made on the object with the specified name.
+     * 
+     * @param name     the name of this call
+     * @param receiver the name of the object the function is called on or null if the
+     *                 call could be on any object
+     */
+    Call(String name, String receiver)
+    {
+        m_name = name;
+        m_anyReceiver = false;
+        addReceiver(receiver);
+    }
+    
+    /**
+     * Create a copy of the specified call.
+     * 
+     * @param call   the call to copy
+     */
+    Call(Call call)
+    {
+        m_name = call.m_name;
+        m_count = call.m_count;
+        m_anyReceiver = false;
+        addReceivers(call);
+    }
+    
+    /**
+     * Add the name of an object this function is called on.
+     * 
+     * @param receiver the name of the object or null if the call could be on any object
+     */
+    void addReceiver(String receiver)
+    {
+        if (receiver == null) {
+            m_anyReceiver = true;
+        } else {
+            if (m_receivers == null) {
+                m_receivers = new HashSet<String>();
+            }
+            m_receivers.add(receiver);
+        }
+    }
+    
+    /**
+     * Add all of the objects the specified call is made on to this call.
+     * 
+     * @param call   the call with the same name
+     */
+    void addReceivers(Call call)
+    {
+        if (call.m_anyReceiver) {
+            m_anyReceiver = true;
+        }
+        
+        if (call.m_receivers != null) {
+            for (String receiver : call.m_receivers) {
+                addReceiver(receiver);
+            }
+        }
+    }
+    
+    /**
+     * Determine if this function might be called on an object we can't name.
+     * 
+     * @return true if the call could be on any object and false otherwise
+     */
+    boolean hasAnyReceiver()
+    {
+        return m_anyReceiver;
+    }
+    
+    /**
+     * Get the names of the objects this function is called on.
+     * 
+     * @return the names of the objects
+     */
+    Set<String> getReceivers()
+    {
+        if (m_receivers == null) {
+            return Collections.emptySet();
+        }
+        
+        return m_receivers;
+    }
+
     /**
      * Get the count of this call.
      * 
@@ -57,6 +162,19 @@ public class Call
         return m_count++;
     }
     
+    /**
+     * Increment the call count.
+     * 
+     * @param inc    the amount to increment
+     * 
+     * @return the new call count
+     */
+    public int incCount(int inc)
+    {
+        m_count += inc;
+        return m_count;
+    }
+    
     /**
      * Decrement the call count.
      * 
@@ -0,0 +1,110 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The CallList is a list of calls which can also find a call by name without looking
+ * through the whole list.  Large libraries make hundreds of thousands of calls and looking
+ * through the list for each one made the analysis quadratic.  Calls can only be added to
+ * this list and never removed.
+ */
+class CallList extends AbstractList<Call>
+{
+    private List<Call> m_calls = new ArrayList<Call>();
+    private Map<String, Call> m_names = new HashMap<String, Call>();
+    
+    /*
+     The lists from main files also have the names the file mentions.
+     */
+    private Set<String> m_mainNames;
+    
+    @Override
+    public boolean add(Call call)
+    {
+        if (!m_names.containsKey(call.getName())) {
+            /*
+             We keep the first call with each name the same way a search
+             through the list would.
+             */
+            m_names.put(call.getName(), call);
+        }
+        
+        return m_calls.add(call);
+    }
+    
+    @Override
+    public Call get(int index)
+    {
+        return m_calls.get(index);
+    }
+    
+    @Override
+    public int size()
+    {
+        return m_calls.size();
+    }
+    
+    /**
+     * Get the first call in this list with the specified name.
+     * 
+     * @param name   the name of the call
+     * 
+     * @return the call or null if there is no call with that name
+     */
+    Call getCall(String name)
+    {
+        return m_names.get(name);
+    }
+    
+    /**
+     * Get the number of distinct names in this list.
+     * 
+     * @return the name count
+     */
+    int getNameCount()
+    {
+        return m_names.size();
+    }
+    
+    /**
+     * Get the names the main file for this list mentions.
+     * 
+     * @return the names or null if this list didn't come from a main file
+     */
+    Set<String> getMainNames()
+    {
+        return m_mainNames;
+    }
+    
+    /**
+     * Set the names the main file for this list mentions.
+     * 
+     * @param names  the names
+     */
+    void setMainNames(Set<String> names)
+    {
+        m_mainNames = names;
+    }
+}
@@ -0,0 +1,252 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.JSSourceFile;
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * <p>
+ * A ColdChunk holds the library functions a prune removed so the page can still load them
+ * if the analysis was wrong.  Each removed function is replaced with a stub like this:
+ * </p>
+ *
+ * <pre>
+ * function trim(text) {
+ *     return (trim.jslimCold || (trim.jslimCold = eval(jslimCold.load("app.cold.json", 3, "trim"))))
+ *         .apply(this, arguments);
+ * }
+ * </pre>
+ *
+ * <p>
+ * The first call to any stub loads the cold chunk from the URL with a synchronous request.
+ * The chunk is a JSON object with the source of each removed function.  The stub evaluates
+ * the source right where the function was so the real function sees the same variables,
+ * and then calls it.  The loader adds the name of each function it loads to
+ * <code>jslimCold.hits</code> so you can add those names to the externs.
+ * </p>
+ *
+ * <p>
+ * The real functions use the local variables around them by name so the bundle can't be
+ * compiled with a level which renames or removes local variables.
+ * </p>
+ */
+class ColdChunk
+{
+    private static final String LOADER =
+        "var jslimCold = window.jslimCold || {\n" +
+        "    chunks: {},\n" +
+        "    hits: [],\n" +
+        "    seen: {},\n" +
+        "    load: function(url, id, name) {\n" +
+        "        if (!this.chunks[url]) {\n" +
+        "            var xhr = window.XMLHttpRequest ? new XMLHttpRequest() : new ActiveXObject(\"Microsoft.XMLHTTP\");\n" +
+        "            xhr.open(\"GET\", url, false);\n" +
+        "            xhr.send(null);\n" +
+        "            if (xhr.status !== 200 && xhr.status !== 0) {\n" +
+        "                throw new Error(\"Unable to load the cold chunk \" + url + \": \" + xhr.status);\n" +
+        "            }\n" +
+        "            this.chunks[url] = window.JSON ? JSON.parse(xhr.responseText) :\n" +
+        "                new Function(\"return \" + xhr.responseText)();\n" +
+        "        }\n" +
+        "        if (!this.seen[name]) {\n" +
+        "            this.seen[name] = true;\n" +
+        "            this.hits.push(name);\n" +
+        "        }\n" +
+        "        return \"(\" + this.chunks[url][id] + \")\";\n" +
+        "    }\n" +
+        "};\n";
+    
+    private String m_url;
+    private List<Node> m_funcs = new ArrayList<Node>();
+    private Set<Node> m_stubs = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    
+    /**
+     * Create a new ColdChunk.
+     * 
+     * @param url    the URL the page loads the cold chunk from
+     */
+    ColdChunk(String url)
+    {
+        m_url = url;
+    }
+    
+    /**
+     * Move a removed function into this chunk and turn it into a stub.  The node stays in
+     * the tree so everything which referenced the function gets the stub.  The real
+     * function gets a new node with the original children so functions nested in it can
+     * still be turned into stubs later.
+     * 
+     * @param func   the FUNCTION node
+     * @param name   the name of the function to record when the stub is called
+     */
+    void addFunction(Node func, String name)
+    {
+        int id = m_funcs.size();
+        
+        Node real = new Node(Token.FUNCTION);
+        real.copyInformationFrom(func);
+        while (func.hasChildren()) {
+            real.addChildToBack(func.removeFirstChild());
+        }
+        m_funcs.add(real);
+        
+        /*
+         The stub keeps the real function on itself so it needs a name to
+         find itself.  Anonymous functions get a name only the stub uses.
+         */
+        String self = real.getFirstChild().getString();
+        if (self.length() == 0) {
+            self = "jslimCold$" + id;
+        }
+        
+        Node load = new Node(Token.CALL, getProp(Node.newString(Token.NAME, "jslimCold"), "load"));
+        load.addChildToBack(Node.newString(m_url));
+        load.addChildToBack(Node.newNumber(id));
+        load.addChildToBack(Node.newString(name));
+        
+        /*
+         This has to be a direct call to eval so the function source is
+         evaluated in the scope of the stub.  Without the direct eval flag
+         the code printer writes (0, eval) which is an indirect call.
+         */
+        Node evalName = Node.newString(Token.NAME, "eval");
+        evalName.putBooleanProp(Node.DIRECT_EVAL, true);
+        Node eval = new Node(Token.CALL, evalName, load);
+        eval.putBooleanProp(Node.FREE_CALL, true);
+        Node cached = new Node(Token.OR, getProp(Node.newString(Token.NAME, self), "jslimCold"),
+                               new Node(Token.ASSIGN, getProp(Node.newString(Token.NAME, self), "jslimCold"), eval));
+        
+        Node apply = new Node(Token.CALL, getProp(cached, "apply"));
+        apply.addChildToBack(new Node(Token.THIS));
+        apply.addChildToBack(Node.newString(Token.NAME, "arguments"));
+        
+        func.addChildToBack(Node.newString(Token.NAME, self));
+        func.addChildToBack(real.getFirstChild().getNext().cloneTree());
+        func.addChildToBack(new Node(Token.BLOCK, new Node(Token.RETURN, apply)));
+        func.copyInformationFromForTree(real);
+        
+        m_stubs.add(func);
+    }
+    
+    /**
+     * Determine if the specified node is a stub from this chunk.  The calls in a stub are
+     * never in the call counts.
+     * 
+     * @param n      the node to check
+     * 
+     * @return true if the node is a stub and false otherwise
+     */
+    boolean isStub(Node n)
+    {
+        return m_stubs.contains(n);
+    }
+    
+    /**
+     * Create a property access.
+     * 
+     * @param obj    the object
+     * @param prop   the name of the property
+     * 
+     * @return the GETPROP node
+     */
+    private static Node getProp(Node obj, String prop)
+    {
+        return new Node(Token.GETPROP, obj, Node.newString(prop));
+    }
+    
+    /**
+     * Determine if this chunk has any functions.
+     * 
+     * @return true if at least one function was replaced with a stub and false otherwise
+     */
+    boolean hasFunctions()
+    {
+        return !m_funcs.isEmpty();
+    }
+    
+    /**
+     * Get the loader the stubs call.  The loader goes before the pruned libraries.
+     * 
+     * @return the loader code
+     */
+    String getLoader()
+    {
+        return LOADER;
+    }
+    
+    /**
+     * Get the contents of the cold chunk.  This is a JSON object with the source of each
+     * removed function by the ID from its stub.
+     * 
+     * @param options the options for generating the code
+     * 
+     * @return the JSON
+     */
+    String getCode(CompilerOptions options)
+    {
+        Compiler compiler = new Compiler();
+        
+        JSSourceFile extern[] = {JSSourceFile.fromCode("externs.js", "")};
+        compiler.init(extern, new JSSourceFile[0], options);
+        
+        StringBuffer sb = new StringBuffer();
+        sb.append("{");
+        for (int i = 0; i < m_funcs.size(); i++) {
+            Compiler.CodeBuilder cb = new Compiler.CodeBuilder();
+            compiler.toSource(cb, 0, m_funcs.get(i));
+            
+            /*
+             The code printer ends every statement with a semicolon, but the
+             loader puts the function in parentheses.
+             */
+            String code = cb.toString().trim();
+            if (code.endsWith(";")) {
+                code = code.substring(0, code.length() - 1);
+            }
+            
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("\n");
+            sb.append(JSONObject.quote(Integer.toString(i)));
+            sb.append(":");
+            sb.append(JSONObject.quote(code));
+        }
+        sb.append("\n}\n");
+        
+        return sb.toString();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "ColdChunk: " + m_url + " (" + m_funcs.size() + " functions)";
+    }
+}
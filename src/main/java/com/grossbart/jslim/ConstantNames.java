@@ -0,0 +1,673 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * <p>
+ * ConstantNames works out the strings a computed property name can be.  Libraries often
+ * define functions in a loop like this:
+ * </p>
+ *
+ * <pre>
+ * jQuery.each([ "Height", "Width" ], function( i, name ) {
+ *     jQuery.fn[ "inner" + name ] = function() { ... };
+ * });
+ * </pre>
+ *
+ * <p>
+ * The name of that function is <code>innerHeight</code> or <code>innerWidth</code>.  We
+ * follow strings through concatenation, local variables, <code>toLowerCase</code> and
+ * <code>toUpperCase</code>, and the parameters of callbacks passed to <code>each</code>,
+ * <code>forEach</code>, and <code>map</code> with a literal array, a literal object, or a
+ * literal string split into an array.  Array methods like <code>forEach</code> pass the
+ * value and then the index.  For an iterator like <code>jQuery.each(collection,
+ * callback)</code> we look at how its definition in the libraries calls the callback.
+ * <code>callback.call(obj[i], i, obj[i])</code> passes the index first and
+ * <code>callback(obj[key], key)</code> passes the value first.  If we can't find the
+ * definition or can't tell how it calls the callback then the parameters can be the
+ * index, key, or value.  Anything we can't follow makes the whole name unknown.
+ * </p>
+ */
+class ConstantNames
+{
+    private static final int MAX_NAMES = 64;
+    private static final Set<String> ITERATORS = new HashSet<String>();
+    
+    static {
+        ITERATORS.add("each");
+        ITERATORS.add("forEach");
+        ITERATORS.add("map");
+    }
+    
+    private FunctionAliases m_vars;
+    private Map<Node, Set<String>> m_names = new IdentityHashMap<Node, Set<String>>();
+    
+    /**
+     * Create a new ConstantNames.
+     * 
+     * @param vars   the variables of the scripts or null to only follow literal strings
+     */
+    ConstantNames(FunctionAliases vars)
+    {
+        m_vars = vars;
+    }
+    
+    /**
+     * Get the strings the specified expression can be.
+     * 
+     * @param n      the expression
+     * 
+     * @return the strings sorted by name or null if we can't tell what the expression is
+     */
+    Set<String> getNames(Node n)
+    {
+        if (!m_names.containsKey(n)) {
+            Set<String> names = eval(n, new IdentityHashMap<Node, Set<String>>());
+            m_names.put(n, names == null ? null : Collections.unmodifiableSet(names));
+        }
+        
+        return m_names.get(n);
+    }
+    
+    /**
+     * Find the strings an expression can be.
+     * 
+     * @param n       the expression
+     * @param visited the variables we're working on for each scope so we can stop at
+     *                cycles
+     * 
+     * @return the strings or null if we can't tell
+     */
+    private Set<String> eval(Node n, Map<Node, Set<String>> visited)
+    {
+        Set<String> names = new TreeSet<String>();
+        switch (n.getType()) {
+            case Token.STRING:
+                names.add(n.getString());
+                return names;
+            case Token.NUMBER:
+                double num = n.getDouble();
+                if (num != (long) num) {
+                    return null;
+                }
+                names.add(Long.toString((long) num));
+                return names;
+            case Token.ADD:
+                Set<String> left = eval(n.getFirstChild(), visited);
+                Set<String> right = left == null ? null : eval(n.getLastChild(), visited);
+                if (right == null || left.size() * right.size() > MAX_NAMES) {
+                    return null;
+                }
+                
+                for (String l : left) {
+                    for (String r : right) {
+                        names.add(l + r);
+                    }
+                }
+                return names;
+            case Token.HOOK:
+                return union(eval(n.getFirstChild().getNext(), visited), eval(n.getLastChild(), visited));
+            case Token.OR:
+            case Token.AND:
+                return union(eval(n.getFirstChild(), visited), eval(n.getLastChild(), visited));
+            case Token.ASSIGN:
+            case Token.COMMA:
+                return eval(n.getLastChild(), visited);
+            case Token.CALL:
+                return evalCase(n, visited);
+            case Token.NAME:
+                return evalName(n, visited);
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Find the strings a <code>toLowerCase()</code> or <code>toUpperCase()</code> call can
+     * return.
+     * 
+     * @param call    the CALL node
+     * @param visited the variables we're working on
+     * 
+     * @return the strings or null if this isn't one of those calls or we can't tell
+     */
+    private Set<String> evalCase(Node call, Map<Node, Set<String>> visited)
+    {
+        Node callee = call.getFirstChild();
+        if (callee.getType() != Token.GETPROP || callee.getNext() != null) {
+            return null;
+        }
+        
+        String method = callee.getLastChild().getString();
+        if (!"toLowerCase".equals(method) && !"toUpperCase".equals(method)) {
+            return null;
+        }
+        
+        Set<String> strings = eval(callee.getFirstChild(), visited);
+        if (strings == null) {
+            return null;
+        }
+        
+        Set<String> names = new TreeSet<String>();
+        for (String s : strings) {
+            names.add("toLowerCase".equals(method) ? s.toLowerCase() : s.toUpperCase());
+        }
+        return names;
+    }
+    
+    /**
+     * Find the strings a variable can be.
+     * 
+     * @param name    the NAME node
+     * @param visited the variables we're working on
+     * 
+     * @return the strings or null if we can't tell
+     */
+    private Set<String> evalName(Node name, Map<Node, Set<String>> visited)
+    {
+        if (m_vars == null) {
+            return null;
+        }
+        
+        Node scope = m_vars.getScope(name);
+        if (scope.getType() != Token.FUNCTION) {
+            /*
+             Any other script could change a global variable.
+             */
+            return null;
+        }
+        
+        Set<String> working = visited.get(scope);
+        if (working == null) {
+            working = new HashSet<String>();
+            visited.put(scope, working);
+        }
+        
+        if (!working.add(name.getString())) {
+            return null;
+        }
+        
+        Set<String> names = new TreeSet<String>();
+        int param = getParamIndex(scope, name.getString());
+        if (param > -1) {
+            names = union(names, evalParam(scope, param, visited));
+        } else if (m_vars.getValues(name).isEmpty()) {
+            /*
+             The variable is never assigned so it's undefined.
+             */
+            names = null;
+        }
+        
+        for (Node value : m_vars.getValues(name)) {
+            names = union(names, eval(value, visited));
+        }
+        
+        working.remove(name.getString());
+        return names;
+    }
+    
+    /**
+     * Find the strings a callback parameter can be.
+     * 
+     * @param func    the FUNCTION node
+     * @param param   the index of the parameter
+     * @param visited the variables we're working on
+     * 
+     * @return the strings or null if this function isn't an iteration callback or we
+     *         can't tell
+     */
+    private Set<String> evalParam(Node func, int param, Map<Node, Set<String>> visited)
+    {
+        Node call = func.getParent();
+        if (param > 1 || call == null || call.getType() != Token.CALL || call.getFirstChild() == func) {
+            return null;
+        }
+        
+        Node callee = call.getFirstChild();
+        if (callee.getType() != Token.GETPROP || !ITERATORS.contains(callee.getLastChild().getString())) {
+            return null;
+        }
+        
+        Node collection;
+        boolean keys;
+        boolean values;
+        if (callee.getNext() == func && func.getNext() == null) {
+            /*
+             [ "Height", "Width" ].forEach(function(name) { ... })
+             */
+            collection = callee.getFirstChild();
+            keys = param == 1;
+            values = param == 0;
+        } else if (callee.getNext() != null && callee.getNext().getNext() == func) {
+            /*
+             jQuery.each([ "Height", "Width" ], function(i, name) { ... })
+             */
+            collection = callee.getNext();
+            Boolean keyFirst = isKeyFirst(callee, 1, call.getChildCount() - 1);
+            if (keyFirst == null) {
+                keys = true;
+                values = true;
+            } else {
+                keys = keyFirst.booleanValue() == (param == 0);
+                values = !keys;
+            }
+        } else {
+            return null;
+        }
+        
+        return evalCollection(collection, keys, values, visited);
+    }
+    
+    /**
+     * Determine the order of the callback parameters for an iterator like
+     * <code>jQuery.each(collection, callback)</code> from the definitions of the iterator
+     * in the libraries.  Every definition must call the callback the same way.
+     * 
+     * @param callee the GETPROP node of the iterator
+     * @param arg    the index of the callback in the arguments of the call
+     * @param args   the number of arguments the call passes
+     * 
+     * @return true if the callback gets the index or key first, false if it gets the value
+     *         first, and null if we can't tell
+     */
+    private Boolean isKeyFirst(Node callee, int arg, int args)
+    {
+        String name = FunctionAliases.getQualifiedName(callee);
+        List<Node> defs = new ArrayList<Node>();
+        if (m_vars == null || name == null ||
+            !addDefinitions(name, defs, Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>()))) {
+            return null;
+        }
+        
+        Boolean keyFirst = null;
+        for (Node def : defs) {
+            Boolean order = getCallbackOrder(def, arg, args);
+            if (order == null || (keyFirst != null && !keyFirst.equals(order))) {
+                return null;
+            }
+            keyFirst = order;
+        }
+        
+        return keyFirst;
+    }
+    
+    /**
+     * Add the functions a property can hold.  We follow assignment chains and other
+     * properties and variables, like <code>jQuery.each = Lib.each</code>.
+     * 
+     * @param name    the name of the property
+     * @param defs    the list to add the FUNCTION nodes to
+     * @param visited the values we've already added so we can stop at cycles
+     * 
+     * @return true if every value of the property is a function we can see and false
+     *         otherwise
+     */
+    private boolean addDefinitions(String name, List<Node> defs, Set<Node> visited)
+    {
+        List<Node> values = m_vars.getPropertyValues(name);
+        if (values.isEmpty()) {
+            return false;
+        }
+        
+        for (Node value : values) {
+            if (!addDefinition(value, defs, visited)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Add the functions a value can be.
+     * 
+     * @param value   the value
+     * @param defs    the list to add the FUNCTION nodes to
+     * @param visited the values we've already added
+     * 
+     * @return true if the value is a function we can see and false otherwise
+     */
+    private boolean addDefinition(Node value, List<Node> defs, Set<Node> visited)
+    {
+        if (!visited.add(value)) {
+            return true;
+        }
+        
+        Node n = value;
+        while (n.getType() == Token.ASSIGN) {
+            n = n.getLastChild();
+        }
+        
+        if (n.getType() == Token.FUNCTION) {
+            defs.add(n);
+            return true;
+        } else if (n.getType() == Token.GETPROP) {
+            String name = FunctionAliases.getQualifiedName(n);
+            return name != null && addDefinitions(name, defs, visited);
+        } else if (n.getType() == Token.NAME) {
+            List<Node> values = m_vars.getValues(n);
+            if (values.isEmpty()) {
+                return false;
+            }
+            
+            for (Node v : values) {
+                if (!addDefinition(v, defs, visited)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Find the order an iterator passes the index or key and the value to its callback.
+     * The definition has to call the callback with the index or key and the element at
+     * that index, like <code>callback(i, obj[i])</code> or
+     * <code>callback.call(obj[key], obj[key], key)</code>.  Passing the callback on to the
+     * <code>forEach</code> or <code>map</code> method of an array passes the value first.
+     * 
+     * @param def    the FUNCTION node of the iterator
+     * @param arg    the index of the callback parameter
+     * @param args   the number of arguments the call passes
+     * 
+     * @return true if the callback gets the index or key first, false if it gets the value
+     *         first, and null if we can't tell
+     */
+    private Boolean getCallbackOrder(Node def, int arg, int args)
+    {
+        List<String> params = new ArrayList<String>();
+        for (Node param = def.getFirstChild().getNext().getFirstChild(); param != null; param = param.getNext()) {
+            params.add(param.getString());
+        }
+        
+        if (arg >= params.size()) {
+            return null;
+        }
+        
+        List<Node> uses = new ArrayList<Node>();
+        findUses(def.getLastChild(), params.get(arg), def, uses);
+        
+        Boolean keyFirst = null;
+        for (Node use : uses) {
+            Node parent = use.getParent();
+            Boolean order;
+            
+            if (parent.getType() == Token.CALL && parent.getFirstChild() == use) {
+                /*
+                 callback(i, obj[i])
+                 */
+                order = getArgumentOrder(use.getNext());
+            } else if (parent.getType() == Token.GETPROP && parent.getParent().getType() == Token.CALL &&
+                       parent.getParent().getFirstChild() == parent &&
+                       "call".equals(parent.getLastChild().getString())) {
+                /*
+                 callback.call(obj[i], i, obj[i])
+                 */
+                Node thisArg = parent.getNext();
+                order = thisArg == null ? null : getArgumentOrder(thisArg.getNext());
+            } else if (parent.getType() == Token.GETPROP && parent.getParent().getType() == Token.CALL &&
+                       parent.getParent().getFirstChild() == parent &&
+                       "apply".equals(parent.getLastChild().getString())) {
+                /*
+                 jQuery.each calls callback.apply(obj[i], args) when the caller
+                 passes the args parameter.  If this call doesn't pass it then
+                 that branch doesn't tell us anything.
+                 */
+                Node list = parent.getNext() == null ? null : parent.getNext().getNext();
+                if (list != null && list.getType() == Token.NAME && params.indexOf(list.getString()) >= args &&
+                    m_vars.getScope(list) == def) {
+                    continue;
+                }
+                return null;
+            } else if (parent.getType() == Token.CALL && use == parent.getFirstChild().getNext() &&
+                       parent.getFirstChild().getType() == Token.GETPROP &&
+                       ("forEach".equals(parent.getFirstChild().getLastChild().getString()) ||
+                        "map".equals(parent.getFirstChild().getLastChild().getString()))) {
+                /*
+                 obj.forEach(callback, context)
+                 */
+                order = Boolean.FALSE;
+            } else if (parent.getType() == Token.NOT || parent.getType() == Token.TYPEOF ||
+                       parent.getType() == Token.IF || parent.getType() == Token.EQ ||
+                       parent.getType() == Token.NE || parent.getType() == Token.SHEQ ||
+                       parent.getType() == Token.SHNE) {
+                /*
+                 Checking the callback doesn't call it.
+                 */
+                continue;
+            } else {
+                return null;
+            }
+            
+            if (order == null || (keyFirst != null && !keyFirst.equals(order))) {
+                return null;
+            }
+            keyFirst = order;
+        }
+        
+        return keyFirst;
+    }
+    
+    /**
+     * Find the order of the index or key and the element in the arguments of a call to a
+     * callback.
+     * 
+     * @param first  the first argument or null if there aren't any
+     * 
+     * @return true if the index or key comes first, false if the element comes first, and
+     *         null if the first two arguments aren't an index and its element
+     */
+    private static Boolean getArgumentOrder(Node first)
+    {
+        if (first == null || first.getNext() == null) {
+            return null;
+        }
+        
+        if (isElement(first.getNext(), first)) {
+            return Boolean.TRUE;
+        } else if (isElement(first, first.getNext())) {
+            return Boolean.FALSE;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Determine if an expression reads the element of a collection at the specified index
+     * like <code>obj[i]</code> or <code>obj[i++]</code>.
+     * 
+     * @param elem   the expression
+     * @param index  the index
+     * 
+     * @return true if the expression is the element at the index and false otherwise
+     */
+    private static boolean isElement(Node elem, Node index)
+    {
+        if (elem.getType() != Token.GETELEM || index.getType() != Token.NAME) {
+            return false;
+        }
+        
+        Node n = elem.getLastChild();
+        if (n.getType() == Token.INC || n.getType() == Token.DEC) {
+            n = n.getFirstChild();
+        }
+        
+        return n.getType() == Token.NAME && n.getString().equals(index.getString());
+    }
+    
+    /**
+     * Find the places a parameter is used in a function and the functions inside it which
+     * don't declare their own variable with the same name.
+     * 
+     * @param node   the node to search
+     * @param name   the name of the parameter
+     * @param def    the FUNCTION node which declares the parameter
+     * @param uses   the list to add the NAME nodes to
+     */
+    private void findUses(Node node, String name, Node def, List<Node> uses)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if (n.getType() == Token.NAME && name.equals(n.getString()) && m_vars.getScope(n) == def) {
+                uses.add(n);
+            }
+            
+            findUses(n, name, def, uses);
+        }
+    }
+    
+    /**
+     * Find the indexes or keys and the values of a literal array, literal object, or
+     * literal string split into an array.
+     * 
+     * @param n       the collection
+     * @param keys    true to add the indexes or keys
+     * @param values  true to add the values
+     * @param visited the variables we're working on
+     * 
+     * @return the strings or null if we can't tell
+     */
+    private Set<String> evalCollection(Node n, boolean keys, boolean values, Map<Node, Set<String>> visited)
+    {
+        Set<String> names = new TreeSet<String>();
+        if (n.getType() == Token.ARRAYLIT) {
+            int i = 0;
+            for (Node c = n.getFirstChild(); c != null && names != null; c = c.getNext()) {
+                if (keys) {
+                    names.add(Integer.toString(i));
+                }
+                if (values) {
+                    names = union(names, evalElement(c, visited));
+                }
+                i++;
+            }
+        } else if (n.getType() == Token.OBJECTLIT) {
+            for (Node c = n.getFirstChild(); c != null && names != null; c = c.getNext()) {
+                if (c.getType() != Token.STRING) {
+                    return null;
+                }
+                if (keys) {
+                    names.add(c.getString());
+                }
+                if (values) {
+                    names = union(names, evalElement(c.getFirstChild(), visited));
+                }
+            }
+        } else if (n.getType() == Token.CALL && n.getFirstChild().getType() == Token.GETPROP &&
+                   "split".equals(n.getFirstChild().getLastChild().getString()) &&
+                   n.getChildCount() == 2) {
+            /*
+             "blur focus click".split(" ")
+             */
+            Set<String> strings = eval(n.getFirstChild().getFirstChild(), visited);
+            Set<String> sep = eval(n.getLastChild(), visited);
+            if (strings == null || sep == null || strings.size() != 1 || sep.size() != 1 ||
+                sep.iterator().next().length() == 0) {
+                return null;
+            }
+            
+            String[] parts = strings.iterator().next().split(Pattern.quote(sep.iterator().next()), -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (keys) {
+                    names.add(Integer.toString(i));
+                }
+                if (values) {
+                    names.add(parts[i]);
+                }
+            }
+        } else {
+            return null;
+        }
+        
+        if (names != null && names.size() > MAX_NAMES) {
+            return null;
+        }
+        return names;
+    }
+    
+    /**
+     * Find the strings an element of a literal collection can be.  Functions and other
+     * literal objects can't be the name of a function so they don't add any names.
+     * 
+     * @param n       the element
+     * @param visited the variables we're working on
+     * 
+     * @return the strings or null if we can't tell
+     */
+    private Set<String> evalElement(Node n, Map<Node, Set<String>> visited)
+    {
+        if (n.getType() == Token.FUNCTION || n.getType() == Token.OBJECTLIT || n.getType() == Token.ARRAYLIT) {
+            return new TreeSet<String>();
+        }
+        
+        return eval(n, visited);
+    }
+    
+    /**
+     * Get the index of a parameter of a function.
+     * 
+     * @param func   the FUNCTION node
+     * @param name   the name of the parameter
+     * 
+     * @return the index or -1 if the function doesn't have a parameter with this name
+     */
+    private static int getParamIndex(Node func, String name)
+    {
+        int i = 0;
+        for (Node param = func.getFirstChild().getNext().getFirstChild(); param != null; param = param.getNext()) {
+            if (name.equals(param.getString())) {
+                return i;
+            }
+            i++;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Add two sets of strings.
+     * 
+     * @param a      the first set or null if it's unknown
+     * @param b      the second set or null if it's unknown
+     * 
+     * @return the first set with the second set added or null if either is unknown
+     */
+    private static Set<String> union(Set<String> a, Set<String> b)
+    {
+        if (a == null || b == null || a.size() + b.size() > MAX_NAMES) {
+            return null;
+        }
+        
+        a.addAll(b);
+        return a;
+    }
+}
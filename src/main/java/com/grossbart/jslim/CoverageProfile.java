@@ -0,0 +1,295 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * A CoverageProfile is the function coverage from one run of a page in a browser.  It
+ * tells JSlim which library functions really ran so it can drop the ones which are
+ * reachable but never run.  We read two formats:
+ * </p>
+ *
+ * <ul>
+ * <li>The export from the Coverage panel in the Chrome DevTools and the result of
+ * <code>page.coverage.stopJSCoverage()</code> in Puppeteer.  That's an array of scripts
+ * with a <code>url</code> and the <code>ranges</code> of the code which ran.</li>
+ * <li>The V8 precise coverage from <code>Profiler.takePreciseCoverage</code> or
+ * <code>NODE_V8_COVERAGE</code>.  That's an array of scripts, or an object with the array
+ * in <code>result</code>, with a <code>url</code> and the <code>functions</code> with the
+ * call count of each range.</li>
+ * </ul>
+ *
+ * <p>
+ * Scripts are matched to library files by the last part of the URL so
+ * <code>http://example.com/js/jquery.js?v=2</code> is <code>jquery.js</code>.  The offsets
+ * in the coverage are offsets in the library file so the coverage must come from a page
+ * which loads the original library files and not the slimmed ones.
+ * </p>
+ */
+public final class CoverageProfile
+{
+    /**
+     * A Range is a part of a script and the number of times it ran.
+     */
+    private static final class Range
+    {
+        private int m_start;
+        private int m_end;
+        private long m_count;
+        
+        private Range(int start, int end, long count)
+        {
+            m_start = start;
+            m_end = end;
+            m_count = count;
+        }
+    }
+    
+    /**
+     * A Script is the coverage of one script on the page.
+     */
+    private static class Script
+    {
+        private List<Range> m_ranges = new ArrayList<Range>();
+        private int m_length = -1;
+    }
+    
+    private String m_name;
+    private Map<String, List<Script>> m_scripts = new HashMap<String, List<Script>>();
+    
+    /**
+     * Create a new CoverageProfile.
+     * 
+     * @param name   the name of the profile for error messages
+     */
+    private CoverageProfile(String name)
+    {
+        m_name = name;
+    }
+    
+    /**
+     * Read a coverage file.
+     * 
+     * @param file    the file to read
+     * @param charset the charset of the file
+     * 
+     * @return the profile
+     * @exception IOException
+     *                   if there's an error reading the file or it isn't coverage JSON
+     */
+    public static CoverageProfile read(File file, String charset)
+        throws IOException
+    {
+        return parse(file.getName(), FileUtils.readFileToString(file, charset));
+    }
+    
+    /**
+     * Parse coverage JSON.
+     * 
+     * @param name   the name of the profile for error messages
+     * @param json   the coverage JSON
+     * 
+     * @return the profile
+     * @exception IOException
+     *                   if the text isn't coverage JSON
+     */
+    public static CoverageProfile parse(String name, String json)
+        throws IOException
+    {
+        CoverageProfile profile = new CoverageProfile(name);
+        
+        try {
+            String text = json.trim();
+            JSONArray scripts;
+            if (text.startsWith("{")) {
+                scripts = new JSONObject(text).getJSONArray("result");
+            } else {
+                scripts = new JSONArray(text);
+            }
+            
+            for (int i = 0; i < scripts.length(); i++) {
+                profile.addScript(scripts.getJSONObject(i));
+            }
+        } catch (JSONException e) {
+            throw new IOException("The coverage file " + name + " isn't valid coverage JSON: " + e.getMessage());
+        }
+        
+        return profile;
+    }
+    
+    /**
+     * Add the coverage of one script.
+     * 
+     * @param json   the script coverage in either format
+     * 
+     * @exception JSONException
+     *                   if the script doesn't have the fields we need
+     */
+    private void addScript(JSONObject json)
+        throws JSONException
+    {
+        Script script = new Script();
+        
+        JSONArray functions = json.optJSONArray("functions");
+        if (functions != null) {
+            /*
+             V8 precise coverage has the count of each range.  The first range
+             of each function is the whole function and the others are the
+             blocks inside it which ran a different number of times.
+             */
+            for (int i = 0; i < functions.length(); i++) {
+                JSONArray ranges = functions.getJSONObject(i).getJSONArray("ranges");
+                for (int j = 0; j < ranges.length(); j++) {
+                    JSONObject range = ranges.getJSONObject(j);
+                    script.m_ranges.add(new Range(range.getInt("startOffset"), range.getInt("endOffset"),
+                                                  range.getLong("count")));
+                }
+            }
+        } else {
+            /*
+             The DevTools format only has the ranges which ran so everything
+             else in the script didn't.
+             */
+            if (json.has("text")) {
+                script.m_length = json.getString("text").length();
+            }
+            
+            script.m_ranges.add(new Range(0, Integer.MAX_VALUE, 0));
+            JSONArray ranges = json.getJSONArray("ranges");
+            for (int i = 0; i < ranges.length(); i++) {
+                JSONObject range = ranges.getJSONObject(i);
+                script.m_ranges.add(new Range(range.getInt("start"), range.getInt("end"), 1));
+            }
+        }
+        
+        String name = getFileName(json.optString("url"));
+        List<Script> scripts = m_scripts.get(name);
+        if (scripts == null) {
+            scripts = new ArrayList<Script>();
+            m_scripts.put(name, scripts);
+        }
+        scripts.add(script);
+    }
+    
+    /**
+     * Get the file name from a script URL.
+     * 
+     * @param url    the URL
+     * 
+     * @return the last part of the path without the query or the hash
+     */
+    private static String getFileName(String url)
+    {
+        String name = url;
+        
+        int index = name.indexOf('#');
+        if (index > -1) {
+            name = name.substring(0, index);
+        }
+        
+        index = name.indexOf('?');
+        if (index > -1) {
+            name = name.substring(0, index);
+        }
+        
+        return name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+    }
+    
+    /**
+     * Determine if this profile has coverage for a library file.
+     * 
+     * @param name   the name of the library file
+     * @param length the length of the library file
+     * 
+     * @return true if there's coverage for this file and false otherwise
+     */
+    boolean covers(String name, int length)
+    {
+        List<Script> scripts = m_scripts.get(name);
+        if (scripts != null) {
+            for (Script script : scripts) {
+                if (script.m_length == -1 || script.m_length == length) {
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Determine if the code at an offset in a library file ran.  The innermost range around
+     * the offset has the count for it.
+     * 
+     * @param name   the name of the library file
+     * @param length the length of the library file
+     * @param offset the offset in the library file
+     * 
+     * @return true if the code ran, false if it didn't, or null if this profile doesn't
+     *         know about that part of the file
+     */
+    Boolean isExecuted(String name, int length, int offset)
+    {
+        List<Script> scripts = m_scripts.get(name);
+        if (scripts == null || offset < 0) {
+            return null;
+        }
+        
+        Boolean ran = null;
+        for (Script script : scripts) {
+            if (script.m_length != -1 && script.m_length != length) {
+                /*
+                 This is a different version of the file.
+                 */
+                continue;
+            }
+            
+            Range inner = null;
+            for (Range range : script.m_ranges) {
+                if (range.m_start <= offset && offset < range.m_end &&
+                    (inner == null || range.m_end - range.m_start <= inner.m_end - inner.m_start)) {
+                    inner = range;
+                }
+            }
+            
+            if (inner != null) {
+                ran = Boolean.valueOf(Boolean.TRUE.equals(ran) || inner.m_count > 0);
+            }
+        }
+        
+        return ran;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "CoverageProfile: " + m_name + " (" + m_scripts.size() + " scripts)";
+    }
+}
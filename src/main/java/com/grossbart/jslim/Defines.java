@@ -0,0 +1,527 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * <p>
+ * Defines holds the compile-time constants from <code>--define</code> and folds them into
+ * a library before we look for calls.  A define like <code>jQuery.support.opacity=true</code>
+ * replaces every read of that property with <code>true</code> and then removes the branches
+ * which can never run:
+ * </p>
+ *
+ * <pre>
+ * if ( !jQuery.support.opacity ) {
+ *     jQuery.cssHooks.opacity = { ... };
+ * }
+ * </pre>
+ *
+ * <p>
+ * The whole <code>if</code> goes away so the functions only called from it can be
+ * removed too.  We only fold <code>if</code>, <code>?:</code>, <code>&amp;&amp;</code>,
+ * <code>||</code>, <code>!</code>, and comparisons with the define values.  Everything else
+ * in the library stays the way it was written.
+ * </p>
+ *
+ * <p>
+ * A plain name like <code>DEBUG</code> is only replaced where it's a global variable so a
+ * parameter or local variable with the same name is left alone.  Variables declared in a
+ * branch we remove are still declared so reading them elsewhere works the same way.
+ * </p>
+ */
+class Defines
+{
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?");
+    
+    private Map<String, Node> m_values = new TreeMap<String, Node>();
+    private Map<String, String> m_text = new TreeMap<String, String>();
+    
+    /**
+     * Add a define.
+     * 
+     * @param name   the name or property to replace like <code>DEBUG</code> or
+     *               <code>jQuery.support.opacity</code>
+     * @param value  the value which is <code>true</code>, <code>false</code>,
+     *               <code>null</code>, a number, or a string in single or double quotes
+     * 
+     * @exception IllegalArgumentException
+     *                   if the name or the value isn't valid
+     */
+    void add(String name, String value)
+    {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("The define name " + name + " must be a name or a property like a.b.c");
+        }
+        
+        m_values.put(name, parseValue(name, value.trim()));
+        m_text.put(name, value.trim());
+    }
+    
+    /**
+     * Determine if there are any defines.
+     * 
+     * @return true if there are no defines and false otherwise
+     */
+    boolean isEmpty()
+    {
+        return m_values.isEmpty();
+    }
+    
+    /**
+     * Parse the value of a define.
+     * 
+     * @param name   the name of the define
+     * @param value  the value
+     * 
+     * @return the literal node for the value
+     */
+    private static Node parseValue(String name, String value)
+    {
+        if ("true".equals(value)) {
+            return new Node(Token.TRUE);
+        } else if ("false".equals(value)) {
+            return new Node(Token.FALSE);
+        } else if ("null".equals(value)) {
+            return new Node(Token.NULL);
+        } else if (NUMBER.matcher(value).matches()) {
+            return Node.newNumber(Double.parseDouble(value));
+        } else if (value.length() > 1 &&
+                   ((value.startsWith("\"") && value.endsWith("\"")) ||
+                    (value.startsWith("'") && value.endsWith("'")))) {
+            return Node.newString(value.substring(1, value.length() - 1));
+        }
+        
+        throw new IllegalArgumentException("The value of the define " + name +
+                                           " must be true, false, null, a number, or a quoted string: " + value);
+    }
+    
+    /**
+     * Fold the defines into a tree and remove the branches which can never run.
+     * 
+     * @param root   the root of the tree
+     */
+    void fold(Node root)
+    {
+        if (isEmpty()) {
+            return;
+        }
+        
+        Set<Node> constants = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        replaceReads(root, new FunctionAliases(Collections.singletonList(root)), constants);
+        foldTree(root, constants);
+    }
+    
+    /**
+     * Replace the reads of the defines with their values.
+     * 
+     * @param node      the node to look under
+     * @param vars      the variables of the tree so we can tell which names are global
+     * @param constants the set to add the new literal nodes to
+     */
+    private void replaceReads(Node node, FunctionAliases vars, Set<Node> constants)
+    {
+        Node n = node.getFirstChild();
+        while (n != null) {
+            Node next = n.getNext();
+            
+            Node value = getValue(n, vars);
+            if (value != null) {
+                value = value.cloneTree();
+                value.copyInformationFrom(n);
+                node.replaceChild(n, value);
+                constants.add(value);
+            } else {
+                replaceReads(n, vars, constants);
+            }
+            
+            n = next;
+        }
+    }
+    
+    /**
+     * Get the value of the define this node reads.
+     * 
+     * @param n      the node
+     * @param vars   the variables of the tree
+     * 
+     * @return the value or null if this node doesn't read a define
+     */
+    private Node getValue(Node n, FunctionAliases vars)
+    {
+        if ((n.getType() != Token.NAME && n.getType() != Token.GETPROP) || !n.isUnscopedQualifiedName()) {
+            return null;
+        }
+        
+        Node value = m_values.get(n.getQualifiedName());
+        if (value == null || !isRead(n)) {
+            return null;
+        }
+        
+        if (n.getType() == Token.NAME && vars.getScope(n).getType() == Token.FUNCTION) {
+            /*
+             This is a parameter or local variable with the same name.
+             */
+            return null;
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Determine if a name or property is read where it's used.  Declarations, assignments,
+     * and the objects of longer properties aren't reads.
+     * 
+     * @param n      the NAME or GETPROP node
+     * 
+     * @return true if the value is read and false otherwise
+     */
+    private static boolean isRead(Node n)
+    {
+        Node parent = n.getParent();
+        switch (parent.getType()) {
+            case Token.VAR:
+            case Token.LP:
+            case Token.FUNCTION:
+            case Token.CATCH:
+            case Token.INC:
+            case Token.DEC:
+            case Token.DELPROP:
+                return false;
+            case Token.ASSIGN:
+            case Token.ASSIGN_BITOR:
+            case Token.ASSIGN_BITXOR:
+            case Token.ASSIGN_BITAND:
+            case Token.ASSIGN_LSH:
+            case Token.ASSIGN_RSH:
+            case Token.ASSIGN_URSH:
+            case Token.ASSIGN_ADD:
+            case Token.ASSIGN_SUB:
+            case Token.ASSIGN_MUL:
+            case Token.ASSIGN_DIV:
+            case Token.ASSIGN_MOD:
+            case Token.GETPROP:
+            case Token.GETELEM:
+            case Token.CALL:
+            case Token.NEW:
+            case Token.FOR:
+                return parent.getFirstChild() != n;
+            default:
+                return true;
+        }
+    }
+    
+    /**
+     * Fold the expressions built from defines and remove the branches they rule out.  We
+     * fold the children first so a condition like <code>!(MODE === "legacy")</code> is a
+     * literal by the time we get to it.
+     * 
+     * @param node      the node to look under
+     * @param constants the literal nodes which came from defines
+     */
+    private void foldTree(Node node, Set<Node> constants)
+    {
+        Node n = node.getFirstChild();
+        while (n != null) {
+            Node next = n.getNext();
+            
+            foldTree(n, constants);
+            foldNode(n, constants);
+            
+            n = next;
+        }
+    }
+    
+    /**
+     * Fold a single node if its value or branch comes from a define.
+     * 
+     * @param n         the node
+     * @param constants the literal nodes which came from defines
+     */
+    private void foldNode(Node n, Set<Node> constants)
+    {
+        Node first = n.getFirstChild();
+        Boolean truth;
+        
+        switch (n.getType()) {
+            case Token.NOT:
+                truth = constants.contains(first) ? getTruth(first) : null;
+                if (truth != null) {
+                    replace(n, newBoolean(!truth.booleanValue()), constants);
+                }
+                break;
+            case Token.EQ:
+            case Token.NE:
+            case Token.SHEQ:
+            case Token.SHNE:
+                if (constants.contains(first) || constants.contains(n.getLastChild())) {
+                    Boolean equal = areEqual(first, n.getLastChild(),
+                                             n.getType() == Token.SHEQ || n.getType() == Token.SHNE);
+                    if (equal != null) {
+                        boolean positive = n.getType() == Token.EQ || n.getType() == Token.SHEQ;
+                        replace(n, newBoolean(equal.booleanValue() == positive), constants);
+                    }
+                }
+                break;
+            case Token.AND:
+            case Token.OR:
+                truth = constants.contains(first) ? getTruth(first) : null;
+                if (truth != null) {
+                    /*
+                     a && b is a if a is false and b otherwise.  a || b is a if
+                     a is true and b otherwise.
+                     */
+                    boolean left = truth.booleanValue() == (n.getType() == Token.OR);
+                    replace(n, left ? first : n.getLastChild(), constants);
+                }
+                break;
+            case Token.HOOK:
+                truth = constants.contains(first) ? getTruth(first) : null;
+                if (truth != null) {
+                    replace(n, truth.booleanValue() ? first.getNext() : n.getLastChild(), constants);
+                }
+                break;
+            case Token.IF:
+                truth = constants.contains(first) ? getTruth(first) : null;
+                if (truth != null) {
+                    Node live = truth.booleanValue() ? first.getNext() : first.getNext().getNext();
+                    Node dead = truth.booleanValue() ? first.getNext().getNext() : first.getNext();
+                    removeBranch(n, live, dead);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Replace an <code>if</code> statement with the branch which runs.
+     * 
+     * @param ifNode the IF node
+     * @param live   the BLOCK which runs or null if there's no else block
+     * @param dead   the BLOCK which never runs or null if there's no else block
+     */
+    private static void removeBranch(Node ifNode, Node live, Node dead)
+    {
+        List<Node> statements = new ArrayList<Node>();
+        if (live != null && live.hasChildren()) {
+            statements.add(live.detachFromParent());
+        }
+        
+        Set<String> hoisted = new TreeSet<String>();
+        if (dead != null) {
+            addHoisted(dead, hoisted);
+        }
+        
+        if (!hoisted.isEmpty()) {
+            /*
+             The variables and functions declared in the branch we remove
+             are still declared everywhere in the function.
+             */
+            Node var = new Node(Token.VAR);
+            for (String name : hoisted) {
+                var.addChildToBack(Node.newString(Token.NAME, name));
+            }
+            var.copyInformationFromForTree(ifNode);
+            statements.add(var);
+        }
+        
+        Node parent = ifNode.getParent();
+        if (parent.getType() == Token.BLOCK || parent.getType() == Token.SCRIPT) {
+            for (Node statement : statements) {
+                parent.addChildBefore(statement, ifNode);
+            }
+            parent.removeChild(ifNode);
+        } else {
+            /*
+             A labeled if needs a single statement in its place.
+             */
+            Node block = new Node(Token.BLOCK);
+            for (Node statement : statements) {
+                block.addChildToBack(statement);
+            }
+            block.copyInformationFrom(ifNode);
+            parent.replaceChild(ifNode, block);
+        }
+    }
+    
+    /**
+     * Add the names of the variables and functions declared under a node without going into
+     * other functions.
+     * 
+     * @param node   the node to search
+     * @param names  the set to add the names to
+     */
+    private static void addHoisted(Node node, Set<String> names)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if (n.getType() == Token.VAR) {
+                for (Node name = n.getFirstChild(); name != null; name = name.getNext()) {
+                    names.add(name.getString());
+                }
+            } else if (n.getType() == Token.FUNCTION) {
+                if (node.getType() == Token.BLOCK) {
+                    names.add(n.getFirstChild().getString());
+                }
+                continue;
+            }
+            
+            addHoisted(n, names);
+        }
+    }
+    
+    /**
+     * Replace a node with another node and remember the new node if it's a constant.
+     * 
+     * @param n           the node to replace
+     * @param replacement the node to put in its place
+     * @param constants   the literal nodes which came from defines
+     */
+    private static void replace(Node n, Node replacement, Set<Node> constants)
+    {
+        if (replacement.getParent() != null) {
+            replacement.detachFromParent();
+        } else {
+            replacement.copyInformationFrom(n);
+            constants.add(replacement);
+        }
+        
+        n.getParent().replaceChild(n, replacement);
+    }
+    
+    /**
+     * Determine if a literal is true or false when it's used as a condition.
+     * 
+     * @param n      the node
+     * 
+     * @return true or false or null if the node isn't a literal
+     */
+    private static Boolean getTruth(Node n)
+    {
+        switch (n.getType()) {
+            case Token.TRUE:
+                return Boolean.TRUE;
+            case Token.FALSE:
+            case Token.NULL:
+                return Boolean.FALSE;
+            case Token.NUMBER:
+                return Boolean.valueOf(n.getDouble() != 0 && !Double.isNaN(n.getDouble()));
+            case Token.STRING:
+                return Boolean.valueOf(n.getString().length() > 0);
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Determine if two literals are equal.
+     * 
+     * @param a      the first node
+     * @param b      the second node
+     * @param strict true for <code>===</code> and false for <code>==</code>
+     * 
+     * @return true or false or null if we can't tell
+     */
+    private static Boolean areEqual(Node a, Node b, boolean strict)
+    {
+        int typeA = getLiteralType(a);
+        int typeB = getLiteralType(b);
+        if (typeA == Token.ERROR || typeB == Token.ERROR) {
+            return null;
+        }
+        
+        if (typeA != typeB) {
+            /*
+             Loose equality converts between types and we don't follow that.
+             */
+            return strict ? Boolean.FALSE : null;
+        }
+        
+        switch (typeA) {
+            case Token.TRUE:
+                return Boolean.valueOf(a.getType() == b.getType());
+            case Token.NUMBER:
+                return Boolean.valueOf(a.getDouble() == b.getDouble());
+            case Token.STRING:
+                return Boolean.valueOf(a.getString().equals(b.getString()));
+            default:
+                return Boolean.TRUE;
+        }
+    }
+    
+    /**
+     * Get the type of a literal.  Both booleans have the type TRUE.
+     * 
+     * @param n      the node
+     * 
+     * @return the type or ERROR if the node isn't a literal
+     */
+    private static int getLiteralType(Node n)
+    {
+        switch (n.getType()) {
+            case Token.TRUE:
+            case Token.FALSE:
+                return Token.TRUE;
+            case Token.NULL:
+            case Token.NUMBER:
+            case Token.STRING:
+                return n.getType();
+            default:
+                return Token.ERROR;
+        }
+    }
+    
+    /**
+     * Create a new boolean literal.
+     * 
+     * @param value  the value
+     * 
+     * @return the TRUE or FALSE node
+     */
+    private static Node newBoolean(boolean value)
+    {
+        return new Node(value ? Token.TRUE : Token.FALSE);
+    }
+    
+    @Override
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        for (Map.Entry<String, String> define : m_text.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(define.getKey()).append('=').append(define.getValue());
+        }
+        
+        return sb.toString();
+    }
+}
@@ -0,0 +1,680 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * <p>
+ * FunctionAliases finds the variables which hold functions from somewhere else, like
+ * <code>var each = jQuery.each;</code> or <code>core_push = Array.prototype.push</code>.
+ * JSlim uses it to turn a call like <code>each(...)</code> into a call to the function the
+ * variable points to.
+ * </p>
+ *
+ * <p>
+ * Variables are found by their scope so the <code>a</code> in one function of a minified
+ * library is different from the <code>a</code> in the next one.  We don't follow the order
+ * of the code.  A variable holds every value assigned to it anywhere in its scope.  Each
+ * script has its own global scope so the calls we find in a library are the same when we
+ * look at it alone and when we look at it with the other libraries.
+ * </p>
+ *
+ * <p>
+ * Since it knows the scopes it also finds the module wrappers like
+ * <code>(function(window) { ... })(window)</code> and the object literal keys the
+ * functions declared in them are exported with.
+ * </p>
+ *
+ * <p>
+ * It also keeps the values assigned to properties with names we can follow, like
+ * <code>Lib.each = function() { ... }</code> or the <code>each</code> member of
+ * <code>jQuery.extend({ each: ... })</code>, so ConstantNames can look at the definition
+ * of an iterator.  Like the AliasGraph these work on names and not on scopes.
+ * </p>
+ */
+class FunctionAliases
+{
+    private Map<Node, Map<String, List<Node>>> m_scopes = new IdentityHashMap<Node, Map<String, List<Node>>>();
+    private Map<Node, Set<String>> m_declared = new IdentityHashMap<Node, Set<String>>();
+    private Map<Node, Boolean> m_wrappers = new IdentityHashMap<Node, Boolean>();
+    private Map<Node, Set<String>> m_exports = new IdentityHashMap<Node, Set<String>>();
+    private Map<String, List<Node>> m_props = new HashMap<String, List<Node>>();
+    
+    /**
+     * Create a new FunctionAliases for the specified scripts.
+     * 
+     * @param scripts the scripts to find the aliases in
+     */
+    FunctionAliases(List<Node> scripts)
+    {
+        List<Node> keys = new ArrayList<Node>();
+        for (Node script : scripts) {
+            walk(script, keys);
+        }
+        
+        /*
+         We can only tell which functions the keys point to once we have all
+         of the values.
+         */
+        for (Node key : keys) {
+            for (Node value : getValues(key.getFirstChild())) {
+                if (isDeclaration(value)) {
+                    Set<String> names = m_exports.get(value);
+                    if (names == null) {
+                        names = new HashSet<String>();
+                        m_exports.put(value, names);
+                    }
+                    names.add(key.getString());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the values the variable with the specified name can hold.  Each value is the
+     * property read like <code>jQuery.each</code> or the name of a function the variable is
+     * assigned.  The values of other variables are included so a chain of aliases ends at
+     * the original functions.
+     * 
+     * @param name   the NAME node where the variable is used
+     * 
+     * @return the values which might be functions.  This list is empty if the variable
+     *         isn't an alias.
+     */
+    List<Node> getTargets(Node name)
+    {
+        List<Node> targets = new ArrayList<Node>();
+        addTargets(findScope(name, name.getString()), name.getString(), targets,
+                   new IdentityHashMap<Node, Set<String>>());
+        return targets;
+    }
+    
+    /**
+     * Add the values of a variable to the list of targets.
+     * 
+     * @param scope   the scope of the variable
+     * @param name    the name of the variable
+     * @param targets the list to add the values to
+     * @param visited the variables we've already added for each scope so we can stop at
+     *                cycles
+     */
+    private void addTargets(Node scope, String name, List<Node> targets, Map<Node, Set<String>> visited)
+    {
+        Set<String> names = visited.get(scope);
+        if (names == null) {
+            names = new HashSet<String>();
+            visited.put(scope, names);
+        }
+        
+        if (!names.add(name)) {
+            return;
+        }
+        
+        Map<String, List<Node>> vars = m_scopes.get(scope);
+        if (vars == null || !vars.containsKey(name)) {
+            return;
+        }
+        
+        for (Node value : vars.get(name)) {
+            addTargets(value, targets, visited);
+        }
+    }
+    
+    /**
+     * Add the parts of a value which might be functions from somewhere else.
+     * 
+     * @param value   the value assigned to a variable
+     * @param targets the list to add the values to
+     * @param visited the variables we've already added for each scope
+     */
+    private void addTargets(Node value, List<Node> targets, Map<Node, Set<String>> visited)
+    {
+        switch (value.getType()) {
+            case Token.NAME:
+                targets.add(value);
+                addTargets(findScope(value, value.getString()), value.getString(), targets, visited);
+                break;
+            case Token.GETPROP:
+                targets.add(value);
+                break;
+            case Token.ASSIGN:
+            case Token.COMMA:
+                addTargets(value.getLastChild(), targets, visited);
+                break;
+            case Token.OR:
+            case Token.AND:
+                addTargets(value.getFirstChild(), targets, visited);
+                addTargets(value.getLastChild(), targets, visited);
+                break;
+            case Token.HOOK:
+                addTargets(value.getFirstChild().getNext(), targets, visited);
+                addTargets(value.getLastChild(), targets, visited);
+                break;
+            case Token.CALL:
+                /*
+                 fn.bind(obj) makes a new function which calls fn.
+                 */
+                Node callee = value.getFirstChild();
+                if (callee.getType() == Token.GETPROP && "bind".equals(callee.getLastChild().getString())) {
+                    addTargets(callee.getFirstChild(), targets, visited);
+                }
+                break;
+            default:
+                /*
+                 Other calls, literals, and new functions aren't aliases.
+                 */
+                break;
+        }
+    }
+    
+    /**
+     * Get every value assigned to the variable with the specified name.  Changes we can't
+     * follow, like <code>i++</code> or a <code>for (key in obj)</code> loop, show up as the
+     * node which makes the change.
+     * 
+     * @param name   the NAME node where the variable is used
+     * 
+     * @return the values.  This list is empty if the variable is never assigned.
+     */
+    List<Node> getValues(Node name)
+    {
+        Map<String, List<Node>> vars = m_scopes.get(getScope(name));
+        if (vars == null || !vars.containsKey(name.getString())) {
+            return Collections.emptyList();
+        }
+        
+        return vars.get(name.getString());
+    }
+    
+    /**
+     * Get the scope of the variable with the specified name.
+     * 
+     * @param name   the NAME node where the variable is used
+     * 
+     * @return the FUNCTION node which declares the variable or the SCRIPT node if it's a
+     *         global variable
+     */
+    Node getScope(Node name)
+    {
+        return findScope(name, name.getString());
+    }
+    
+    /**
+     * Determine if the variable with the specified name holds a function declared like
+     * <code>function helper() { ... }</code>.
+     * 
+     * @param name   the NAME node where the variable is used
+     * 
+     * @return true if one of the values is a function declaration and false otherwise
+     */
+    boolean isDeclaredFunction(Node name)
+    {
+        for (Node value : getValues(name)) {
+            if (isDeclaration(value)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Get every value assigned to the property with the specified name.
+     * 
+     * @param name   the name of the property like <code>jQuery.each</code>
+     * 
+     * @return the values.  This list is empty if the libraries never assign the property.
+     */
+    List<Node> getPropertyValues(String name)
+    {
+        List<Node> values = m_props.get(name);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Get the name of a property chain like <code>jQuery.fn.each</code>.
+     * 
+     * @param n      the NAME or GETPROP node
+     * 
+     * @return the name or null if the chain doesn't only have names in it
+     */
+    static String getQualifiedName(Node n)
+    {
+        if (n.getType() == Token.NAME) {
+            return n.getString();
+        } else if (n.getType() == Token.GETPROP) {
+            String owner = getQualifiedName(n.getFirstChild());
+            return owner == null ? null : owner + "." + n.getLastChild().getString();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Get the keys a declared function is exported with in object literals like
+     * <code>return { trim: strip };</code>.  Calling <code>trim</code> on the object calls
+     * the function so these keys are other names for it.
+     * 
+     * @param func   the FUNCTION node
+     * 
+     * @return the keys.  This set is empty if the function isn't in any object literals.
+     */
+    Set<String> getExportNames(Node func)
+    {
+        Set<String> names = m_exports.get(func);
+        if (names == null) {
+            return Collections.emptySet();
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Determine if a value is a function declaration.
+     * 
+     * @param value  the value
+     * 
+     * @return true if the value is a function declaration and false otherwise
+     */
+    private static boolean isDeclaration(Node value)
+    {
+        if (value.getType() != Token.FUNCTION) {
+            return false;
+        }
+        
+        /*
+         A declaration which was pruned is taken out of its block and doesn't
+         have a parent anymore.
+         */
+        return value.getParent() == null ||
+            value.getParent().getType() == Token.BLOCK || value.getParent().getType() == Token.SCRIPT;
+    }
+    
+    /**
+     * <p>
+     * Determine if the specified function is a module wrapper.  That's a function which is
+     * called right where it's defined like these:
+     * </p>
+     *
+     * <pre>
+     * (function(window) { ... })(window);
+     * !function() { ... }();
+     * (function() { ... }).call(this);
+     * </pre>
+     *
+     * <p>
+     * The factory of a UMD wrapper, the function passed to another function which is
+     * called where it's defined, is a module wrapper too.  Nothing outside of a wrapper can
+     * see the functions declared in it unless the wrapper exports them or calls eval.  We
+     * don't count functions which call eval as wrappers.
+     * </p>
+     * 
+     * @param func   the FUNCTION node
+     * 
+     * @return true if the function is a module wrapper and false otherwise
+     */
+    boolean isModuleWrapper(Node func)
+    {
+        Boolean wrapper = m_wrappers.get(func);
+        if (wrapper == null) {
+            wrapper = isCalledInPlace(func) && !usesEval(func.getLastChild());
+            m_wrappers.put(func, wrapper);
+        }
+        
+        return wrapper;
+    }
+    
+    /**
+     * Determine if a function is called where it's defined or passed to a function which
+     * is.
+     * 
+     * @param func   the FUNCTION node
+     * 
+     * @return true if the function is called in place and false otherwise
+     */
+    private static boolean isCalledInPlace(Node func)
+    {
+        Node parent = func.getParent();
+        if (parent == null) {
+            return false;
+        }
+        
+        if (parent.getType() == Token.CALL) {
+            /*
+             (function() { ... })() or the factory in
+             (function(root, factory) { ... })(this, function() { ... })
+             */
+            return parent.getFirstChild() == func || parent.getFirstChild().getType() == Token.FUNCTION;
+        }
+        
+        if (parent.getType() == Token.GETPROP && parent.getFirstChild() == func) {
+            /*
+             (function() { ... }).call(this)
+             */
+            String method = parent.getLastChild().getString();
+            Node call = parent.getParent();
+            return ("call".equals(method) || "apply".equals(method)) &&
+                call != null && call.getType() == Token.CALL && call.getFirstChild() == parent;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Determine if there's a call to eval anywhere under the specified node.
+     * 
+     * @param node   the node to search
+     * 
+     * @return true if the node uses eval and false otherwise
+     */
+    private static boolean usesEval(Node node)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if ((n.getType() == Token.NAME && "eval".equals(n.getString())) || usesEval(n)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Walk the tree and add the values assigned to variables.
+     * 
+     * @param node   the node to walk
+     * @param keys   the list to add the object literal keys with variable values to
+     */
+    private void walk(Node node, List<Node> keys)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            switch (n.getType()) {
+                case Token.VAR:
+                    for (Node name = n.getFirstChild(); name != null; name = name.getNext()) {
+                        if (name.getFirstChild() != null) {
+                            addValue(name, name.getFirstChild());
+                            addMembers(name.getString(), name.getFirstChild());
+                        }
+                    }
+                    break;
+                case Token.ASSIGN:
+                    if (n.getFirstChild().getType() == Token.NAME) {
+                        addValue(n.getFirstChild(), n.getLastChild());
+                    }
+                    
+                    String prop = getQualifiedName(n.getFirstChild());
+                    if (prop != null) {
+                        if (n.getFirstChild().getType() == Token.GETPROP) {
+                            addProperty(prop, n.getLastChild());
+                        }
+                        addMembers(prop, n.getLastChild());
+                    }
+                    break;
+                case Token.CALL:
+                    addExtendMembers(n);
+                    break;
+                case Token.ASSIGN_BITOR:
+                case Token.ASSIGN_BITXOR:
+                case Token.ASSIGN_BITAND:
+                case Token.ASSIGN_LSH:
+                case Token.ASSIGN_RSH:
+                case Token.ASSIGN_URSH:
+                case Token.ASSIGN_ADD:
+                case Token.ASSIGN_SUB:
+                case Token.ASSIGN_MUL:
+                case Token.ASSIGN_DIV:
+                case Token.ASSIGN_MOD:
+                case Token.INC:
+                case Token.DEC:
+                case Token.CATCH:
+                    if (n.getFirstChild().getType() == Token.NAME) {
+                        addValue(n.getFirstChild(), n);
+                    }
+                    break;
+                case Token.FOR:
+                    if (n.getChildCount() == 3) {
+                        /*
+                         for (key in obj) or for (var key in obj)
+                         */
+                        Node key = n.getFirstChild();
+                        if (key.getType() == Token.VAR) {
+                            key = key.getFirstChild();
+                        }
+                        
+                        if (key.getType() == Token.NAME) {
+                            addValue(key, n);
+                        }
+                    }
+                    break;
+                case Token.FUNCTION:
+                    if ((node.getType() == Token.BLOCK || node.getType() == Token.SCRIPT) &&
+                        n.getFirstChild().getString().length() > 0) {
+                        addValue(n.getFirstChild(), n);
+                    }
+                    break;
+                case Token.STRING:
+                    if (node.getType() == Token.OBJECTLIT && n.getFirstChild() != null &&
+                        n.getFirstChild().getType() == Token.NAME) {
+                        keys.add(n);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            
+            walk(n, keys);
+        }
+    }
+    
+    /**
+     * Add a value assigned to a variable.
+     * 
+     * @param name   the NAME node of the variable
+     * @param value  the value
+     */
+    private void addValue(Node name, Node value)
+    {
+        Node scope = findScope(name, name.getString());
+        Map<String, List<Node>> vars = m_scopes.get(scope);
+        if (vars == null) {
+            vars = new HashMap<String, List<Node>>();
+            m_scopes.put(scope, vars);
+        }
+        
+        List<Node> values = vars.get(name.getString());
+        if (values == null) {
+            values = new ArrayList<Node>();
+            vars.put(name.getString(), values);
+        }
+        
+        values.add(value);
+    }
+    
+    /**
+     * Add a value assigned to a property.
+     * 
+     * @param name   the name of the property
+     * @param value  the value
+     */
+    private void addProperty(String name, Node value)
+    {
+        List<Node> values = m_props.get(name);
+        if (values == null) {
+            values = new ArrayList<Node>();
+            m_props.put(name, values);
+        }
+        
+        values.add(value);
+    }
+    
+    /**
+     * Add the members of an object literal as properties of the object it's assigned to.
+     * 
+     * @param owner  the name of the object
+     * @param value  the value assigned to the object, which might be the start of an
+     *               assignment chain like <code>jQuery.fn = jQuery.prototype = { ... }</code>
+     */
+    private void addMembers(String owner, Node value)
+    {
+        Node lit = value;
+        while (lit.getType() == Token.ASSIGN) {
+            lit = lit.getLastChild();
+        }
+        
+        if (lit.getType() != Token.OBJECTLIT) {
+            return;
+        }
+        
+        for (Node key = lit.getFirstChild(); key != null; key = key.getNext()) {
+            if (key.getType() == Token.STRING && key.getFirstChild() != null) {
+                addProperty(owner + "." + key.getString(), key.getFirstChild());
+            }
+        }
+    }
+    
+    /**
+     * Add the members an extend-style call copies into an object, like
+     * <code>jQuery.extend({ ... })</code> or <code>_.extend(obj, { ... })</code>.
+     * 
+     * @param call   the CALL node
+     */
+    private void addExtendMembers(Node call)
+    {
+        Node callee = call.getFirstChild();
+        if (callee.getType() != Token.GETPROP || !"extend".equals(callee.getLastChild().getString())) {
+            return;
+        }
+        
+        Node arg = callee.getNext();
+        if (arg != null && arg.getType() == Token.TRUE) {
+            arg = arg.getNext();
+        }
+        
+        if (arg == null) {
+            return;
+        }
+        
+        String target;
+        if (arg.getType() == Token.OBJECTLIT && arg.getNext() == null) {
+            target = getQualifiedName(callee.getFirstChild());
+        } else {
+            target = getQualifiedName(arg);
+            arg = arg.getNext();
+        }
+        
+        if (target == null) {
+            return;
+        }
+        
+        for (; arg != null; arg = arg.getNext()) {
+            addMembers(target, arg);
+        }
+    }
+    
+    /**
+     * Find the function which declares the specified name where it's used.
+     * 
+     * @param n      the node where the name is used
+     * @param name   the name
+     * 
+     * @return the FUNCTION node or the root of the script if no function declares it
+     */
+    private Node findScope(Node n, String name)
+    {
+        Node root = n;
+        for (Node parent = n.getParent(); parent != null; parent = parent.getParent()) {
+            if ((parent.getType() == Token.FUNCTION && getDeclared(parent).contains(name)) ||
+                parent.getType() == Token.SCRIPT) {
+                return parent;
+            }
+            root = parent;
+        }
+        
+        return root;
+    }
+    
+    /**
+     * Get the names declared in a function.  That's the parameters, the variables, the
+     * functions declared in it, and the name of a function expression.
+     * 
+     * @param func   the FUNCTION node
+     * 
+     * @return the names
+     */
+    private Set<String> getDeclared(Node func)
+    {
+        Set<String> names = m_declared.get(func);
+        if (names == null) {
+            names = new HashSet<String>();
+            
+            Node parent = func.getParent();
+            if (parent != null && parent.getType() != Token.BLOCK && parent.getType() != Token.SCRIPT) {
+                names.add(func.getFirstChild().getString());
+            }
+            
+            for (Node param = func.getFirstChild().getNext().getFirstChild(); param != null;
+                 param = param.getNext()) {
+                names.add(param.getString());
+            }
+            
+            addDeclared(func.getLastChild(), names);
+            m_declared.put(func, names);
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Add the variables and functions declared under the specified node without going into
+     * other functions.
+     * 
+     * @param node   the node to search
+     * @param names  the set to add the names to
+     */
+    private static void addDeclared(Node node, Set<String> names)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if (n.getType() == Token.VAR) {
+                for (Node name = n.getFirstChild(); name != null; name = name.getNext()) {
+                    names.add(name.getString());
+                }
+            } else if (n.getType() == Token.FUNCTION) {
+                if (node.getType() == Token.BLOCK || node.getType() == Token.SCRIPT) {
+                    names.add(n.getFirstChild().getString());
+                }
+                continue;
+            }
+            
+            addDeclared(n, names);
+        }
+    }
+}
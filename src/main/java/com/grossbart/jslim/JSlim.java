@@ -24,8 +24,16 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,9 +50,17 @@ import com.google.javascript.rhino.Node;
 import com.google.javascript.rhino.Token;
 
 /**
+ * <p>
  * JSlim is a static code analysis tool for JavaScript.  It looks at a JavaScript program
  * and a set of library files it uses and creates a new library with only the functions
  * which are actually used.
+ * </p>
+ * 
+ * <p>
+ * Each JSlim instance holds the state of a single prune operation and should only be used
+ * by one thread.  Use a {@link JSlimEngine} to share options and analyzed libraries between
+ * many prune operations.
+ * </p>
  */
 public class JSlim 
 {
@@ -57,7 +73,7 @@ public class JSlim
          * The options for pretty printing 
          */
         PRETTY_PRINT, 
-
+        
         /** 
          * The options for printing input delimeters
          */
@@ -69,7 +85,7 @@ public class JSlim
             case PRETTY_PRINT:
                 options.prettyPrint = true;
                 break;
-
+            
             case PRINT_INPUT_DELIMITER:
                 options.printInputDelimiter = true;
                 break;
@@ -84,10 +100,18 @@ public class JSlim
     static {
         LOGGER.setUseParentHandlers(false);
         LOGGER.addHandler(new SlimConsoleHandler());
+        
+        /*
+         We only add this handler once since compiles can happen many
+         times and from many threads.
+         */
+        Logger.getLogger("com.google.javascript.jscomp").setUseParentHandlers(false);
+        Logger.getLogger("com.google.javascript.jscomp").addHandler(new SlimConsoleHandler());
     }
     
     /**
      * Set the logging level for this process.  Most messages only show up with INFO logging.
+     * This is the default for every compiler which doesn't have its own logger.
      * 
      * @param level  the log level
      */
@@ -106,23 +130,76 @@ public class JSlim
         return LOGGER;
     }
     
+    /**
+     * Create a logger with its own logging level.  The new logger writes to the same
+     * handlers as the process logger, but changing its level doesn't change the level of
+     * any other logger.
+     * 
+     * @param level  the log level or null to use the level of the process logger
+     * 
+     * @return the new logger
+     */
+    static Logger createLogger(Level level)
+    {
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setParent(LOGGER);
+        logger.setLevel(level);
+        return logger;
+    }
+    
     private List<Node> m_vars = new ArrayList<Node>();
-    private List<Call> m_calls = new ArrayList<Call>();
-    private List<Call> m_examinedCalls = new ArrayList<Call>();
+    private CallList m_calls = new CallList();
+    private Set<String> m_examinedCalls = new HashSet<String>();
     
     private List<Node> m_funcs = new ArrayList<Node>();
     private List<Node> m_libFuncs = new ArrayList<Node>();
     private List<Node> m_allFuncs = new ArrayList<Node>();
     private List<Node> m_keepers = new ArrayList<Node>();
     
-    private List<JSFile> m_files = new ArrayList<JSFile>();
+    /*
+     These indexes make the prune process linear.  Large libraries have
+     hundreds of thousands of functions and searching through the lists
+     above for every call made pruning quadratic.
+     */
+    private Map<Node, Integer> m_keeperCounts = new IdentityHashMap<Node, Integer>();
+    private Set<Node> m_removedFuncs = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    private Set<Node> m_deadMembers = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    private Map<String, List<Node>> m_allFuncNames;
+    private Map<String, List<Node>> m_libFuncNames;
     
+    private List<JSFile> m_files = new ArrayList<JSFile>();
+    private Set<String> m_mainNames = new HashSet<String>();
+    private boolean m_hasMain = false;
+    private Set<String> m_mainDecls;
+    private boolean m_mainLeaks;
+    private AliasGraph m_aliases;
+    private FunctionAliases m_funcAliases;
+    private ConstantNames m_constants;
+    private Defines m_defines = new Defines();
+    private List<CoverageProfile> m_coverage = new ArrayList<CoverageProfile>();
+    private double m_coverageConfidence = 1.0;
+    private Set<Node> m_coldFuncs = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    private Set<Node> m_hotFuncs = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    private ColdChunk m_coldChunk;
+
     private ErrorManager m_errMgr;
     private int m_funcCount;
     
     private String m_charset = "UTF-8";
     private boolean m_printTree = false;
     private FormattingOption m_formattingOptions;
+    private LibraryCache m_libCache;
+    private Logger m_logger = LOGGER;
+    
+    /*
+     The counters are kept in plain fields while the analysis runs and
+     added to the metrics at the end of each phase.
+     */
+    private SlimMetrics m_metrics;
+    private long m_nodeVisits;
+    private long m_callSites;
+    private long m_lookups;
+    private int m_pruneRounds;
     
     /**
      * Set the formatting options for this compiler.
@@ -145,7 +222,102 @@ public class JSlim
      */
     protected String addLib(String name, String code, CompilationLevel compLevel)
     {
-        return slim(name, code, true, compLevel);
+        LibraryGraph lib = analyzeLibrary(new JSFile(name, code, true));
+        if (lib.hasErrors()) {
+            return "";
+        }
+        
+        List<LibraryGraph> libs = new ArrayList<LibraryGraph>();
+        libs.add(lib);
+        return prune(libs, compLevel);
+    }
+    
+    /**
+     * Set the cache of analyzed library files.  When there is a cache the prune process
+     * only analyzes library files which aren't in the cache.  The same cache can be shared
+     * by many compiler instances.
+     * 
+     * @param cache  the cache or null to analyze the library files every time
+     */
+    public void setLibraryCache(LibraryCache cache)
+    {
+        m_libCache = cache;
+    }
+    
+    /**
+     * Set the logger for this compiler.  Compilers from different engines can log at
+     * different levels without changing the level for the whole process.
+     * 
+     * @param logger the logger or null to use the process logger
+     */
+    public void setLogger(Logger logger)
+    {
+        m_logger = logger == null ? LOGGER : logger;
+    }
+    
+    /**
+     * Set the metrics for this compiler.  The compiler adds the time of each phase and
+     * the counts from the analysis to the metrics.
+     * 
+     * @param metrics the metrics or null to skip collecting metrics
+     */
+    public void setMetrics(SlimMetrics metrics)
+    {
+        m_metrics = metrics;
+    }
+    
+    /**
+     * Get the metrics for this compiler.
+     * 
+     * @return the metrics or null if this compiler doesn't collect metrics
+     */
+    public SlimMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+    
+    /**
+     * Start timing a phase if this compiler collects metrics.
+     * 
+     * @param phase  the phase to time
+     * 
+     * @return the timer or null if there are no metrics
+     */
+    private SlimMetrics.Timer startTimer(SlimMetrics.Phase phase)
+    {
+        if (m_metrics == null) {
+            return null;
+        }
+        
+        return m_metrics.start(phase);
+    }
+    
+    /**
+     * Stop a timer from {@link #startTimer(SlimMetrics.Phase)}.
+     * 
+     * @param timer  the timer or null if there are no metrics
+     */
+    private void stopTimer(SlimMetrics.Timer timer)
+    {
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Add the counts collected since the last call to the metrics.
+     */
+    private void flushMetrics()
+    {
+        if (m_metrics != null) {
+            m_metrics.addNodeVisits(m_nodeVisits);
+            m_metrics.addCallSites(m_callSites);
+            m_metrics.addLookups(m_lookups);
+        }
+        
+        m_nodeVisits = 0;
+        m_callSites = 0;
+        m_lookups = 0;
     }
     
     /**
@@ -167,17 +339,515 @@ public class JSlim
      */
     public String prune(CompilationLevel compLevel)
     {
-        StringBuffer sb = new StringBuffer();
+        checkColdLevel(compLevel);
+        
+        List<LibraryGraph> libs = new ArrayList<LibraryGraph>();
         
         for (JSFile file : m_files) {
             if (file.isLib()) {
-                sb.append(file.getContent() + "\n");
+                LibraryGraph lib;
+                if (m_libCache == null) {
+                    lib = analyzeLibrary(file);
+                } else {
+                    lib = m_libCache.get(file, this);
+                }
+                
+                if (lib.hasErrors()) {
+                    return "";
+                }
+                libs.add(lib);
+            }
+        }
+        
+        return prune(libs, compLevel);
+    }
+    
+    /**
+     * <p>
+     * Prune the specified libraries using the main files which have been added to this 
+     * compiler instance.
+     * </p>
+     * 
+     * <p>
+     * The library graphs aren't changed by this method.  Each prune works on a private copy
+     * of the library trees so the same graphs can be used for many prune operations, even
+     * from different threads.  Any library files added to this compiler are ignored.
+     * </p>
+     *  
+     * @param libs      the analyzed library files
+     * @param compLevel the compilation level 
+     * 
+     * @return the pruned library code
+     */
+    public String prune(List<LibraryGraph> libs, CompilationLevel compLevel)
+    {
+        checkColdLevel(compLevel);
+        
+        List<Node> scripts = pruneLibraries(libs, null);
+        
+        for (Node script : scripts) {
+            printTree("Tree after pruning:", script);
+        }
+        
+        SlimMetrics.Timer timer = startTimer(SlimMetrics.Phase.TO_SOURCE);
+        String code = toSource(scripts, compLevel);
+        stopTimer(timer);
+        
+        if (m_coldChunk != null && m_coldChunk.hasFunctions()) {
+            code = m_coldChunk.getLoader() + code;
+        }
+        
+        return code;
+    }
+    
+    /**
+     * Find the library functions a prune operation would keep and remove without generating
+     * any code.  This is much faster than a full prune and is handy for checking which parts
+     * of a library a program uses.
+     *  
+     * @param libs   the analyzed library files
+     * 
+     * @return the report with the kept and removed functions
+     */
+    public AnalysisReport analyze(List<LibraryGraph> libs)
+    {
+        AnalysisReport report = new AnalysisReport();
+        pruneLibraries(libs, report);
+        
+        return report;
+    }
+    
+    /**
+     * Analyze the main files, add the libraries, and remove the functions which aren't
+     * called.
+     * 
+     * @param libs   the analyzed library files
+     * @param report the report to add the kept and removed functions to or null for no report
+     * 
+     * @return the copied and pruned SCRIPT nodes in the same order as the libraries
+     */
+    private List<Node> pruneLibraries(List<LibraryGraph> libs, AnalysisReport report)
+    {
+        for (JSFile file : m_files) {
+            if (!file.isLib()) {
+                addCalls(analyzeMain(file));
+            }
+        }
+        
+        /*
+         The calls so far come from the main files and the externs.  Once
+         we add the libraries the calls list has their calls too.
+         */
+        Set<String> refs = new HashSet<String>(m_mainNames);
+        for (Call call : m_calls) {
+            refs.add(call.getName());
+        }
+        
+        SlimMetrics.Timer timer = startTimer(SlimMetrics.Phase.PRUNE);
+        List<Node> scripts = addLibraries(libs);
+        
+        m_aliases = new AliasGraph(scripts);
+        m_funcAliases = new FunctionAliases(scripts);
+        m_constants = new ConstantNames(m_funcAliases);
+        
+        applyCoverage(libs);
+        
+        if (m_hasMain) {
+            /*
+             We can only tell a member group is unused if we know every name
+             the main files use.  Without main files we only have the names
+             they call.
+             */
+            findDeadMembers(scripts, refs);
+            m_deadMembers.removeAll(m_hotFuncs);
+        }
+
+        if (report != null) {
+            List<String> names = new ArrayList<String>();
+            for (Node func : m_libFuncs) {
+                names.add(getFunctionName(func));
+            }
+            report.addFunctions(libs, m_libFuncs, names);
+        }
+        
+        if (m_logger.isLoggable(Level.FINE)) {
+            m_logger.log(Level.FINE, "m_calls: " + m_calls);
+        }
+        
+        m_logger.log(Level.INFO, "Starting pruneTree phase 1.");
+        pruneTree();
+        
+        m_logger.log(Level.INFO, "Starting pruneTree phase 2.");
+        pruneTree();
+        
+        m_logger.log(Level.INFO, "Starting pruneVars.");
+        pruneVars(scripts);
+        stopTimer(timer);
+        
+        if (report != null) {
+            report.setRemoved(m_removedFuncs);
+        }
+        
+        if (m_metrics != null) {
+            m_metrics.addSymbols(m_calls.getNameCount());
+            m_metrics.addFunctions(m_funcCount, m_funcCount - getKeptFunctions().length);
+        }
+        flushMetrics();
+        
+        return scripts;
+    }
+    
+    /**
+     * Sort the library functions into cold and hot functions with the coverage profiles.
+     * Cold functions are removed by pruneTree and hot functions are kept.  We keep the
+     * hot FUNCTION nodes themselves instead of their names so another function with the
+     * same name doesn't get kept along with them.
+     * 
+     * @param libs   the analyzed library files in the same order as the copied functions
+     */
+    private void applyCoverage(List<LibraryGraph> libs)
+    {
+        if (m_coverage.isEmpty()) {
+            return;
+        }
+        
+        int i = 0;
+        for (LibraryGraph lib : libs) {
+            boolean covered = false;
+            for (CoverageProfile profile : m_coverage) {
+                covered |= profile.covers(lib.getName(), lib.getLength());
+            }
+            
+            if (!covered) {
+                m_logger.log(Level.WARNING, "There's no coverage for the library " + lib.getName());
+                i += lib.getFunctionCount();
+                continue;
+            }
+            
+            for (int j = 0; j < lib.getFunctionCount(); j++, i++) {
+                Node func = m_libFuncs.get(i);
+                int offset = getBodyOffset(func);
+                
+                int profiles = 0;
+                int runs = 0;
+                for (CoverageProfile profile : m_coverage) {
+                    Boolean ran = profile.isExecuted(lib.getName(), lib.getLength(), offset);
+                    if (ran != null) {
+                        profiles++;
+                        runs += ran.booleanValue() ? 1 : 0;
+                    }
+                }
+                
+                if (profiles == 0) {
+                    continue;
+                } else if (runs <= (1 - m_coverageConfidence) * profiles) {
+                    m_logger.log(Level.FINE, "The function " + getFunctionName(func) + " is cold");
+                    m_coldFuncs.add(func);
+                } else if (runs > 0) {
+                    m_hotFuncs.add(func);
+                    addKeeper(func);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the source offset of the body of a library function.  Coverage ranges start at the
+     * function keyword or the name of a method so the body is always inside the range of
+     * the function itself.
+     * 
+     * @param func   the function or the assignment chain it's in
+     * 
+     * @return the offset or -1 if we don't know where the function is
+     */
+    private static int getBodyOffset(Node func)
+    {
+        Node n = getFunctionNode(func);
+        if (n == null) {
+            return -1;
+        }
+        
+        return n.getLastChild().getSourceOffset();
+    }
+    
+    /**
+     * Get the FUNCTION node of a library function.
+     * 
+     * @param func   the function or the assignment chain it's in
+     * 
+     * @return the FUNCTION node or null if there isn't one
+     */
+    private static Node getFunctionNode(Node func)
+    {
+        Node n = func;
+        while (n.getType() == Token.ASSIGN) {
+            n = n.getLastChild();
+        }
+        
+        if (n.getType() != Token.FUNCTION) {
+            return null;
+        }
+        
+        return n;
+    }
+    
+    /**
+     * <p>
+     * Find the member groups in the libraries which nothing uses.  A member group is an
+     * object literal passed to an extend-style call like <code>$.widget("ui.dialog", {
+     * ... })</code>.  The members only match calls by name, so any call to
+     * <code>open</code> would keep the <code>open</code> member of every widget.  If the
+     * owner of a group, <code>dialog</code> in this case, is never mentioned then none of
+     * its members can be called.
+     * </p>
+     * 
+     * <p>
+     * An owner is used if the main files or externs mention it, if library code outside
+     * of all the groups mentions it, or if a used group with a different owner mentions it.
+     * The members of the other groups are marked as dead so calls never match them and
+     * pruneTree removes them.
+     * </p>
+     * 
+     * @param scripts the copied library scripts
+     * @param refs    the names the main files and externs use
+     */
+    private void findDeadMembers(List<Node> scripts, Set<String> refs)
+    {
+        List<MemberGroup> groups = new ArrayList<MemberGroup>();
+        for (Node script : scripts) {
+            MemberGroup.findGroups(script, groups);
+        }
+        
+        if (groups.isEmpty()) {
+            return;
+        }
+        
+        Set<Node> sites = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        Set<String> owners = new HashSet<String>();
+        for (MemberGroup group : groups) {
+            sites.add(group.getSite());
+            owners.add(group.getOwner());
+        }
+        
+        Set<String> names = new HashSet<String>(refs);
+        for (Node script : scripts) {
+            MemberGroup.addNames(script, names, sites);
+        }
+        
+        Set<String> live = new HashSet<String>();
+        for (String owner : owners) {
+            if (names.contains(owner)) {
+                live.add(owner);
+            }
+        }
+        
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (MemberGroup group : groups) {
+                if (!live.contains(group.getOwner())) {
+                    continue;
+                }
+                
+                for (String name : group.getNames()) {
+                    if (owners.contains(name) && !name.equals(group.getOwner()) && live.add(name)) {
+                        changed = true;
+                    }
+                }
+            }
+        }
+        
+        for (MemberGroup group : groups) {
+            if (!live.contains(group.getOwner())) {
+                m_logger.log(Level.INFO, "Unused member group: " + group.getOwner());
+                m_deadMembers.addAll(group.getMembers());
+            }
+        }
+    }
+    
+    /**
+     * Add private copies of the specified libraries to this compiler along with the calls
+     * they make.
+     * 
+     * @param libs   the analyzed library files
+     * 
+     * @return the copied SCRIPT nodes in the same order as the libraries
+     */
+    List<Node> addLibraries(List<LibraryGraph> libs)
+    {
+        List<Node> scripts = new ArrayList<Node>();
+        for (LibraryGraph lib : libs) {
+            scripts.add(lib.copyTree(m_libFuncs));
+            addCalls(lib.getCalls());
+        }
+        
+        m_funcCount = m_libFuncs.size();
+        
+        return scripts;
+    }
+    
+    /**
+     * Parse and analyze the specified library file.  The resulting graph is never changed
+     * by a prune operation so it can be shared with other compiler instances.
+     * 
+     * @param file   the library file to analyze
+     * 
+     * @return the analyzed library.  If there were errors parsing the library then
+     *         {@link LibraryGraph#hasErrors()} will return true.
+     */
+    public LibraryGraph analyzeLibrary(JSFile file)
+    {
+        Node node = parse(file.getName(), file.getContent());
+        
+        CallList calls = new CallList();
+        List<Node> funcs = new ArrayList<Node>();
+        
+        if (node == null) {
+            /*
+             Then there were errors parsing the file and we can't
+             prune anything. 
+             */
+            return new LibraryGraph(file, null, funcs, calls, m_errMgr);
+        }
+        
+        m_defines.fold(node);
+        printTree("Tree before pruning:", node);
+        
+        m_logger.log(Level.INFO, "starting process...");
+        Object event = SlimEvents.beginAnalysis();
+        SlimMetrics.Timer timer = startTimer(SlimMetrics.Phase.PROCESS);
+        m_funcAliases = new FunctionAliases(Collections.singletonList(node));
+        m_constants = new ConstantNames(m_funcAliases);
+        process(node, true, calls, funcs);
+        m_funcAliases = null;
+        m_constants = null;
+        stopTimer(timer);
+        SlimEvents.commitAnalysis(event, file, m_nodeVisits, m_callSites, funcs.size());
+        flushMetrics();
+        m_logger.log(Level.INFO, "Done processing...");
+        
+        /*
+         The root holds the externs block and the JavaScript block with our single script.
+         */
+        return new LibraryGraph(file, node.getLastChild().getFirstChild(), funcs, calls, m_errMgr);
+    }
+    
+    /**
+     * Parse the specified main file and find all of the calls it makes.  The calls can be
+     * added to any compiler instance with {@link #addCalls(List)}.  The list also has all
+     * of the names the file mentions so the compiler can find the unused member groups.
+     * 
+     * @param file   the main file to analyze
+     * 
+     * @return the calls this file makes.  The list is empty if there were errors parsing the file.
+     */
+    public List<Call> analyzeMain(JSFile file)
+    {
+        CallList calls = new CallList();
+        Set<String> names = new HashSet<String>();
+        calls.setMainNames(names);
+        
+        Node node = parse(file.getName(), file.getContent());
+        if (node != null) {
+            printTree("Tree before pruning:", node);
+            m_logger.log(Level.INFO, "starting process...");
+            Object event = SlimEvents.beginAnalysis();
+            SlimMetrics.Timer timer = startTimer(SlimMetrics.Phase.PROCESS);
+            m_mainDecls = new HashSet<String>();
+            AliasGraph.addDeclaredNames(node, m_mainDecls);
+            m_mainLeaks = new AliasGraph(Collections.singletonList(node)).leaks(m_mainDecls);
+            m_funcAliases = new FunctionAliases(Collections.singletonList(node));
+            m_constants = new ConstantNames(m_funcAliases);
+            process(node, false, calls, m_funcs);
+            m_mainDecls = null;
+            m_funcAliases = null;
+            m_constants = null;
+            MemberGroup.addNames(node, names, null);
+            stopTimer(timer);
+            SlimEvents.commitAnalysis(event, file, m_nodeVisits, m_callSites, 0);
+            flushMetrics();
+            m_logger.log(Level.INFO, "Done processing...");
+        }
+        
+        return calls;
+    }
+    
+    /**
+     * Add calls to this compiler or increment the call counts of the calls which are
+     * already here.  The specified calls are never changed.  If the calls came from
+     * {@link #analyzeMain(JSFile)} then the names the main file mentions are added too.
+     * 
+     * @param calls  the calls to add
+     */
+    public void addCalls(List<Call> calls)
+    {
+        for (Call call : calls) {
+            m_lookups++;
+            Call c = m_calls.getCall(call.getName());
+            if (c == null) {
+                m_calls.add(new Call(call));
             } else {
-                slim(file.getName(), file.getContent(), false, compLevel);
+                c.incCount(call.getCount());
+                c.addReceivers(call);
             }
         }
         
-        return addLib("combined_lib.js", sb.toString(), compLevel);
+        Set<String> names = getMainNames(calls);
+        if (names != null) {
+            addMainNames(names);
+        }
+    }
+    
+    /**
+     * Get the names a main file mentions from the calls {@link #analyzeMain(JSFile)} found
+     * in it.
+     * 
+     * @param calls  the calls from the main file
+     * 
+     * @return the names or null if the calls didn't come from a main file
+     */
+    static Set<String> getMainNames(List<Call> calls)
+    {
+        if (calls instanceof CallList) {
+            return ((CallList) calls).getMainNames();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Add names the main files mention.  Member groups are only removed when the compiler
+     * has the names from the main files since a main file can use a group without calling
+     * it by name.  The owner of a group is used if it is one of these names.
+     * 
+     * @param names  the names to add
+     */
+    void addMainNames(Collection<String> names)
+    {
+        m_hasMain = true;
+        m_mainNames.addAll(names);
+    }
+    
+    /**
+     * Create the compiler options for a parse or compile.
+     * 
+     * @param compLevel the compilation level or null for the default options
+     * 
+     * @return the options
+     */
+    private CompilerOptions getOptions(CompilationLevel compLevel)
+    {
+        CompilerOptions options = new CompilerOptions();
+        if (compLevel != null) {
+            // Advanced mode is used here, but additional options could be set, too.
+            compLevel.setOptionsForCompilationLevel(options);
+        }
+        
+        if (m_formattingOptions != null) {
+            m_formattingOptions.applyToOptions(options);
+        }
+        
+        return options;
     }
     
     /**
@@ -192,15 +862,15 @@ public class JSlim
     public static ErrorManager validate(String name, String content, FormattingOption formattingOptions)
     {
         Compiler compiler = new Compiler();
-
+        
         CompilerOptions options = new CompilerOptions();
         // Advanced mode is used here, but additional options could be set, too.
         CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel(options);
-
+        
         // To get the complete set of externs, the logic in
         // CompilerRunner.getDefaultExterns() should be used here.
         JSSourceFile extern[] = {JSSourceFile.fromCode("externs.js", "")};
-
+        
         // The dummy input name "input.js" is used here so that any warnings or
         // errors will cite line numbers in terms of input.js.
         JSSourceFile input[] = {JSSourceFile.fromCode(name, content)};
@@ -208,116 +878,107 @@ public class JSlim
         if (formattingOptions != null) {
             formattingOptions.applyToOptions(options);
         }
-
+        
         compiler.init(extern, input, options);
-
+        
         compiler.parse();
         return compiler.getErrorManager();
     }
     
     /**
-     * Parse, compile, and slim the specified code
+     * Parse the specified code.
      * 
-     * @param name      the name of the file to slim
-     * @param code      JavaScript source code to compile.
-     * @param isLib     true if this is a library file and false otherwise
-     * @param compLevel the compilation level
+     * @param name      the name of the file to parse
+     * @param code      JavaScript source code to parse.
      * 
-     * @return The compiled version of the code.
+     * @return the root of the parse tree or null if there were errors parsing the code
      */
-    private String slim(String name, String code, boolean isLib, CompilationLevel compLevel)
+    Node parse(String name, String code)
     {
         Compiler compiler = new Compiler();
-
-        CompilerOptions options = new CompilerOptions();
-        if (compLevel != null) {
-            // Advanced mode is used here, but additional options could be set, too.
-            compLevel.setOptionsForCompilationLevel(options);
-        }
-
+        
         // To get the complete set of externs, the logic in
         // CompilerRunner.getDefaultExterns() should be used here.
         JSSourceFile extern[] = {JSSourceFile.fromCode("externs.js", "")};
-
+        
         // The dummy input name "input.js" is used here so that any warnings or
         // errors will cite line numbers in terms of input.js.
         JSSourceFile input[] = {JSSourceFile.fromCode(name, code)};
         
-        if (m_formattingOptions != null) {
-            m_formattingOptions.applyToOptions(options);
-        }
-
-        compiler.init(extern, input, options);
-
+        Object event = SlimEvents.beginParse();
+        SlimMetrics.Timer timer = startTimer(SlimMetrics.Phase.PARSE);
+        compiler.init(extern, input, getOptions(null));
+        
         compiler.parse();
+        stopTimer(timer);
         m_errMgr = compiler.getErrorManager();
         
-        if (m_errMgr.getErrorCount() > 0) {
-            /*
-             Then there were errors parsing the file and we can't
-             prune anything. 
-             */
-            return "";
-        }
-
-        Node node = compiler.getRoot();
-        if (m_printTree) {
-            System.out.println("Tree before pruning:");
-            System.out.println(node.toStringTree());
-        }
-        
-        //System.out.println("node before change: " + compiler.toSource());
-        
-        LOGGER.log(Level.INFO, "starting process...");
-        Node n = process(node, isLib);
+        Node root = m_errMgr.getErrorCount() > 0 ? null : compiler.getRoot();
+        SlimEvents.commitParse(event, name, code, root);
         
-        LOGGER.log(Level.INFO, "Done processing...");
-        LOGGER.log(Level.FINE, "m_calls: " + m_calls);
-        
-        m_funcCount = m_libFuncs.size();
+        return root;
+    }
+    
+    /**
+     * Generate the source code for the specified scripts.
+     * 
+     * @param scripts   the SCRIPT nodes to generate the code for
+     * @param compLevel the compilation level
+     * 
+     * @return the generated code
+     */
+    private String toSource(List<Node> scripts, CompilationLevel compLevel)
+    {
+        Compiler compiler = new Compiler();
         
-        if (isLib) {
-            LOGGER.log(Level.INFO, "Starting pruneTree phase 1.");
-            pruneTree();
-            
-            LOGGER.log(Level.INFO, "Starting pruneTree phase 2.");
-            pruneTree();
-        }
+        JSSourceFile extern[] = {JSSourceFile.fromCode("externs.js", "")};
+        compiler.init(extern, new JSSourceFile[0], getOptions(compLevel));
         
-        if (m_funcCount > 0) {
-            System.out.println("Removed " + (m_funcCount - m_keepers.size()) + " out of " + m_funcCount + " named functions.");
+        // The compiler is responsible for generating the compiled code; it is not
+        // accessible via the Result.
+        Compiler.CodeBuilder cb = new Compiler.CodeBuilder();
+        for (int i = 0; i < scripts.size(); i++) {
+            compiler.toSource(cb, i, scripts.get(i));
         }
         
+        return cb.toString();
+    }
+    
+    /**
+     * Print the specified tree if this compiler should print the AST tree.
+     * 
+     * @param label  the label to print before the tree
+     * @param node   the tree to print
+     */
+    private void printTree(String label, Node node)
+    {
         if (m_printTree) {
-            System.out.println("Tree after pruning:");
+            System.out.println(label);
             System.out.println(node.toStringTree());
         }
-        
-        // The compiler is responsible for generating the compiled code; it is not
-        // accessible via the Result.
-        return compiler.toSource();
     }
     
     /**
-     * Process this particular node looking for calls, interesting functions, and 
-     * variables.
+     * Process this particular node looking for calls and interesting functions.
      * 
      * @param node   the node to process
      * @param isLib  true if this node is from a library file and false otherwise
+     * @param calls  the list to add the calls to
+     * @param funcs  the list to add the interesting functions to
      * 
      * @return the original node reference
      */
-    private Node process(Node node, boolean isLib)
+    Node process(Node node, boolean isLib, CallList calls, List<Node> funcs)
     {
         Iterator<Node> nodes = node.children().iterator();
         
         while (nodes.hasNext()) {
             Node n = nodes.next();
+            m_nodeVisits++;
             
-            if (n.getType() == Token.VAR && n.getFirstChild().getType() == Token.NAME) {
-                m_vars.add(n);
-            } else if (n.getType() == Token.CALL || n.getType() == Token.NEW) {
-                addCalls(n);
+            if (n.getType() == Token.CALL || n.getType() == Token.NEW) {
+                m_callSites++;
+                addCalls(n, calls);
             } else if (n.getType() == Token.ASSIGN ||
                        n.getType() == Token.ASSIGN_BITOR  ||
                        n.getType() == Token.ASSIGN_BITXOR ||
@@ -333,30 +994,24 @@ public class JSlim
                 /*
                  This is an assignment operator.  
                  */
-                addAssign(n);
+                addAssign(n, calls);
+            } else if (n.getType() == Token.NAME) {
+                addFunctionRef(n, calls);
             } else if (isLib && n.getType() == Token.FUNCTION &&
                        isInterestingFunction(n)) {
-                if (isLib) {
-                    m_libFuncs.add(n);
-                } else {
-                    m_funcs.add(n);
-                }
+                funcs.add(n);
                 
                 Node parent = n.getParent();
                 while (parent != null && parent.getType() == Token.ASSIGN) {
                     if (parent.getFirstChild().getNext().getType() != Token.FUNCTION) {
-                        if (isLib) {
-                            m_libFuncs.add(parent);
-                        } else {
-                            m_funcs.add(parent);
-                        }
+                        funcs.add(parent);
                     }
                     
                     parent = parent.getParent();
                 }
             }
             
-            process(n, isLib);
+            process(n, isLib, calls, funcs);
         }
         
         return node;
@@ -430,8 +1085,15 @@ public class JSlim
                  this one specific function.
                  */
                 if (!(n.getParent().getType() == Token.BLOCK && n.getParent().getParent().getType() == Token.FUNCTION)) {
-                    return true;
+                    return !isModuleWrapper(n);
                 }
+                
+                /*
+                 The functions declared in a module wrapper are the library's own
+                 private functions.  Nothing outside the wrapper can call them so
+                 the calls and references we find in the library are all of them.
+                 */
+                return isModuleWrapper(n.getParent().getParent());
             }
         }
         
@@ -440,13 +1102,51 @@ public class JSlim
     }
     
     /**
-     * Add an assignment call to our list of calls.
+     * Determine if the specified function is a module wrapper like
+     * <code>(function(window) { ... })(window)</code>.
      * 
-     * @param assign the assignment node to add
+     * @param func   the FUNCTION node
+     * 
+     * @return true if the function is a module wrapper and false otherwise
+     */
+    private boolean isModuleWrapper(Node func)
+    {
+        return m_funcAliases != null && m_funcAliases.isModuleWrapper(func);
+    }
+    
+    /**
+     * Add a reference to a declared function which isn't a call.  Passing a function to
+     * another function like <code>setTimeout(tick)</code> or putting it in an array like
+     * <code>[ tick, tock ]</code> or an object literal like <code>{ click: onClick }</code>
+     * uses it just like calling it does.
+     * 
+     * @param name   the NAME node
+     * @param calls  the list of calls to add the reference to
      */
-    private void addAssign(Node assign)
+    private void addFunctionRef(Node name, CallList calls)
     {
-        addAssign(assign, m_calls);
+        Node parent = name.getParent();
+        if (m_funcAliases == null ||
+            parent.getType() == Token.VAR ||
+            parent.getType() == Token.LP ||
+            parent.getType() == Token.FUNCTION ||
+            parent.getType() == Token.CATCH ||
+            parent.getType() == Token.ASSIGN ||
+            ((parent.getType() == Token.CALL || parent.getType() == Token.NEW) && parent.getFirstChild() == name)) {
+            /*
+             Declarations, assignments, and calls are counted somewhere else.
+             */
+            return;
+        }
+        
+        /*
+         A function in an object literal like { trim: strip } is also called by
+         the name of its key, but the object can be indexed like handlers[type]()
+         so the value counts as a reference just like an array entry.
+         */
+        if (m_funcAliases.isDeclaredFunction(name)) {
+            addCall(name.getString(), name, calls);
+        }
     }
     
     /**
@@ -456,7 +1156,7 @@ public class JSlim
      * @param assign the assignment node to add
      * @param calls  the list of calls to add this assignment to
      */
-    private void addAssign(Node assign, List<Call> calls)
+    private void addAssign(Node assign, CallList calls)
     {
         if (assign.getChildCount() < 2) {
             /*
@@ -474,6 +1174,7 @@ public class JSlim
              */
             
             addCall(assign.getLastChild().getString(), assign, calls);
+            addAliasCalls(assign.getLastChild(), calls);
         } else if (assign.getFirstChild().getType() == Token.GETELEM &&
                    assign.getLastChild().getLastChild() != null &&
                    assign.getLastChild().getLastChild().getType() == Token.STRING) {
@@ -493,7 +1194,22 @@ public class JSlim
      * @param callNode the Node representing this call
      * @param calls    the list to add it to
      */
-    private void addCall(String call, Node callNode, List<Call> calls)
+    private void addCall(String call, Node callNode, CallList calls)
+    {
+        addCall(call, null, callNode, calls);
+    }
+    
+    /**
+     * Add a call made on a named object to the specified list of calls or increment the
+     * call count if the call is already in the list.
+     * 
+     * @param call     the call to add
+     * @param receiver the name of the object the call is made on or null if the call could
+     *                 be on any object
+     * @param callNode the Node representing this call
+     * @param calls    the list to add it to
+     */
+    private void addCall(String call, String receiver, Node callNode, CallList calls)
     {
         if (callMatchesParentfunction(call, callNode)) {
             /*
@@ -506,10 +1222,11 @@ public class JSlim
             return;
         }
         
-        Call c = getCall(call, calls);
+        m_lookups++;
+        Call c = calls.getCall(call);
         
         if (c == null) {
-            c = new Call(call);
+            c = new Call(call, receiver);
             calls.add(c);
         } else {
             /*
@@ -517,38 +1234,44 @@ public class JSlim
              the count
              */
             c.incCount();
+            c.addReceiver(receiver);
         }
     }
     
-    /**
-     * Get the call object for the call with the specified name.
-     * 
-     * @param name   the call name to look for
-     * @param calls  the list of calls to look in
-     * 
-     * @return the call if it was in the list of null if it wasn't
-     */
-    private static Call getCall(String name, List<Call> calls)
-    {
-        for (Call call : calls) {
-            if (call.getName().equals(name)) {
-                return call;
-            }
-        }
-        
-        return null;
-    }
-    
     /**
      * Add a call with the specified get property node.
      * 
      * @param getProp the node to add
      * @param calls   the list of calls to add it to
      */
-    private void addCallsProp(Node getProp, List<Call> calls)
+    private void addCallsProp(Node getProp, CallList calls)
     {
-        if (getProp.getLastChild().getType() == Token.STRING) {
-            addCall(getProp.getLastChild().getString(), getProp, calls);
+        if (isIndirectCall(getProp)) {
+            /*
+             This is a call like fn.call(obj), fn.apply(obj, args), or
+             fn.bind(obj) so the real call is to fn.  Calls to functions on
+             other objects like jQuery.fn.init.apply(this, arguments) find
+             init when we look at the rest of the property chain below.
+             */
+            Node func = getProp.getFirstChild();
+            if (func.getType() == Token.NAME) {
+                addCall(func.getString(), func, calls);
+                addAliasCalls(func, calls);
+            } else if (func.getType() == Token.GETELEM) {
+                /*
+                 This is a call like obj["init"].apply(this, arguments)
+                 */
+                Set<String> names = getIndexNames(func);
+                if (names != null) {
+                    for (String c : names) {
+                        addCall(c, func, calls);
+                    }
+                }
+            }
+        }
+        
+        if (!isFunctionMethod(getProp) && getProp.getLastChild().getType() == Token.STRING) {
+            addCall(getProp.getLastChild().getString(), getReceiver(getProp.getFirstChild()), getProp, calls);
         }
         
         if (getProp.getFirstChild().getType() == Token.CALL) {
@@ -570,13 +1293,97 @@ public class JSlim
     }
     
     /**
-     * Add all calls underneath the specified node.
+     * Determine if the specified property might be the call, apply, or bind method of a
+     * function like <code>fn.call(obj)</code> or <code>jQuery.fn.init.apply(this,
+     * arguments)</code>.
      * 
-     * @param call   the call to look in
+     * @param getProp the GETPROP node
+     * 
+     * @return true if this might be a function's call, apply, or bind method and false
+     *         otherwise
+     */
+    private static boolean isIndirectCall(Node getProp)
+    {
+        if (getProp.getLastChild().getType() != Token.STRING) {
+            return false;
+        }
+        
+        String name = getProp.getLastChild().getString();
+        return "call".equals(name) || "apply".equals(name) || "bind".equals(name);
+    }
+    
+    /**
+     * Determine if the specified property is certainly the call or apply method of a
+     * function.  We only know it's a function if it's a plain name or a function literal.
+     * A property like <code>$.ui.plugin.call</code> might be a method named call on an
+     * object, and jQuery, underscore, Prototype, and MooTools all define methods named
+     * bind, so those are still calls by their own name too.
+     * 
+     * @param getProp the GETPROP node
+     * 
+     * @return true if this is a function's call or apply method and false otherwise
+     */
+    private static boolean isFunctionMethod(Node getProp)
+    {
+        if (getProp.getLastChild().getType() != Token.STRING) {
+            return false;
+        }
+        
+        String name = getProp.getLastChild().getString();
+        int type = getProp.getFirstChild().getType();
+        return ("call".equals(name) || "apply".equals(name)) &&
+            (type == Token.NAME || type == Token.FUNCTION);
+    }
+    
+    /**
+     * Get the name of the object a property is read from.  That's <code>_</code> for
+     * <code>_.each</code>.  Properties of properties like <code>a.b.c</code> could be on
+     * any object.
+     * 
+     * @param obj    the object part of the property
+     * 
+     * @return the name or null if the object doesn't have a name we can follow
      */
-    private void addCalls(Node call)
+    private String getReceiver(Node obj)
     {
-        addCalls(call, m_calls);
+        if (obj.getType() != Token.NAME) {
+            return null;
+        }
+        
+        String root = obj.getString();
+        if (m_mainDecls != null && (m_mainLeaks || m_mainDecls.contains(root))) {
+            /*
+             The main files define this name themselves so it might not be
+             the library object with the same name.  If the main files pass
+             library objects around or copy things into them then any call
+             there could reach any function.
+             */
+            return null;
+        }
+        
+        return root;
+    }
+    
+    /**
+     * Add calls to the functions a variable can hold.  Calling <code>each(...)</code>
+     * after <code>var each = jQuery.each;</code> is really a call to <code>jQuery.each</code>.
+     * 
+     * @param name   the NAME node of the variable
+     * @param calls  the list to add the calls to
+     */
+    private void addAliasCalls(Node name, CallList calls)
+    {
+        if (m_funcAliases == null) {
+            return;
+        }
+        
+        for (Node target : m_funcAliases.getTargets(name)) {
+            if (target.getType() == Token.GETPROP) {
+                addCall(target.getLastChild().getString(), getReceiver(target.getFirstChild()), name, calls);
+            } else {
+                addCall(target.getString(), name, calls);
+            }
+        }
     }
     
     private boolean callMatchesParentfunction(String call, Node callNode)
@@ -584,7 +1391,8 @@ public class JSlim
         Node f = findInterestingFunctionParent(callNode);
         
         if (f != null) {
-            if (getFunctionName(f).equals(call)) {
+            Set<String> names = getComputedNames(f);
+            if (getFunctionName(f).equals(call) || (names != null && names.contains(call))) {
                 /*
                  Then the call name matches the direct parent name
                  */
@@ -617,7 +1425,7 @@ public class JSlim
      * @param call   the call to look in
      * @param calls  the list to add the call to
      */
-    private void addCalls(Node call, List<Call> calls)
+    private void addCalls(Node call, CallList calls)
     {
         if (call.getType() == Token.GETPROP) {
             addCallsProp(call, calls);
@@ -626,7 +1434,8 @@ public class JSlim
         } else if (call.getFirstChild().getType() == Token.NAME) {
             Node name = call.getFirstChild();
             addCall(name.getString(), name, calls);
-            LOGGER.log(Level.FINE, "name.getString(): " + name.getString());
+            addAliasCalls(name, calls);
+            m_logger.log(Level.FINE, "name.getString(): " + name.getString());
         } else if (call.getFirstChild().getType() == Token.GETELEM) {
             /*
              This is a call using the array index to get the function
@@ -634,113 +1443,335 @@ public class JSlim
      
              obj['hello']();
              */
-            String c = getConcatenatedStringIndex(call.getFirstChild());
-            if (c != null) {
-                addCall(c, call, calls);
+            Set<String> names = getIndexNames(call.getFirstChild());
+            if (names != null) {
+                for (String c : names) {
+                    addCall(c, call, calls);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the names a property with an array index like <code>obj['h' + 'ello']</code> or
+     * <code>jQuery.fn['inner' + name]</code> can have.
+     * 
+     * @param getElem the GETELEM node
+     * 
+     * @return the names or null if we can't tell what the name is
+     */
+    private Set<String> getIndexNames(Node getElem)
+    {
+        if (m_constants == null) {
+            m_constants = new ConstantNames(m_funcAliases);
+        }
+        
+        return m_constants.getNames(getElem.getLastChild());
+    }
+    
+    /**
+     * Use all the collected information to prune the tree and remove unused functions.
+     */
+    void pruneTree()
+    {
+        Object event = SlimEvents.beginReachability();
+        m_pruneRounds++;
+        long nodeVisits = m_nodeVisits;
+        int funcCount = m_libFuncs.size();
+        
+        m_allFuncs.addAll(m_funcs);
+        m_allFuncs.addAll(m_libFuncs);
+        m_allFuncNames = null;
+        
+        for (Call call : m_calls) {
+            findKeepers(call);
+        }
+        
+        if (m_logger.isLoggable(Level.FINE)) {
+            m_logger.log(Level.FINE, "m_keepers: " + m_keepers);
+        }
+        
+        for (int i = m_libFuncs.size() - 1; i > -1; i--) {
+            Node func = m_libFuncs.get(i);
+            
+            if (!isKeeper(func) || m_coldFuncs.contains(func)) {
+                clearKeeper(func);
+                removeCalledKeepers(func);
+                removeFunction(func);
+                m_removedFuncs.add(func);
+            }
+        }
+        
+        /*
+         We remove the functions from the list all at once at the end since
+         removing them one at a time from an ArrayList is quadratic.
+         */
+        List<Node> libFuncs = new ArrayList<Node>();
+        for (Node func : m_libFuncs) {
+            if (!m_removedFuncs.contains(func)) {
+                libFuncs.add(func);
+            }
+        }
+        m_libFuncs = libFuncs;
+        
+        SlimEvents.commitReachability(event, m_pruneRounds, m_calls.size(), funcCount,
+                                      funcCount - m_libFuncs.size(), m_nodeVisits - nodeVisits);
+        
+        m_logger.log(Level.INFO, "Keeping the following functions:");
+        for (Node f : m_libFuncs) {
+            m_logger.log(Level.INFO, "func: " + getFunctionName(f));
+        }
+    }
+    
+    /**
+     * <p>
+     * Remove the variables in the pruned libraries which nothing reads.  A variable is only
+     * removed if its initializer has no side effects so removing it can't change what the
+     * library does.
+     * </p>
+     * 
+     * <p>
+     * Reads are counted by name within the function which declares the variable so a
+     * variable with the same name in a nested function keeps it.  That's conservative, but
+     * it means we never need to resolve scopes.  Variables declared outside of any function
+     * are global and other scripts in the page can read them so we always keep those.  We
+     * also keep all the variables in functions which call eval.
+     * </p>
+     * 
+     * @param scripts the copied and pruned library scripts
+     */
+    private void pruneVars(List<Node> scripts)
+    {
+        List<Node> removed = new ArrayList<Node>();
+        do {
+            removed.clear();
+            
+            m_vars.clear();
+            for (Node script : scripts) {
+                findVars(script, m_vars);
+            }
+            
+            /*
+             We count the names once for each function and remove all the
+             variables we can.  Removing a variable can only lower the counts
+             so we loop until there's nothing else to remove.
+             */
+            Map<Node, Map<String, Integer>> scopes = new IdentityHashMap<Node, Map<String, Integer>>();
+            for (Node var : m_vars) {
+                Node scope = findScope(var);
+                Map<String, Integer> names = scopes.get(scope);
+                if (names == null) {
+                    names = new HashMap<String, Integer>();
+                    countNames(scope, names);
+                    scopes.put(scope, names);
+                }
+                
+                if (names.containsKey("eval")) {
+                    continue;
+                }
+                
+                Node name = var.getFirstChild();
+                while (name != null) {
+                    Node next = name.getNext();
+                    
+                    /*
+                     The only name we counted was the declaration itself.
+                     */
+                    if (names.get(name.getString()) == 1 && !hasSideEffects(name.getFirstChild())) {
+                        m_logger.log(Level.INFO, "removeVar(" + name.getString() + ")");
+                        var.removeChild(name);
+                        removed.add(name);
+                    }
+                    
+                    name = next;
+                }
+                
+                if (!var.hasChildren()) {
+                    var.detachFromParent();
+                }
+            }
+            
+            if (removed.size() > 0) {
+                removeVarFunctions(removed);
+            }
+        } while (removed.size() > 0);
+    }
+    
+    /**
+     * Find the variable declarations in functions under the specified node.  This skips
+     * global variables and the variables declared in for loops.
+     * 
+     * @param node   the node to search
+     * @param vars   the list to add the VAR nodes to
+     */
+    private void findVars(Node node, List<Node> vars)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            m_nodeVisits++;
+            
+            if (n.getType() == Token.VAR && node.getType() == Token.BLOCK && findScope(n) != null) {
+                vars.add(n);
+            }
+            
+            findVars(n, vars);
+        }
+    }
+    
+    /**
+     * Find the function which declares the variables in the specified node.
+     * 
+     * @param n      the node to start from
+     * 
+     * @return the closest FUNCTION parent or null if the node isn't in a function
+     */
+    private Node findScope(Node n)
+    {
+        for (Node parent = n.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent.getType() == Token.FUNCTION) {
+                return parent;
             }
         }
+        
+        return null;
+    }
+    
+    /**
+     * Count all of the names used under the specified node.  This includes the
+     * declarations, parameters, and nested functions.
+     * 
+     * @param node   the node to count the names in
+     * @param names  the map of names to counts
+     */
+    private void countNames(Node node, Map<String, Integer> names)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            m_nodeVisits++;
+            
+            if (n.getType() == Token.NAME) {
+                Integer count = names.get(n.getString());
+                names.put(n.getString(), count == null ? 1 : count + 1);
+            }
+            
+            countNames(n, names);
+        }
     }
     
-    private String getConcatenatedStringIndex(Node getElem)
+    /**
+     * Determine if evaluating the specified variable initializer could have side effects.
+     * This only knows about literals, names, property reads, function expressions, and
+     * operators.  Everything else, like calls and assignments, might have side effects.
+     * 
+     * @param n      the initializer or null if the variable doesn't have one
+     * 
+     * @return true if the initializer might have side effects and false otherwise
+     */
+    private boolean hasSideEffects(Node n)
     {
-        if (getElem.getFirstChild().getNext().getType() == Token.STRING) {
+        if (n == null || n.getType() == Token.FUNCTION) {
             /*
-             Then this is a simple string reference like obj['hello']
-             and we can just return the string
+             Creating a function doesn't run it.
              */
-            return getElem.getFirstChild().getNext().getString();
-        } else if (getElem.getFirstChild().getNext().getType() == Token.ADD) {
-            /*
-             Then this is a concatenated string like obj['h' + 'el' + 'lo']
-             */
-            
-            StringBuffer sb = new StringBuffer();
-            Node current = getElem.getFirstChild().getNext();
-            while (current != null) {
-                if (current.getFirstChild().getType() == Token.ADD) {
-                    String s = getString(current.getFirstChild().getNext());
-                    if (s != null) {
-                        sb.insert(0, s);
-                    } else {
-                        return null;
-                    }
-                    current = current.getFirstChild();
-                } else if (current.getFirstChild().getType() == Token.STRING) {
-                    String s = getString(current.getFirstChild().getNext());
-                    if (s != null) {
-                        sb.insert(0, s);
-                    } else {
-                        return null;
-                    }
-                    
-                    s = getString(current.getFirstChild());
-                    if (s != null) {
-                        sb.insert(0, s);
-                    } else {
-                        return null;
+            return false;
+        }
+        
+        switch (n.getType()) {
+            case Token.NAME:
+            case Token.NUMBER:
+            case Token.STRING:
+            case Token.TRUE:
+            case Token.FALSE:
+            case Token.NULL:
+            case Token.THIS:
+            case Token.REGEXP:
+            case Token.EMPTY:
+            case Token.ARRAYLIT:
+            case Token.OBJECTLIT:
+            case Token.GET:
+            case Token.SET:
+            case Token.GETPROP:
+            case Token.GETELEM:
+            case Token.NOT:
+            case Token.BITNOT:
+            case Token.POS:
+            case Token.NEG:
+            case Token.TYPEOF:
+            case Token.VOID:
+            case Token.ADD:
+            case Token.SUB:
+            case Token.MUL:
+            case Token.DIV:
+            case Token.MOD:
+            case Token.BITOR:
+            case Token.BITXOR:
+            case Token.BITAND:
+            case Token.LSH:
+            case Token.RSH:
+            case Token.URSH:
+            case Token.EQ:
+            case Token.NE:
+            case Token.SHEQ:
+            case Token.SHNE:
+            case Token.LT:
+            case Token.LE:
+            case Token.GT:
+            case Token.GE:
+            case Token.AND:
+            case Token.OR:
+            case Token.HOOK:
+            case Token.COMMA:
+                for (Node c = n.getFirstChild(); c != null; c = c.getNext()) {
+                    if (hasSideEffects(c)) {
+                        return true;
                     }
-                    current = null;
-                } else {
-                    current = null;
                 }
-            }
-            
-            return sb.toString();
-        } else {
-            /*
-             Then this was some more complex type of string like
-             obj[('h' + 'el' + 'lo').substring(2)].  We can't evaluate
-             that string with just static evaluation so the user
-             will have to declare an external for that.
-             */
-            return null;
+                
+                return false;
+            default:
+                return true;
         }
     }
     
-    private String getString(Node n)
+    /**
+     * Removing a variable also removes any library functions in its initializer.  This
+     * method finds those functions and marks them as removed.
+     * 
+     * @param names  the NAME nodes of the removed variables
+     */
+    private void removeVarFunctions(List<Node> names)
     {
-        if (n.getType() == Token.STRING) {
-            return n.getString();
-        } else if (n.getType() == Token.NUMBER) {
-            double num = n.getDouble();
-            int inum = (int) num;
-            if (inum == num) {
-                return "" + inum;
-            } else {
-                return "" + num;
+        Set<Node> libFuncs = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        libFuncs.addAll(m_libFuncs);
+        
+        for (Node name : names) {
+            findVarFunctions(name, libFuncs);
+        }
+        
+        List<Node> kept = new ArrayList<Node>();
+        for (Node func : m_libFuncs) {
+            if (!m_removedFuncs.contains(func)) {
+                kept.add(func);
             }
-        } else {
-            return null;
         }
+        m_libFuncs = kept;
     }
     
     /**
-     * Use all the collected information to prune the tree and remove unused functions.
+     * Mark the library functions under the specified node as removed.
+     * 
+     * @param node     the node to search
+     * @param libFuncs the library functions which haven't been removed
      */
-    private void pruneTree()
+    private void findVarFunctions(Node node, Set<Node> libFuncs)
     {
-        m_allFuncs.addAll(m_funcs);
-        m_allFuncs.addAll(m_libFuncs);
-        
-        for (Call call : m_calls) {
-            findKeepers(call);
-        }
-        
-        LOGGER.log(Level.FINE, "m_keepers: " + m_keepers);
-        
-        for (int i = m_libFuncs.size() - 1; i > -1; i--) {
-            Node func = m_libFuncs.get(i);
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            m_nodeVisits++;
             
-            if (!m_keepers.contains(func)) {
-                removeCalledKeepers(func);
-                removeFunction(func);
-                m_libFuncs.remove(func);
+            if (libFuncs.contains(n)) {
+                clearKeeper(n);
+                m_removedFuncs.add(n);
             }
-        }
-        
-        LOGGER.log(Level.INFO, "Keeping the following functions:");
-        for (Node f : m_libFuncs) {
-            LOGGER.log(Level.INFO, "func: " + getFunctionName(f));
+            
+            findVarFunctions(n, libFuncs);
         }
     }
     
@@ -755,18 +1786,75 @@ public class JSlim
     {
         Call calls[] = findCalls(func);
         for (Call call : calls) {
-            Call orig = getCall(call.getName(), m_calls);
+            m_lookups++;
+            Call orig = m_calls.getCall(call.getName());
             orig.decCount(call.getCount());
             
             if (orig.getCount() < 1) {
                 Node f = findFunction(orig.getName());
                 if (f != null) {
-                    m_keepers.remove(f);
+                    removeKeeper(f);
                 }
             }
         }
     }
     
+    /**
+     * Add a function to the list of keepers.  A function can be added more than once if
+     * it is called by more than one name.
+     * 
+     * @param func   the function to keep
+     */
+    private void addKeeper(Node func)
+    {
+        m_keepers.add(func);
+        
+        Integer count = m_keeperCounts.get(func);
+        m_keeperCounts.put(func, count == null ? 1 : count + 1);
+    }
+    
+    /**
+     * Remove one instance of a function from the list of keepers.  The function stays in
+     * m_keepers and we just lower the count since removing it from the list would be
+     * slow.  {@link #getKeptFunctions()} takes the counts into account.  Hot functions
+     * always keep the instance applyCoverage added for them.
+     * 
+     * @param func   the function to remove
+     */
+    private void removeKeeper(Node func)
+    {
+        Integer count = m_keeperCounts.get(func);
+        if (count != null && count > (m_hotFuncs.contains(func) ? 1 : 0)) {
+            m_keeperCounts.put(func, count - 1);
+        }
+    }
+    
+    /**
+     * Remove every instance of a function from the list of keepers.  This is for functions
+     * we're removing anyway, even hot ones inside removed code.
+     * 
+     * @param func   the function to remove
+     */
+    private void clearKeeper(Node func)
+    {
+        if (m_keeperCounts.containsKey(func)) {
+            m_keeperCounts.put(func, 0);
+        }
+    }
+    
+    /**
+     * Determine if the specified function is a keeper.
+     * 
+     * @param func   the function to check
+     * 
+     * @return true if the function is a keeper and false otherwise
+     */
+    private boolean isKeeper(Node func)
+    {
+        Integer count = m_keeperCounts.get(func);
+        return count != null && count > 0;
+    }
+    
     /**
      * Find the function in our list of known functions with the specified name.
      * 
@@ -776,15 +1864,51 @@ public class JSlim
      */
     private Node findFunction(String name)
     {
-        for (Node f : m_libFuncs) {
-            if (getFunctionName(f).equals(name)) {
-                return f;
+        if (m_libFuncNames == null) {
+            m_libFuncNames = new HashMap<String, List<Node>>();
+            for (Node f : m_libFuncs) {
+                Set<String> names = getComputedNames(f);
+                if (names == null) {
+                    addToIndex(m_libFuncNames, getFunctionName(f), f);
+                } else {
+                    for (String n : names) {
+                        addToIndex(m_libFuncNames, n, f);
+                    }
+                }
+            }
+        }
+        
+        m_lookups++;
+        List<Node> funcs = m_libFuncNames.get(name);
+        if (funcs != null) {
+            for (Node f : funcs) {
+                if (!m_removedFuncs.contains(f)) {
+                    return f;
+                }
             }
         }
         
         return null;
     }
     
+    /**
+     * Add a function to a name index.
+     * 
+     * @param index  the index to add to
+     * @param name   the name of the function
+     * @param func   the function
+     */
+    private static void addToIndex(Map<String, List<Node>> index, String name, Node func)
+    {
+        List<Node> funcs = index.get(name);
+        if (funcs == null) {
+            funcs = new ArrayList<Node>(1);
+            index.put(name, funcs);
+        }
+        
+        funcs.add(func);
+    }
+    
     /**
      * Remove all functions with the specified name from the tree.
      * 
@@ -806,7 +1930,7 @@ public class JSlim
      */
     private void removeFunction(Node n)
     {
-        LOGGER.log(Level.INFO, "removeFunction(" + getFunctionName(n) + ")");
+        m_logger.log(Level.INFO, "removeFunction(" + getFunctionName(n) + ")");
         
         if (n.getParent() == null || n.getParent().getParent() == null) {
             /*
@@ -815,6 +1939,14 @@ public class JSlim
             return;
         }
         
+        Node func = getFunctionNode(n);
+        if (m_coldChunk != null && func != null) {
+            if (!m_coldChunk.isStub(func)) {
+                m_coldChunk.addFunction(func, getFunctionName(n));
+            }
+            return;
+        }
+        
         if (n.getParent().getType() == Token.STRING) {
             /*
              This is a closure style function like this:
@@ -829,7 +1961,7 @@ public class JSlim
              */
             Node expr = findExprOrVar(n);
             if (expr != null && expr.getType() == Token.EXPR_RESULT && expr.getParent() != null) {
-                LOGGER.log(Level.FINE, "expr: " + expr);
+                m_logger.log(Level.FINE, "expr: " + expr);
                 expr.detachFromParent();
             }
         } else {
@@ -871,29 +2003,72 @@ public class JSlim
      */
     private void findKeepers(Call call)
     {
-        if (getCall(call.getName(), m_examinedCalls) != null) {
+        if (!m_examinedCalls.add(call.getName())) {
             /*
              Then we've already examined this call and we can skip it.
              */
             return;
         }
         
-        //call.incCount();
-        
-        LOGGER.log(Level.FINE, "findKeepers(" + call + ")");
-        
-        m_examinedCalls.add(call);
+        /*
+         Call chains in large libraries can be thousands of functions long
+         so we walk them with our own stack instead of recursing.  Each
+         frame is a call with the functions matching it and the calls
+         in the function we're looking at now.
+         */
+        List<KeeperFrame> stack = new ArrayList<KeeperFrame>();
+        stack.add(new KeeperFrame(call));
         
+        while (!stack.isEmpty()) {
+            KeeperFrame frame = stack.get(stack.size() - 1);
+            
+            if (frame.m_calls != null && frame.m_calls.hasNext()) {
+                Call c = frame.m_calls.next();
+                if (m_examinedCalls.add(c.getName())) {
+                    stack.add(new KeeperFrame(c));
+                }
+            } else if (frame.m_funcs.hasNext()) {
+                Node func = frame.m_funcs.next();
+                addKeeper(func);
+                m_logger.log(Level.FINE, "func: " + getFunctionName(func));
+                
+                frame.m_calls = Arrays.asList(findCalls(func)).iterator();
+            } else {
+                stack.remove(stack.size() - 1);
+            }
+        }
+    }
+    
+    /**
+     * A KeeperFrame holds our place while we look for keepers.
+     */
+    private class KeeperFrame
+    {
+        private Iterator<Node> m_funcs;
+        private Iterator<Call> m_calls;
         
-        Node funcs[] = findMatchingFunctions(call.getName());
+        KeeperFrame(Call call)
+        {
+            m_logger.log(Level.FINE, "findKeepers(" + call + ")");
             
-        for (Node func : funcs) {
-            m_keepers.add(func);
-            LOGGER.log(Level.FINE, "func: " + getFunctionName(func));
+            /*
+             The calls list has every object this function is called on
+             anywhere in the libraries and main files.
+             */
+            Call all = JSlim.this.m_calls.getCall(call.getName());
+            if (all == null) {
+                all = call;
+            }
             
-            for (Call c : findCalls(func)) {
-                findKeepers(c);
+            List<Node> funcs = new ArrayList<Node>();
+            for (Node func : findMatchingFunctions(call.getName())) {
+                if (m_aliases == null || m_aliases.canCall(all, func)) {
+                    funcs.add(func);
+                } else {
+                    m_logger.log(Level.FINE, "The call " + call.getName() + " can't reach " + getFunctionName(func));
+                }
             }
+            m_funcs = funcs.iterator();
         }
     }
     
@@ -906,7 +2081,7 @@ public class JSlim
      */
     private Call[] findCalls(Node func)
     {
-        ArrayList<Call> calls = new ArrayList<Call>();
+        CallList calls = new CallList();
         findCalls(func, calls);
         return calls.toArray(new Call[calls.size()]);
     }
@@ -917,12 +2092,20 @@ public class JSlim
      * @param node   the node to look in
      * @param calls  the list of calls to add the function to
      */
-    private void findCalls(Node node, List<Call> calls)
+    private void findCalls(Node node, CallList calls)
     {
+        if (m_coldChunk != null && m_coldChunk.isStub(node)) {
+            /*
+             The stub stands in for a function we already removed.
+             */
+            return;
+        }
+        
         Iterator<Node> nodes = node.children().iterator();
         
         while (nodes.hasNext()) {
             Node n = nodes.next();
+            m_nodeVisits++;
             if (n.getType() == Token.CALL || n.getType() == Token.NEW) {
                 addCalls(n, calls);
             } else if (n.getType() == Token.ASSIGN ||
@@ -941,7 +2124,9 @@ public class JSlim
                  This is an assignment operator.  
                  */
                 addAssign(n, calls);
-            } 
+            } else if (n.getType() == Token.NAME) {
+                addFunctionRef(n, calls);
+            }
             
             findCalls(n, calls);
         }
@@ -1015,13 +2200,17 @@ public class JSlim
         ArrayList<String> names = new ArrayList<String>();
         if (n.getType() == Token.FUNCTION) {
             names.add(getFunctionName(n));
+            
+            if (m_funcAliases != null) {
+                names.addAll(m_funcAliases.getExportNames(n));
+            }
         }
         
         if (n.getType() == Token.ASSIGN) {
             if (n.getFirstChild().getType() == Token.GETELEM) {
-                String c = getConcatenatedStringIndex(n.getFirstChild());
+                Set<String> c = getIndexNames(n.getFirstChild());
                 if (c != null) {
-                    names.add(c);
+                    names.addAll(c);
                 }
             } else {
                 names.add(n.getFirstChild().getLastChild().getString());
@@ -1061,16 +2250,27 @@ public class JSlim
                      index like this: 
                         jQuery.fn[ "inner" + name ] = function()
      
-                     These functions are tricky to remove since we can't
-                     depend on just the name when removing them.  We're
-                     just leaving them for now.
+                     We can only remove these functions if we can tell
+                     every name they can have.  The index finds all of the
+                     names and the function name has all of them.
                      */
-                    String c = getConcatenatedStringIndex(n.getParent().getFirstChild());
-                    if (c != null) {
-                        return c;
-                    } else {
+                    Set<String> c = getIndexNames(n.getParent().getFirstChild());
+                    if (c == null || c.isEmpty()) {
                         return null;
                     }
+                    
+                    /*
+                     The names are sorted so the function always gets the
+                     same name.  Use getComputedNames to match calls.
+                     */
+                    StringBuffer sb = new StringBuffer();
+                    for (String name : c) {
+                        if (sb.length() > 0) {
+                            sb.append('|');
+                        }
+                        sb.append(name);
+                    }
+                    return sb.toString();
                 } else {
                     /*
                      This is a property assignment function like:
@@ -1101,12 +2301,33 @@ public class JSlim
                 }
             }
         } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "npe: " + n.toStringTree());
+            m_logger.log(Level.SEVERE, "npe: " + n.toStringTree());
             e.printStackTrace();
             throw new RuntimeException("stop here...");
         }
     }
     
+    /**
+     * Get the names of a function assigned to a computed property like
+     * <code>jQuery.fn[ "inner" + name ] = function()</code>.  Calls to any of these names
+     * are calls to the function.
+     * 
+     * @param func   the FUNCTION node
+     * 
+     * @return the names or null if the function isn't assigned to a computed property or
+     *         we can't tell the names
+     */
+    private Set<String> getComputedNames(Node func)
+    {
+        Node parent = func.getParent();
+        if (parent == null || parent.getType() != Token.ASSIGN ||
+            parent.getFirstChild().getType() != Token.GETELEM) {
+            return null;
+        }
+        
+        return getIndexNames(parent.getFirstChild());
+    }
+    
     /**
      * Find all of the functions with the specified name.
      * 
@@ -1116,14 +2337,29 @@ public class JSlim
      */
     private Node[] findMatchingFunctions(String name)
     {
-        ArrayList<Node> matches = new ArrayList<Node>();
-        
-        for (Node n : m_allFuncs) {
-            if (getFunctionNames(n).contains(name)) {
-                matches.add(n);
+        if (m_allFuncNames == null) {
+            m_allFuncNames = new HashMap<String, List<Node>>();
+            for (Node n : m_allFuncs) {
+                if (m_deadMembers.contains(n)) {
+                    /*
+                     Nothing can get to the members of an unused group so
+                     calls to the same name never match them.
+                     */
+                    continue;
+                }
+                
+                for (String funcName: new HashSet<String>(getFunctionNames(n))) {
+                    addToIndex(m_allFuncNames, funcName, n);
+                }
             }
         }
         
+        m_lookups++;
+        List<Node> matches = m_allFuncNames.get(name);
+        if (matches == null) {
+            return new Node[0];
+        }
+        
         return matches.toArray(new Node[matches.size()]);
     }
     
@@ -1148,6 +2384,146 @@ public class JSlim
         }
     }
     
+    /**
+     * <p>
+     * Add a compile-time constant to this compiler.  Every read of the name in the library
+     * files is replaced with the value before we look for calls, and the branches which
+     * can't run with that value are removed along with the functions only they call.
+     * </p>
+     * 
+     * <p>
+     * The main files are written the way they are so defines only change the libraries.
+     * </p>
+     * 
+     * @param name   the global variable or property like <code>DEBUG</code> or
+     *               <code>jQuery.support.opacity</code>
+     * @param value  <code>true</code>, <code>false</code>, <code>null</code>, a number, or a
+     *               string in quotes
+     * 
+     * @exception IllegalArgumentException
+     *                   if the name or the value isn't valid
+     */
+    public void addDefine(String name, String value)
+    {
+        m_defines.add(name, value);
+    }
+    
+    /**
+     * <p>
+     * Add the coverage from one run of the page to this compiler.  Library functions the
+     * coverage says never ran are cold and are removed even if there's a call to them.
+     * Functions which ran are kept like externs even if we can't find a call to them.
+     * </p>
+     * 
+     * <p>
+     * Libraries which aren't in any of the profiles are only pruned by the calls we find.
+     * </p>
+     * 
+     * @param profile the coverage profile
+     */
+    public void addCoverage(CoverageProfile profile)
+    {
+        m_coverage.add(profile);
+    }
+    
+    /**
+     * Set how sure we need to be that a function is cold before we remove it.  A function
+     * is cold if it ran in no more than <code>1 - confidence</code> of the coverage
+     * profiles.  The default is 1.0 which only removes functions that never ran in any of
+     * them.
+     * 
+     * @param confidence the confidence from 0.0 to 1.0
+     * 
+     * @exception IllegalArgumentException
+     *                   if the confidence isn't between 0.0 and 1.0
+     */
+    public void setCoverageConfidence(double confidence)
+    {
+        if (confidence < 0 || confidence > 1) {
+            throw new IllegalArgumentException("The coverage confidence must be between 0.0 and 1.0: " + confidence);
+        }
+        
+        m_coverageConfidence = confidence;
+    }
+    
+    /**
+     * <p>
+     * Replace the library functions a prune removes with stubs instead of removing them.
+     * The first time the page calls a stub it loads the real functions from the cold
+     * chunk at the specified URL and calls the real function.  Get the contents of the
+     * cold chunk with {@link #getColdCode()} after the prune.
+     * </p>
+     * 
+     * <p>
+     * The real functions use the variables around them by name so the pruned code can't
+     * be compiled with a level which renames local variables.  Pruning with
+     * SIMPLE_OPTIMIZATIONS or ADVANCED_OPTIMIZATIONS throws an IllegalStateException.
+     * </p>
+     * 
+     * @param url    the URL the page loads the cold chunk from or null to remove the
+     *               functions without stubs
+     */
+    public void setColdUrl(String url)
+    {
+        m_coldChunk = url == null ? null : new ColdChunk(url);
+    }
+    
+    /**
+     * Make sure the stubs for the cold chunk will work with a compilation level.
+     * 
+     * @param compLevel the compilation level
+     * 
+     * @exception IllegalStateException
+     *                   if this compiler creates stubs and the level renames local variables
+     */
+    private void checkColdLevel(CompilationLevel compLevel)
+    {
+        if (m_coldChunk != null && renamesLocals(compLevel)) {
+            throw new IllegalStateException("The cold chunk only works with WHITESPACE_ONLY or no compilation level: " +
+                                            compLevel);
+        }
+    }
+    
+    /**
+     * Determine if a compilation level renames or removes local variables.  The stubs for
+     * the cold chunk don't work with those levels.
+     * 
+     * @param compLevel the compilation level or null for no compilation
+     * 
+     * @return true if the level renames local variables and false otherwise
+     */
+    static boolean renamesLocals(CompilationLevel compLevel)
+    {
+        return compLevel == CompilationLevel.SIMPLE_OPTIMIZATIONS ||
+            compLevel == CompilationLevel.ADVANCED_OPTIMIZATIONS;
+    }
+    
+    /**
+     * Get the cold chunk with the functions the last prune replaced with stubs.
+     * 
+     * @return the JSON for the cold chunk or null if this compiler doesn't create stubs
+     */
+    public String getColdCode()
+    {
+        if (m_coldChunk == null) {
+            return null;
+        }
+        
+        return m_coldChunk.getCode(getOptions(null));
+    }
+    
+    /**
+     * Get the defines of this compiler in a form which is the same for the same defines.
+     * Libraries analyzed with different defines are different.
+     * 
+     * @return the defines like <code>DEBUG=false,MODE="modern"</code> or an empty string if
+     *         there aren't any
+     */
+    String getDefines()
+    {
+        return m_defines.toString();
+    }
+    
     /**
      * Call the Google Closure Compiler to perform a plain compilation without any pruning.
      * This is normally the last step after pruning.
@@ -1165,9 +2541,6 @@ public class JSlim
         
         compiler.setLoggingLevel(LOGGER.getLevel());
         
-        Logger.getLogger("com.google.javascript.jscomp").setUseParentHandlers(false);
-        Logger.getLogger("com.google.javascript.jscomp").addHandler(new SlimConsoleHandler());
-        
         CompilerOptions options = new CompilerOptions();
         // Advanced mode is used here, but additional options could be set, too.
         level.setOptionsForCompilationLevel(options);
@@ -1186,13 +2559,18 @@ public class JSlim
             name = "System.out.js";
         }
         JSSourceFile input = JSSourceFile.fromCode(name, code);
+        
+        Object event = SlimEvents.beginCompile();
     
         // compile() returns a Result, but it is not needed here.
         compiler.compile(extern, input, options);
     
         // The compiler is responsible for generating the compiled code; it is not
         // accessible via the Result.
-        return compiler.toSource();
+        String result = compiler.toSource();
+        SlimEvents.commitCompile(event, name, level, code, result);
+        
+        return result;
     }
     
     /**
@@ -1202,9 +2580,28 @@ public class JSlim
      */
     public String[] getKeptFunctions()
     {
+        /*
+         Removing a keeper only lowers its count so we skip the first
+         instances of each function which were removed.
+         */
+        Map<Node, Integer> skip = new IdentityHashMap<Node, Integer>();
+        for (Node n : m_keepers) {
+            Integer count = skip.get(n);
+            skip.put(n, count == null ? 1 : count + 1);
+        }
+        
+        for (Map.Entry<Node, Integer> entry : skip.entrySet()) {
+            entry.setValue(entry.getValue() - m_keeperCounts.get(entry.getKey()));
+        }
+        
         ArrayList<String> funcs = new ArrayList<String>();
         for (Node n : m_keepers) {
-            funcs.add(getFunctionName(n));
+            int count = skip.get(n);
+            if (count > 0) {
+                skip.put(n, count - 1);
+            } else {
+                funcs.add(getFunctionName(n));
+            }
         }
         
         return funcs.toArray(new String[funcs.size()]);
@@ -1286,16 +2683,26 @@ public class JSlim
         throws IOException
     {
         FileOutputStream out = new FileOutputStream(new File(file.getParentFile(), file.getName() + ".gz"));
+        OutputStreamWriter out2 = null;
         
         try {
             GZIPOutputStream zipOut = new GZIPOutputStream(out);
-            OutputStreamWriter out2 = new OutputStreamWriter(new BufferedOutputStream(zipOut), charset);
+            out2 = new OutputStreamWriter(new BufferedOutputStream(zipOut), charset);
     
             IOUtils.write(contents, out2);
+            
+            /*
+             Closing the writer finishes the GZIP stream.  Without it the
+             file is missing the last block and the trailer.
+             */
+            out2.close();
+            out2 = null;
         } finally {
-            if (out != null) {
-                out.close();
+            if (out2 != null) {
+                IOUtils.closeQuietly(out2);
             }
+            
+            out.close();
         }
     }
     
@@ -1303,13 +2710,13 @@ public class JSlim
     {
         try {
             JSlim slim = new JSlim();
-
+            
             File in = new File("main.js");
-
+            
             String mainJS = FileUtils.readFileToString(in, "UTF-8");
             //String mainJS = FileUtils.readFileToString(new File("libs/easing/easing.js"), "UTF-8");
             //slim.slim(mainJS, false);
-
+            
             //String libJS = FileUtils.readFileToString(new File("libs/jquery-ui-1.8.14.custom.min.js"), "UTF-8");
             //String libJS = FileUtils.readFileToString(new File("libs/jquery.min.js"), "UTF-8");
             //String libJS = FileUtils.readFileToString(new File("lib.js"), "UTF-8");
@@ -1317,14 +2724,14 @@ public class JSlim
             //String libJS = FileUtils.readFileToString(new File("libs/easing/raphael.js"), "UTF-8");
             //String libJS = FileUtils.readFileToString(new File("libs/chart/raphael.js"), "UTF-8");
             //println("compiled code: " + slim.addLib(libJS));
-
+            
             slim.addSourceFile(new JSFile("main.js", mainJS, false));
-
+            
             slim.addSourceFile(new JSFile("jquery-1.6.2.js", FileUtils.readFileToString(new File("libs/jquery-1.6.2.js"), "UTF-8"), true));
             slim.addSourceFile(new JSFile("underscore.js", FileUtils.readFileToString(new File("libs/underscore.js"), "UTF-8"), true));
-
+            
             //slim.addSourceFile(new JSFile("modernizr-2.0.6.js", FileUtils.readFileToString(new File("libs/modernizr/modernizr-2.0.6.js"), "UTF-8"), true));
-
+            
             File out = new File("out.js");
             JSlim.writeGzip(plainCompile("out.js", slim.prune(), CompilationLevel.SIMPLE_OPTIMIZATIONS), out, "UTF-8");
             //FileUtils.writeStringToFile(new File("out.js"), plainCompile(libJS));
@@ -0,0 +1,644 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.javascript.jscomp.CompilationLevel;
+
+/**
+ * <p>
+ * The JSlimEngine holds the options for slimming and can run any number of prune operations
+ * at the same time.  The engine never changes once it is built.  Each prune operation gets
+ * its own {@link JSlim} instance to hold its state and the analyzed libraries are shared.
+ * </p>
+ *
+ * <p>
+ * Create an engine with the {@link Builder}:
+ * </p>
+ *
+ * <pre>
+ * JSlimEngine engine = new JSlimEngine.Builder()
+ *     .setCompilationLevel(CompilationLevel.SIMPLE_OPTIMIZATIONS)
+ *     .setLibraryCache(new LibraryCache(64 * 1024 * 1024))
+ *     .build();
+ *
+ * List&lt;LibraryGraph&gt; libs = engine.analyzeLibraries(libFiles);
+ * SlimResult result = engine.slim(mainFiles, externs, libs);
+ * </pre>
+ *
+ * <p>
+ * Each engine has its own logger so engines in the same process can log at different levels.
+ * Engines without a logging level use the level from {@link JSlim#setLoggingLevel}.
+ * </p>
+ */
+public final class JSlimEngine
+{
+    /**
+     * The Builder collects the options for a new engine.  Builders aren't thread-safe, but
+     * the engines they build are.
+     */
+    public static class Builder
+    {
+        private String m_charset = "UTF-8";
+        private boolean m_printTree = false;
+        private JSlim.FormattingOption m_formattingOptions;
+        private CompilationLevel m_compLevel = CompilationLevel.SIMPLE_OPTIMIZATIONS;
+        private LibraryCache m_libCache;
+        private SlimMetrics m_metrics;
+        private JSlimStats m_stats;
+        private List<String> m_externs = new ArrayList<String>();
+        private Map<String, String> m_defines = new LinkedHashMap<String, String>();
+        private List<CoverageProfile> m_coverage = new ArrayList<CoverageProfile>();
+        private double m_coverageConfidence = 1.0;
+        private String m_coldUrl;
+        private Level m_logLevel;
+        
+        /**
+         * Set the charset for the engine.
+         * 
+         * @param charset the charset
+         * 
+         * @return this builder
+         */
+        public Builder setCharset(String charset)
+        {
+            m_charset = charset;
+            return this;
+        }
+        
+        /**
+         * Set if the engine should print the AST tree.
+         * 
+         * @param printTree true if it should print the tree and false otherwise
+         * 
+         * @return this builder
+         */
+        public Builder setPrintTree(boolean printTree)
+        {
+            m_printTree = printTree;
+            return this;
+        }
+        
+        /**
+         * Set the formatting options for the engine.
+         * 
+         * @param options the formatting options or null for no formatting options
+         * 
+         * @return this builder
+         */
+        public Builder setFormattingOptions(JSlim.FormattingOption options)
+        {
+            m_formattingOptions = options;
+            return this;
+        }
+        
+        /**
+         * Set the compilation level for the engine.
+         * 
+         * @param compLevel the compilation level or null to skip the Closure Compiler
+         * 
+         * @return this builder
+         */
+        public Builder setCompilationLevel(CompilationLevel compLevel)
+        {
+            m_compLevel = compLevel;
+            return this;
+        }
+        
+        /**
+         * Set the cache of analyzed library files for the engine.
+         * 
+         * @param cache  the cache or null to analyze the library files every time
+         * 
+         * @return this builder
+         */
+        public Builder setLibraryCache(LibraryCache cache)
+        {
+            m_libCache = cache;
+            return this;
+        }
+        
+        /**
+         * Set the metrics for the engine.  Every compiler from the engine adds to the
+         * same metrics.
+         * 
+         * @param metrics the metrics or null to skip collecting metrics
+         * 
+         * @return this builder
+         */
+        public Builder setMetrics(SlimMetrics metrics)
+        {
+            m_metrics = metrics;
+            return this;
+        }
+        
+        /**
+         * Set the logging level for the engine.  This only changes the level for the
+         * compilers from this engine.
+         * 
+         * @param level  the log level or null to use the level of the process logger
+         * 
+         * @return this builder
+         */
+        public Builder setLoggingLevel(Level level)
+        {
+            m_logLevel = level;
+            return this;
+        }
+        
+        /**
+         * Set the live stats for the engine.  The engine counts each prune request and
+         * library analysis in the stats.
+         * 
+         * @param stats  the stats or null to skip counting requests
+         * 
+         * @return this builder
+         */
+        public Builder setStats(JSlimStats stats)
+        {
+            m_stats = stats;
+            return this;
+        }
+        
+        /**
+         * Add an external reference which is used by every prune operation from the engine.
+         * 
+         * @param extern the external reference to add
+         * 
+         * @return this builder
+         */
+        public Builder addExtern(String extern)
+        {
+            m_externs.add(extern);
+            return this;
+        }
+        
+        /**
+         * Add a compile-time constant which is folded into every library the engine
+         * analyzes.
+         * 
+         * @param name   the global variable or property like <code>DEBUG</code>
+         * @param value  <code>true</code>, <code>false</code>, <code>null</code>, a number,
+         *               or a string in quotes
+         * 
+         * @return this builder
+         * 
+         * @exception IllegalArgumentException
+         *                   if the name or the value isn't valid
+         */
+        public Builder addDefine(String name, String value)
+        {
+            new Defines().add(name, value);
+            m_defines.put(name, value);
+            return this;
+        }
+        
+        /**
+         * Add the coverage from one run of the page.  Every prune operation from the
+         * engine removes the library functions the coverage says are cold.
+         * 
+         * @param profile the coverage profile
+         * 
+         * @return this builder
+         */
+        public Builder addCoverage(CoverageProfile profile)
+        {
+            m_coverage.add(profile);
+            return this;
+        }
+        
+        /**
+         * Set how sure the engine needs to be that a function is cold before removing it.
+         * The default is 1.0 which only removes functions that never ran in any of the
+         * coverage profiles.
+         * 
+         * @param confidence the confidence from 0.0 to 1.0
+         * 
+         * @return this builder
+         * 
+         * @exception IllegalArgumentException
+         *                   if the confidence isn't between 0.0 and 1.0
+         */
+        public Builder setCoverageConfidence(double confidence)
+        {
+            if (confidence < 0 || confidence > 1) {
+                throw new IllegalArgumentException("The coverage confidence must be between 0.0 and 1.0: " + confidence);
+            }
+            
+            m_coverageConfidence = confidence;
+            return this;
+        }
+        
+        /**
+         * Set the URL of the cold chunk.  Every prune operation from the engine replaces
+         * the functions it removes with stubs which load them from this URL.
+         * 
+         * @param url    the URL of the cold chunk or null to remove functions without stubs
+         * 
+         * @return this builder
+         */
+        public Builder setColdUrl(String url)
+        {
+            m_coldUrl = url;
+            return this;
+        }
+        
+        /**
+         * Build the engine.
+         * 
+         * @return the new engine
+         * 
+         * @exception IllegalStateException
+         *                   if there is a cold URL and the compilation level renames local
+         *                   variables
+         */
+        public JSlimEngine build()
+        {
+            if (m_coldUrl != null && JSlim.renamesLocals(m_compLevel)) {
+                throw new IllegalStateException("The cold chunk only works with WHITESPACE_ONLY or no compilation " +
+                                                "level: " + m_compLevel);
+            }
+            
+            return new JSlimEngine(this);
+        }
+    }
+    
+    private final String m_charset;
+    private final boolean m_printTree;
+    private final JSlim.FormattingOption m_formattingOptions;
+    private final CompilationLevel m_compLevel;
+    private final LibraryCache m_libCache;
+    private final SlimMetrics m_metrics;
+    private final JSlimStats m_stats;
+    private final List<String> m_externs;
+    private final Map<String, String> m_defines;
+    private final List<CoverageProfile> m_coverage;
+    private final double m_coverageConfidence;
+    private final String m_coldUrl;
+    private final Logger m_logger;
+    
+    /**
+     * Create a new JSlimEngine.
+     * 
+     * @param builder the builder with the options for this engine
+     */
+    private JSlimEngine(Builder builder)
+    {
+        m_charset = builder.m_charset;
+        m_printTree = builder.m_printTree;
+        m_formattingOptions = builder.m_formattingOptions;
+        m_compLevel = builder.m_compLevel;
+        m_libCache = builder.m_libCache;
+        m_metrics = builder.m_metrics;
+        m_stats = builder.m_stats;
+        
+        if (m_stats != null && m_libCache != null) {
+            m_stats.setLibraryCache(m_libCache);
+        }
+        m_externs = Collections.unmodifiableList(new ArrayList<String>(builder.m_externs));
+        m_defines = Collections.unmodifiableMap(new LinkedHashMap<String, String>(builder.m_defines));
+        m_coverage = Collections.unmodifiableList(new ArrayList<CoverageProfile>(builder.m_coverage));
+        m_coverageConfidence = builder.m_coverageConfidence;
+        m_coldUrl = builder.m_coldUrl;
+        m_logger = JSlim.createLogger(builder.m_logLevel);
+    }
+    
+    /**
+     * Create a new compiler instance with the options from this engine.  The compiler holds
+     * the state for a single prune operation.
+     * 
+     * @return the new compiler
+     */
+    public JSlim createSlim()
+    {
+        JSlim slim = new JSlim();
+        
+        slim.setCharset(m_charset);
+        slim.setPrintTree(m_printTree);
+        slim.setFormattingOptions(m_formattingOptions);
+        slim.setLibraryCache(m_libCache);
+        slim.setMetrics(m_metrics);
+        slim.setLogger(m_logger);
+        
+        for (String extern : m_externs) {
+            slim.addExtern(extern);
+        }
+        
+        for (Map.Entry<String, String> define : m_defines.entrySet()) {
+            slim.addDefine(define.getKey(), define.getValue());
+        }
+        
+        for (CoverageProfile profile : m_coverage) {
+            slim.addCoverage(profile);
+        }
+        slim.setCoverageConfidence(m_coverageConfidence);
+        slim.setColdUrl(m_coldUrl);
+        
+        return slim;
+    }
+    
+    /**
+     * Analyze a library file.  If this engine has a library cache then the library comes
+     * from the cache when it can.
+     * 
+     * @param file   the library file
+     * 
+     * @return the analyzed library
+     */
+    public LibraryGraph analyzeLibrary(JSFile file)
+    {
+        long start = System.nanoTime();
+        
+        JSlim slim = createSlim();
+        LibraryGraph lib;
+        if (m_libCache == null) {
+            lib = slim.analyzeLibrary(file);
+        } else {
+            lib = m_libCache.get(file, slim);
+        }
+        
+        if (m_stats != null) {
+            m_stats.addAnalysis(lib, System.nanoTime() - start);
+        }
+        
+        return lib;
+    }
+    
+    /**
+     * Analyze a list of library files.
+     * 
+     * @param files  the library files
+     * 
+     * @return the analyzed libraries.  Check {@link LibraryGraph#hasErrors()} on each one
+     *         before using them.
+     */
+    public List<LibraryGraph> analyzeLibraries(List<JSFile> files)
+    {
+        List<LibraryGraph> libs = new ArrayList<LibraryGraph>();
+        for (JSFile file : files) {
+            libs.add(analyzeLibrary(file));
+        }
+        
+        return libs;
+    }
+    
+    /**
+     * Prune the specified libraries for a set of main files.  This method can be called
+     * from many threads at the same time with the same libraries.
+     * 
+     * @param mainFiles the main files
+     * @param externs   the external references for this prune in addition to the ones
+     *                  from this engine
+     * @param libs      the analyzed library files
+     * 
+     * @return the result of the prune
+     */
+    public SlimResult slim(List<JSFile> mainFiles, List<String> externs, List<LibraryGraph> libs)
+    {
+        JSlim slim = createSlim();
+        
+        for (String extern : externs) {
+            slim.addExtern(extern);
+        }
+        
+        for (JSFile file : mainFiles) {
+            slim.addSourceFile(file);
+        }
+        
+        return prune(slim, libs);
+    }
+    
+    /**
+     * Run a prune operation and count it in the stats.
+     * 
+     * @param slim   the compiler with the main files and externs for this prune
+     * @param libs   the analyzed library files
+     * 
+     * @return the result of the prune
+     */
+    SlimResult prune(JSlim slim, List<LibraryGraph> libs)
+    {
+        if (m_stats == null) {
+            String code = slim.prune(libs, m_compLevel);
+            return new SlimResult(code, slim.getColdCode(), slim.getKeptFunctions(), slim.getTotalFunctionCount());
+        }
+        
+        long start = m_stats.beginSlim();
+        boolean success = false;
+        try {
+            String code = slim.prune(libs, m_compLevel);
+            SlimResult result = new SlimResult(code, slim.getColdCode(), slim.getKeptFunctions(),
+                                               slim.getTotalFunctionCount());
+            success = true;
+            return result;
+        } finally {
+            m_stats.endSlim(start, success);
+        }
+    }
+    
+    /**
+     * Find the names of all the functions the specified main files call.  Pages with the
+     * same set of called names always get the same pruned libraries.
+     * 
+     * @param mainFiles the main files
+     * 
+     * @return the sorted set of called names
+     */
+    public SortedSet<String> findCalls(List<JSFile> mainFiles)
+    {
+        return findCalls(mainFiles, null);
+    }
+    
+    /**
+     * Find the names of all the functions the specified main files call along with all of
+     * the names they mention.
+     * 
+     * @param mainFiles the main files
+     * @param mainNames the set to add the names the main files mention to or null to skip
+     *                  them
+     * 
+     * @return the sorted set of called names
+     */
+    public SortedSet<String> findCalls(List<JSFile> mainFiles, Set<String> mainNames)
+    {
+        SortedSet<String> names = new TreeSet<String>();
+        
+        JSlim slim = createSlim();
+        for (JSFile file : mainFiles) {
+            List<Call> calls = slim.analyzeMain(file);
+            for (Call call : calls) {
+                names.add(call.getName());
+            }
+            
+            if (mainNames != null) {
+                mainNames.addAll(JSlim.getMainNames(calls));
+            }
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Prune the specified libraries for a set of called names instead of a set of main
+     * files.  This method can be called from many threads at the same time with the same
+     * libraries.
+     * 
+     * @param calls  the names of the called functions
+     * @param libs   the analyzed library files
+     * 
+     * @return the result of the prune
+     */
+    public SlimResult slimCalls(Collection<String> calls, List<LibraryGraph> libs)
+    {
+        return slimCalls(calls, null, libs);
+    }
+    
+    /**
+     * Prune the specified libraries for a set of called names and the names the main files
+     * mention.  With the mentioned names the prune can remove the member groups the main
+     * files never use.
+     * 
+     * @param calls     the names of the called functions
+     * @param mainNames the names the main files mention or null if they aren't known
+     * @param libs      the analyzed library files
+     * 
+     * @return the result of the prune
+     */
+    public SlimResult slimCalls(Collection<String> calls, Collection<String> mainNames, List<LibraryGraph> libs)
+    {
+        JSlim slim = createSlim();
+        
+        for (String call : calls) {
+            slim.addExtern(call);
+        }
+        
+        if (mainNames != null) {
+            slim.addMainNames(mainNames);
+        }
+        
+        return prune(slim, libs);
+    }
+    
+    /**
+     * Run code through the Closure Compiler with the compilation level and formatting
+     * options from this engine.
+     * 
+     * @param name   the name of the file to compile
+     * @param code   the code to compile
+     * 
+     * @return the compiled code or the original code if this engine has no compilation level
+     */
+    public String compile(String name, String code)
+    {
+        if (m_compLevel == null) {
+            return code;
+        }
+        
+        if (m_metrics == null) {
+            return JSlim.plainCompile(name, code, m_compLevel, m_formattingOptions);
+        }
+        
+        SlimMetrics.Timer timer = m_metrics.start(SlimMetrics.Phase.COMPILE);
+        try {
+            return JSlim.plainCompile(name, code, m_compLevel, m_formattingOptions);
+        } finally {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Get the metrics for this engine.
+     * 
+     * @return the metrics or null if this engine doesn't collect metrics
+     */
+    public SlimMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+    
+    /**
+     * Get the logger for this engine.  Every compiler from this engine logs here.
+     * 
+     * @return the logger
+     */
+    public Logger getLogger()
+    {
+        return m_logger;
+    }
+    
+    /**
+     * Get the live stats for this engine.
+     * 
+     * @return the stats or null if this engine doesn't count requests
+     */
+    public JSlimStats getStats()
+    {
+        return m_stats;
+    }
+    
+    /**
+     * Get the charset for this engine.
+     * 
+     * @return the charset
+     */
+    public String getCharset()
+    {
+        return m_charset;
+    }
+    
+    /**
+     * Get the compilation level for this engine.
+     * 
+     * @return the compilation level or null if this engine skips the Closure Compiler
+     */
+    public CompilationLevel getCompilationLevel()
+    {
+        return m_compLevel;
+    }
+    
+    /**
+     * Get the formatting options for this engine.
+     * 
+     * @return the formatting options or null if there aren't any
+     */
+    public JSlim.FormattingOption getFormattingOptions()
+    {
+        return m_formattingOptions;
+    }
+    
+    /**
+     * Get the library cache for this engine.
+     * 
+     * @return the library cache or null if this engine doesn't cache libraries
+     */
+    public LibraryCache getLibraryCache()
+    {
+        return m_libCache;
+    }
+}
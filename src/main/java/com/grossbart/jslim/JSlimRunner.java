@@ -22,7 +22,15 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
 
 import com.google.common.collect.Lists;
 import com.google.javascript.jscomp.CompilationLevel;
@@ -99,7 +107,7 @@ public class JSlimRunner
                 return Level.ALL;
             }
         },
-
+        
         CONFIG {
             @Override
             public Level getLevel()
@@ -107,7 +115,7 @@ public class JSlimRunner
                 return Level.CONFIG;
             }
         },
-
+        
         FINE {
             @Override
             public Level getLevel()
@@ -115,7 +123,7 @@ public class JSlimRunner
                 return Level.FINE;
             }
         },
-
+        
         FINER {
             @Override
             public Level getLevel()
@@ -123,7 +131,7 @@ public class JSlimRunner
                 return Level.FINER;
             }
         },
-
+        
         FINEST {
             @Override
             public Level getLevel()
@@ -131,7 +139,7 @@ public class JSlimRunner
                 return Level.FINEST;
             }
         },
-
+        
         INFO {
             @Override
             public Level getLevel()
@@ -139,7 +147,7 @@ public class JSlimRunner
                 return Level.INFO;
             }
         },
-
+        
         OFF {
             @Override
             public Level getLevel()
@@ -147,7 +155,7 @@ public class JSlimRunner
                 return Level.OFF;
             }
         },
-
+        
         SEVERE {
             @Override
             public Level getLevel()
@@ -155,7 +163,7 @@ public class JSlimRunner
                 return Level.SEVERE;
             }
         },
-
+        
         WARNING {
             @Override
             public Level getLevel()
@@ -187,6 +195,31 @@ public class JSlimRunner
     @Option(name = "--externs", usage = "The file containing javascript externs. You may specify multiple")
     private List<String> m_externs = Lists.newArrayList();
     
+    @Option(name = "--define",
+        usage = "Replace a global variable or property in the library files with a constant and remove the " +
+            "branches which can't run, like --define DEBUG=false.  The value is true, false, null, a number, " +
+            "or a quoted string.  You may specify multiple")
+    private List<String> m_defines = Lists.newArrayList();
+    
+    @Option(name = "--coverage_json",
+        usage = "A function coverage file from the Chrome DevTools, Puppeteer, or V8 for a page which loads the " +
+            "original library files.  Library functions which never ran are removed.  You may specify multiple")
+    private List<String> m_coverageJson = Lists.newArrayList();
+    
+    @Option(name = "--coverage_confidence",
+        usage = "Remove the library functions which ran in no more than 1 minus this share of the --coverage_json " +
+            "files.  The default is 1.0 which only removes functions that never ran.")
+    private double m_coverageConfidence = 1.0;
+    
+    @Option(name = "--cold_output_file",
+        usage = "Replace the removed library functions with stubs and write the real functions to this file.  The " +
+            "first call to a stub loads this file.  This only works with WHITESPACE_ONLY or NONE")
+    private String m_coldOutput = null;
+    
+    @Option(name = "--cold_url",
+        usage = "The URL the page loads the --cold_output_file from.  The default is the name of the file")
+    private String m_coldUrl = null;
+    
     @Option(name = "--charset",
         usage = "Input and output charset for all files. By default, we " +
                 "accept UTF-8 as input and output US_ASCII")
@@ -218,7 +251,59 @@ public class JSlimRunner
         usage = "A file containing additional command-line options.")
     private String m_flagFile = "";
     
-    private StringBuffer m_mainFiles = new StringBuffer();
+    @Option(name = "--watch",
+        handler = BooleanOptionHandler.class,
+        usage = "Keep running and slim the files again every time a main file, library file, or externs file changes.")
+    private boolean m_watch = false;
+    
+    @Option(name = "--batch",
+        usage = "A manifest file with one slim job per line.  Each job takes --js, --externs, and " +
+            "--js_output_file arguments.  All jobs share the --lib_js files which are only analyzed once.")
+    private String m_batchFile = null;
+    
+    @Option(name = "--batch_threads",
+        usage = "The number of batch jobs to run at the same time.  The default is the number of processors.")
+    private int m_batchThreads = Runtime.getRuntime().availableProcessors();
+    
+    @Option(name = "--bench",
+        usage = "Run the slim job this many times and report the 50th, 90th, and 99th percentile time " +
+            "for each phase.")
+    private int m_benchRuns = 0;
+    
+    @Option(name = "--bench_warmup",
+        usage = "The number of warm-up runs before the measured --bench runs.  The default is 5.")
+    private int m_benchWarmup = 5;
+    
+    @Option(name = "--bench_output",
+        usage = "Save the --bench results to this file.  Files ending in .json are written as JSON and " +
+            "all other files are written as CSV.")
+    private String m_benchOutput = null;
+    
+    @Option(name = "--metrics_file",
+        usage = "Save the time of each phase and the counts from the analysis to this file.  Files ending " +
+            "in .csv are written as CSV and all other files are written as JSON.")
+    private String m_metricsFile = null;
+    
+    @Option(name = "--metrics_memory",
+        handler = BooleanOptionHandler.class,
+        usage = "Add the bytes allocated and the peak heap of each phase to the --metrics_file.")
+    private boolean m_metricsMemory = false;
+    
+    @Option(name = "--analyze_only",
+        handler = BooleanOptionHandler.class,
+        usage = "Only find the library functions which would be kept and removed and print them as JSON with " +
+            "their estimated sizes.  This skips generating, compiling, and writing the code and can't be used " +
+            "with --batch or --watch.")
+    private boolean m_analyzeOnly = false;
+    
+    @Option(name = "--jmx_name",
+        usage = "Register live stats for the prune requests under this name with JMX.  This is handy with --watch.")
+    private String m_jmxName = null;
+    
+    private SlimMetrics m_metrics;
+    
+    private JSlimEngine m_engine;
+    private Logger m_logger = JSlim.getLogger();
     
     /**
      * Process the flags file and add the argument values to the current class.
@@ -263,19 +348,20 @@ public class JSlimRunner
      * Read in the externs file if one had been supplied and add the extern references to 
      * the compiler.
      * 
-     * @param slim   the compiler
+     * @param slim    the compiler
+     * @param externs the externs files to read
      * 
      * @exception IOException
      *                   if there's an error reading the externs file
      */
-    private void readExterns(JSlim slim)
+    private void readExterns(JSlim slim, List<String> externs)
         throws IOException
     {
-        for (String f : m_externs) {
+        for (String f : externs) {
             File file = new File(f);
-            List<String> externs = FileUtils.readLines(file, m_charset);
+            List<String> lines = FileUtils.readLines(file, m_charset);
             
-            for (String extern : externs) {
+            for (String extern : lines) {
                 slim.addExtern(extern);
             }
         }
@@ -302,53 +388,506 @@ public class JSlimRunner
     /**
      * Call the prune process.
      * 
+     * @return true if the prune process finished and false if there was an error
+     * @exception CmdLineException
+     *                   if the options conflict or there's an error parsing the batch
+     *                   manifest file
      * @exception IOException
      *                   if there's an error reading or writing the files to prune
+     * @exception InterruptedException
+     *                   if the thread is interrupted while watching for file changes
+     */
+    boolean prune()
+        throws CmdLineException, IOException, InterruptedException
+    {
+        m_logger = JSlim.createLogger(m_loggingLevel.getLevel());
+        
+        if (m_analyzeOnly && (m_batchFile != null || m_watch)) {
+            throw new CmdLineException("--analyze_only can't be used with --batch or --watch.");
+        }
+        
+        m_logger.log(Level.INFO, "Compiling with character set " + m_charset);
+        
+        if (m_metricsFile != null) {
+            m_metrics = new SlimMetrics(m_metricsMemory);
+        }
+        
+        JSlimEngine.Builder builder = new JSlimEngine.Builder()
+            .setCharset(m_charset)
+            .setPrintTree(m_printTree)
+            .setFormattingOptions(m_formatting)
+            .setCompilationLevel(getCompilationLevel())
+            .setMetrics(m_metrics)
+            .setLoggingLevel(m_loggingLevel.getLevel())
+            .setStats(m_jmxName == null ? null : new JSlimStats());
+        
+        if (!addDefines(builder) || !addCoverage(builder) || !setColdUrl(builder)) {
+            return false;
+        }
+        
+        m_engine = builder.build();
+        
+        if (m_jmxName != null) {
+            try {
+                m_engine.getStats().register(m_jmxName);
+            } catch (JMException e) {
+                m_logger.log(Level.WARNING, "Unable to register the JMX stats", e);
+            }
+        }
+        
+        if (m_benchRuns > 0) {
+            return runBench();
+        }
+        
+        /*
+         First we analyze the library files.  The analyzed libraries are
+         never changed so we can share them with every job.
+         */
+        List<LibraryGraph> libs = readLibraries();
+        if (libs == null) {
+            return false;
+        }
+        
+        boolean success = true;
+        if (m_analyzeOnly) {
+            success = analyze(m_js, m_externs, libs);
+        } else if (m_batchFile != null) {
+            success = runBatch(libs);
+        } else if (m_watch) {
+            new SlimWatcher(this, m_js, m_libJs, m_externs, m_output).watch(libs);
+        } else {
+            success = slim(m_js, m_externs, m_output, libs, false);
+        }
+        
+        writeMetrics();
+        
+        return success;
+    }
+    
+    /**
+     * Add the defines from the command line to the engine.  Each define looks like
+     * <code>name=value</code>.
+     * 
+     * @param builder the builder for the engine
+     * 
+     * @return true if all of the defines are valid and false otherwise
+     */
+    private boolean addDefines(JSlimEngine.Builder builder)
+    {
+        for (String define : m_defines) {
+            int index = define.indexOf('=');
+            if (index < 1) {
+                m_logger.log(Level.SEVERE, "The define " + define + " must look like name=value");
+                return false;
+            }
+            
+            try {
+                builder.addDefine(define.substring(0, index).trim(), define.substring(index + 1));
+            } catch (IllegalArgumentException e) {
+                m_logger.log(Level.SEVERE, e.getMessage());
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Read the coverage files from the command line and add them to the engine.
+     * 
+     * @param builder the builder for the engine
+     * 
+     * @return true if all of the coverage files could be read and false otherwise
      */
-    private void prune()
+    private boolean addCoverage(JSlimEngine.Builder builder)
+    {
+        try {
+            builder.setCoverageConfidence(m_coverageConfidence);
+            
+            for (String file : m_coverageJson) {
+                m_logger.log(Level.INFO, "Adding coverage file: " + file);
+                builder.addCoverage(CoverageProfile.read(new File(file), m_charset));
+            }
+        } catch (IllegalArgumentException e) {
+            m_logger.log(Level.SEVERE, e.getMessage());
+            return false;
+        } catch (IOException e) {
+            m_logger.log(Level.SEVERE, e.getMessage());
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Set the URL of the cold chunk on the engine if there is a cold output file.
+     * 
+     * @param builder the builder for the engine
+     * 
+     * @return true if the cold chunk works with the other options and false otherwise
+     */
+    private boolean setColdUrl(JSlimEngine.Builder builder)
+    {
+        if (m_coldOutput == null) {
+            return true;
+        }
+        
+        if (JSlim.renamesLocals(getCompilationLevel())) {
+            /*
+             These levels rename the local variables the cold functions use.
+             */
+            m_logger.log(Level.SEVERE, "The --cold_output_file only works with a --compilation_level of " +
+                                  "WHITESPACE_ONLY or NONE");
+            return false;
+        }
+        
+        if (m_batchFile != null) {
+            m_logger.log(Level.SEVERE, "The --cold_output_file doesn't work with --batch");
+            return false;
+        }
+        
+        builder.setColdUrl(m_coldUrl == null ? new File(m_coldOutput).getName() : m_coldUrl);
+        return true;
+    }
+    
+    /**
+     * Write the metrics file if there is one.  The metrics include every slim job this
+     * runner has run so far.
+     * 
+     * @exception IOException
+     *                   if there's an error writing the metrics file
+     */
+    void writeMetrics()
         throws IOException
     {
-        JSlim slim = new JSlim();
+        if (m_metrics != null) {
+            m_logger.log(Level.INFO, "Writing metrics to " + m_metricsFile);
+            m_metrics.write(new File(m_metricsFile));
+        }
+    }
+    
+    /**
+     * Run all of the jobs in the batch manifest file.
+     * 
+     * @param libs   the analyzed library files
+     * 
+     * @return true if every job finished and false if any job failed
+     * @exception CmdLineException
+     *                   if there's an error parsing the batch manifest file
+     * @exception IOException
+     *                   if there's an error reading the batch manifest file
+     */
+    private boolean runBatch(final List<LibraryGraph> libs)
+        throws CmdLineException, IOException
+    {
+        List<BatchJob> jobs = BatchJob.readManifest(new File(m_batchFile), m_charset);
+        m_logger.log(Level.INFO, "Running " + jobs.size() + " batch jobs");
         
-        slim.setLoggingLevel(m_loggingLevel.getLevel());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(m_batchThreads, jobs.size())));
         
-        JSlim.getLogger().log(Level.INFO, "Compiling with character set " + m_charset);
-        slim.setCharset(m_charset);
-        slim.setPrintTree(m_printTree);
+        try {
+            List<Future<Boolean>> results = Lists.newArrayList();
+            for (final BatchJob job : jobs) {
+                /*
+                 The --js and --externs arguments from the command line are
+                 shared by all of the jobs.
+                 */
+                final List<String> js = Lists.newArrayList(m_js);
+                js.addAll(job.getJs());
+                
+                final List<String> externs = Lists.newArrayList(m_externs);
+                externs.addAll(job.getExterns());
+                
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException
+                    {
+                        return slim(js, externs, job.getOutput(), libs, true);
+                    }
+                }));
+            }
+            
+            List<BatchJob> failed = Lists.newArrayList();
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        m_logger.log(Level.SEVERE, jobs.get(i) + " failed");
+                        failed.add(jobs.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    m_logger.log(Level.SEVERE, jobs.get(i) + " failed", e.getCause());
+                    failed.add(jobs.get(i));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            
+            if (!failed.isEmpty()) {
+                m_logger.log(Level.SEVERE, failed.size() + " out of " + jobs.size() + " batch jobs failed: " + failed);
+                return false;
+            }
+            
+            return true;
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Run the slim job many times and report the time for each phase.
+     * 
+     * @return true if the benchmark finished and false if there was an error
+     * @exception IOException
+     *                   if there's an error reading or writing the files
+     */
+    private boolean runBench()
+        throws IOException
+    {
+        MacroBenchmark bench = new MacroBenchmark(this, m_benchRuns, Math.max(0, m_benchWarmup));
+        if (!bench.run(m_js, m_libJs, m_externs, m_output)) {
+            return false;
+        }
+        
+        bench.printReport();
         
-        CompilationLevel level = getCompilationLevel();
+        if (m_benchOutput != null) {
+            bench.writeReport(new File(m_benchOutput));
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Get the engine for this runner.  The engine is created when the prune process starts.
+     * 
+     * @return the engine
+     */
+    JSlimEngine getEngine()
+    {
+        return m_engine;
+    }
+    
+    /**
+     * Get the logger for this runner.  The logger has the level from the command line
+     * without changing the level for the rest of the process.
+     * 
+     * @return the logger
+     */
+    Logger getLogger()
+    {
+        return m_logger;
+    }
+    
+    /**
+     * Get the charset for reading and writing files.
+     * 
+     * @return the charset
+     */
+    String getCharset()
+    {
+        return m_charset;
+    }
+    
+    /**
+     * Indicate if the library files and the main files go into different output files.
+     * 
+     * @return true if the files are separate and false if they are combined
+     */
+    boolean isSeparate()
+    {
+        return m_separate;
+    }
+    
+    /**
+     * Indicate if the input files are validated before they are slimmed.
+     * 
+     * @return true if the files are validated and false otherwise
+     */
+    boolean isValidating()
+    {
+        return m_preparse;
+    }
+    
+    /**
+     * Indicate if we skip writing the GZIPed output file.
+     * 
+     * @return true if we skip the GZIPed file and false otherwise
+     */
+    boolean isSkipGzip()
+    {
+        return m_skipGzip;
+    }
+    
+    /**
+     * Read, validate, and analyze all of the library files.
+     * 
+     * @return the analyzed library files or null if the files weren't valid
+     * 
+     * @exception IOException
+     *                   if there is an error reading the files
+     */
+    private List<LibraryGraph> readLibraries()
+        throws IOException
+    {
+        List<LibraryGraph> libs = Lists.newArrayList();
+        
+        for (String file : m_libJs) {
+            File f = new File(file);
+            String contents = readFile(f);
+            if (contents == null) {
+                return null;
+            }
+            
+            m_logger.log(Level.INFO, "Adding library file: " + f.getAbsoluteFile());
+            
+            LibraryGraph lib = m_engine.analyzeLibrary(new JSFile(f.getName(), contents, true));
+            if (lib.hasErrors()) {
+                lib.getErrorManager().generateReport();
+                return null;
+            }
+            
+            libs.add(lib);
+        }
+        
+        return libs;
+    }
+    
+    /**
+     * Prune the library files for a set of main files and write out the results.
+     * 
+     * @param js      the main files
+     * @param externs the externs files
+     * @param output  the output file or null to write to stdout
+     * @param libs    the analyzed library files
+     * @param batch   true if this is one of many batch jobs and false otherwise
+     * 
+     * @return true if the job finished and false if there was an error
+     * @exception IOException
+     *                   if there's an error reading or writing the files to prune
+     */
+    private boolean slim(List<String> js, List<String> externs, String output, List<LibraryGraph> libs,
+                         boolean batch)
+        throws IOException
+    {
+        JSlim slim = createSlim();
         
         /*
          First we add the externs
          */
-        readExterns(slim);
+        readExterns(slim, externs);
         
         /*
          Then we add the source files
          */
-        if (!addFiles(slim, m_js, false)) {
-            return;
-        }
-        
-        if (!addFiles(slim, m_libJs, true)) {
-            return;
+        StringBuffer mainFiles = new StringBuffer();
+        if (!addFiles(slim, js, mainFiles)) {
+            return false;
         }
         
         /*
          Then we can call the prune process
          */
-        String result = slim.prune(level);
+        SlimResult result = m_engine.prune(slim, libs);
+        if (batch) {
+            logRemoved(slim, output);
+        } else {
+            printRemoved(slim);
+        }
+        
+        return write(result.getCode(), mainFiles.toString(), output) && writeCold(result.getColdCode());
+    }
+    
+    /**
+     * Find the library functions a slim job would keep and remove and print them to stdout
+     * as JSON.
+     * 
+     * @param js      the main files
+     * @param externs the externs files
+     * @param libs    the analyzed library files
+     * 
+     * @return true if the analysis finished and false if there was an error
+     * @exception IOException
+     *                   if there's an error reading the files
+     */
+    private boolean analyze(List<String> js, List<String> externs, List<LibraryGraph> libs)
+        throws IOException
+    {
+        JSlim slim = createSlim();
+        readExterns(slim, externs);
+        
+        if (!addFiles(slim, js, new StringBuffer())) {
+            return false;
+        }
+        
+        System.out.print(slim.analyze(libs).toJSON());
+        
+        return true;
+    }
+    
+    /**
+     * Print the number of functions a prune operation removed.
+     * 
+     * @param slim   the compiler which ran the prune
+     */
+    static void printRemoved(JSlim slim)
+    {
+        int count = slim.getTotalFunctionCount();
+        if (count > 0) {
+            System.out.println("Removed " + (count - slim.getKeptFunctions().length) + " out of " + count + " named functions.");
+        }
+    }
+    
+    /**
+     * Log the number of functions a batch job removed.  This goes to the logger instead
+     * of stdout since batch jobs finish on many threads at once and the pruned code might
+     * be going to stdout.
+     * 
+     * @param slim   the compiler which ran the prune
+     * @param output the output file or null if the code was written to stdout
+     */
+    private void logRemoved(JSlim slim, String output)
+    {
+        int count = slim.getTotalFunctionCount();
+        if (count > 0) {
+            m_logger.log(Level.INFO, "Removed " + (count - slim.getKeptFunctions().length) + " out of " + count +
+                                  " named functions" + (output == null ? "." : " for " + output + "."));
+        }
+    }
+    
+    /**
+     * Create a new compiler with the options from the command line.
+     * 
+     * @return the compiler
+     */
+    JSlim createSlim()
+    {
+        return m_engine.createSlim();
+    }
+    
+    /**
+     * Compile the pruned library files and write out the results.
+     * 
+     * @param pruned    the pruned library code
+     * @param mainFiles the contents of the main files to combine with the library code
+     * @param output    the output file or null to write to stdout
+     * 
+     * @return true if the results were written and false if there was an error
+     * @exception IOException
+     *                   if there's an error writing the files
+     */
+    boolean write(String pruned, String mainFiles, String output)
+        throws IOException
+    {
+        String result = pruned;
+        CompilationLevel level = m_engine.getCompilationLevel();
         
         if (!m_separate) {
             /*
              If they want to combine the main files and the library files
              then we just append them to the results here before the compile step.
              */
-            result = result + "\n" + m_mainFiles;
-        }
-        
-        if (m_formatting != null) {
-            slim.setFormattingOptions(m_formatting);
+            result = result + "\n" + mainFiles;
         }
         
         if (level != null) {
@@ -356,72 +895,164 @@ public class JSlimRunner
              Then we run the results through the normal compilation process
              to make them even smaller
              */
-            JSlim.getLogger().log(Level.INFO, "Starting closure compile with compile level " + level);
-            result = JSlim.plainCompile(m_output, result, level, m_formatting);
+            m_logger.log(Level.INFO, "Starting closure compile with compile level " + level);
+            result = m_engine.compile(output, result);
+        }
+        
+        if (m_metrics != null) {
+            m_metrics.addBytesOut(result.getBytes(m_charset).length);
         }
         
         /*
          Then we can write out the results
          */
-        if (m_output == null) {
+        if (output == null) {
             System.out.println(result);
         } else {
-            File out = new File(m_output).getAbsoluteFile();
-            JSlim.getLogger().log(Level.INFO, "Writing to file " + out);
+            File out = new File(output).getAbsoluteFile();
+            m_logger.log(Level.INFO, "Writing to file " + out);
             if (!out.getParentFile().exists()) {
-                JSlim.getLogger().log(Level.SEVERE, 
+                m_logger.log(Level.SEVERE, 
                                       "The specified output directory " + out.getParent() + " does not exist");
-                return;
+                return false;
             }
             
+            Object event = SlimEvents.beginWrite();
+            SlimMetrics.Timer timer = startTimer(SlimMetrics.Phase.WRITE);
             FileUtils.writeStringToFile(out, result);
+            stopTimer(timer);
+            SlimEvents.commitWrite(event, out.getPath(), result.length(), false);
             
             if (!m_skipGzip) {
-                JSlim.getLogger().log(Level.INFO, "Writing GZIPed file");
+                m_logger.log(Level.INFO, "Writing GZIPed file");
+                event = SlimEvents.beginWrite();
+                timer = startTimer(SlimMetrics.Phase.GZIP);
                 JSlim.writeGzip(result, out, m_charset);
+                stopTimer(timer);
+                SlimEvents.commitWrite(event, out.getPath() + ".gz", result.length(), true);
             }
         }
         
+        return true;
+    }
+    
+    /**
+     * Write the cold chunk if there is a cold output file.
+     * 
+     * @param coldCode the JSON for the cold chunk
+     * 
+     * @return true if the cold chunk was written and false if there was an error
+     * @exception IOException
+     *                   if there's an error writing the file
+     */
+    boolean writeCold(String coldCode)
+        throws IOException
+    {
+        if (m_coldOutput == null || coldCode == null) {
+            return true;
+        }
+        
+        File out = new File(m_coldOutput).getAbsoluteFile();
+        m_logger.log(Level.INFO, "Writing the cold chunk to " + out);
+        if (!out.getParentFile().exists()) {
+            m_logger.log(Level.SEVERE, 
+                                  "The specified output directory " + out.getParent() + " does not exist");
+            return false;
+        }
         
+        FileUtils.writeStringToFile(out, coldCode, m_charset);
+        return true;
     }
     
     /**
-     * Add files for compilation.
+     * Start timing a phase if this runner collects metrics.
      * 
-     * @param slim   the compiler instance
-     * @param files  the files to add
-     * @param isLib  if these files are library files
+     * @param phase  the phase to time
+     * 
+     * @return the timer or null if there are no metrics
+     */
+    private SlimMetrics.Timer startTimer(SlimMetrics.Phase phase)
+    {
+        if (m_metrics == null) {
+            return null;
+        }
+        
+        return m_metrics.start(phase);
+    }
+    
+    /**
+     * Stop a timer from {@link #startTimer(SlimMetrics.Phase)}.
+     * 
+     * @param timer  the timer or null if there are no metrics
+     */
+    private static void stopTimer(SlimMetrics.Timer timer)
+    {
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Read a file for compilation and validate it if validation is turned on.
+     * 
+     * @param f      the file to read
+     * 
+     * @return the file contents or null if the file wasn't valid
+     * @exception IOException
+     *                   if there is an error reading the file
+     */
+    String readFile(File f)
+        throws IOException
+    {
+        SlimMetrics.Timer timer = startTimer(SlimMetrics.Phase.READ);
+        String contents = FileUtils.readFileToString(f, m_charset);
+        stopTimer(timer);
+        
+        if (m_metrics != null) {
+            m_metrics.addBytesIn(f.length());
+        }
+        
+        if (m_preparse) {
+            timer = startTimer(SlimMetrics.Phase.VALIDATE);
+            ErrorManager mgr = JSlim.validate(f.getAbsolutePath(), contents, m_formatting);
+            stopTimer(timer);
+            if (mgr.getErrorCount() != 0) {
+                mgr.generateReport();
+                return null;
+            }
+        }
+        
+        return contents;
+    }
+    
+    /**
+     * Add main files for compilation.
+     * 
+     * @param slim      the compiler instance
+     * @param files     the files to add
+     * @param mainFiles the buffer to add the main file contents to if we're combining files
      * 
      * @return true if the files were properly validated or false otherwise
      * @exception IOException
      *                   if there is an error reading the files
      */
-    private boolean addFiles(JSlim slim, List<String> files, boolean isLib)
+    private boolean addFiles(JSlim slim, List<String> files, StringBuffer mainFiles)
         throws IOException
     {
         for (String file : files) {
             File f = new File(file);
-            String contents = FileUtils.readFileToString(f, m_charset);
-            
-            if (m_preparse) {
-                ErrorManager mgr = slim.validate(f.getAbsolutePath(), contents, m_formatting);
-                if (mgr.getErrorCount() != 0) {
-                    mgr.generateReport();
-                    return false;
-                }
+            String contents = readFile(f);
+            if (contents == null) {
+                return false;
             }
             
-            if (!m_separate && !isLib) {
-                m_mainFiles.append(contents + "\n");
+            if (!m_separate) {
+                mainFiles.append(contents + "\n");
             }
             
-            if (isLib) {
-                JSlim.getLogger().log(Level.INFO, "Adding library file: " + f.getAbsoluteFile());
-            } else {
-                JSlim.getLogger().log(Level.INFO, "Adding main file: " + f.getAbsoluteFile());
-            }
+            m_logger.log(Level.INFO, "Adding main file: " + f.getAbsoluteFile());
             
-            slim.addSourceFile(new JSFile(f.getName(), contents, isLib));
+            slim.addSourceFile(new JSFile(f.getName(), contents, false));
         }
         
         return true;
@@ -440,7 +1071,7 @@ public class JSlimRunner
         System.out.println();
     }
     
-
+    
     /**
      * The main entry point.
      * 
@@ -475,9 +1106,16 @@ public class JSlimRunner
                 return;
             }
             
-            runner.prune();
+            if (!runner.prune()) {
+                System.exit(1);
+            }
+        } catch (CmdLineException e) {
+            System.out.println(e.getMessage() + '\n');
+            printUsage(parser);
+            System.exit(1);
         } catch (Exception e) {
             e.printStackTrace();
+            System.exit(1);
         }
     }
 }
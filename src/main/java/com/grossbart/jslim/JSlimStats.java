@@ -0,0 +1,433 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * JSlimStats keeps live counters for an engine which runs inside a long-lived process.
+ * Give the stats to an engine with {@link JSlimEngine.Builder#setStats(JSlimStats)} and
+ * register them with JMX to watch them from JConsole or your monitoring system:
+ * </p>
+ *
+ * <pre>
+ * JSlimStats stats = new JSlimStats();
+ * JSlimEngine engine = new JSlimEngine.Builder()
+ *     .setLibraryCache(new LibraryCache(64 * 1024 * 1024))
+ *     .setStats(stats)
+ *     .build();
+ * stats.register("assets");
+ * </pre>
+ *
+ * <p>
+ * The counters are updated by many threads at once so they use LongAdder which doesn't
+ * make the threads wait on each other.  Latencies go into fixed histogram buckets and
+ * the percentiles are estimated from the buckets.  This class is thread-safe.
+ * </p>
+ */
+public class JSlimStats implements JSlimStatsMBean
+{
+    private static final long BUCKET_BOUNDS[] = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+    
+    /**
+     * A Histogram counts latencies in the buckets from BUCKET_BOUNDS.
+     */
+    private static final class Histogram
+    {
+        private LongAdder m_buckets[] = new LongAdder[BUCKET_BOUNDS.length + 1];
+        private AtomicLong m_max = new AtomicLong();
+        
+        private Histogram()
+        {
+            for (int i = 0; i < m_buckets.length; i++) {
+                m_buckets[i] = new LongAdder();
+            }
+        }
+        
+        /**
+         * Add a latency to this histogram.
+         * 
+         * @param nanos  the latency in nanoseconds
+         */
+        private void add(long nanos)
+        {
+            long millis = nanos / 1000000;
+            int i = 0;
+            while (i < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[i]) {
+                i++;
+            }
+            m_buckets[i].increment();
+            
+            long max = m_max.get();
+            while (nanos > max && !m_max.compareAndSet(max, nanos)) {
+                max = m_max.get();
+            }
+        }
+        
+        /**
+         * Get the count in each bucket.
+         * 
+         * @return the counts
+         */
+        private long[] getCounts()
+        {
+            long counts[] = new long[m_buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = m_buckets[i].sum();
+            }
+            
+            return counts;
+        }
+        
+        /**
+         * Estimate a percentile as the upper bound of the bucket which holds it.  The slowest
+         * bucket has no upper bound so we use the maximum latency.
+         * 
+         * @param percentile the percentile from 0 to 100
+         * 
+         * @return the estimated latency in milliseconds
+         */
+        private double getPercentile(double percentile)
+        {
+            long counts[] = getCounts();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            
+            if (total == 0) {
+                return 0;
+            }
+            
+            long rank = (long) Math.ceil(percentile / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(BUCKET_BOUNDS[i], getMaxMillis());
+                }
+            }
+            
+            return getMaxMillis();
+        }
+        
+        /**
+         * Get the slowest latency in this histogram.
+         * 
+         * @return the latency in milliseconds
+         */
+        private double getMaxMillis()
+        {
+            return m_max.get() / 1000000.0;
+        }
+        
+        /**
+         * Remove all of the latencies from this histogram.
+         */
+        private void reset()
+        {
+            for (LongAdder bucket : m_buckets) {
+                bucket.reset();
+            }
+            m_max.set(0);
+        }
+    }
+    
+    private LongAdder m_requests = new LongAdder();
+    private LongAdder m_failures = new LongAdder();
+    private LongAdder m_inFlight = new LongAdder();
+    private LongAdder m_analyses = new LongAdder();
+    
+    private Histogram m_slimLatency = new Histogram();
+    private Histogram m_analysisLatency = new Histogram();
+    
+    private volatile LibraryCache m_libCache;
+    private List<BundleCache> m_bundleCaches = Collections.synchronizedList(new ArrayList<BundleCache>());
+    
+    /*
+     We hold the analyzed libraries weakly so we can report how many are
+     still in memory without keeping them there.
+     */
+    private Map<LibraryGraph, Boolean> m_graphs =
+        Collections.synchronizedMap(new WeakHashMap<LibraryGraph, Boolean>());
+    
+    private ObjectName m_name;
+    
+    /**
+     * Note the start of a prune request.
+     * 
+     * @return the start time to pass to {@link #endSlim(long, boolean)}
+     */
+    long beginSlim()
+    {
+        m_inFlight.increment();
+        return System.nanoTime();
+    }
+    
+    /**
+     * Note the end of a prune request.
+     * 
+     * @param start   the time from {@link #beginSlim()}
+     * @param success true if the request worked and false if it failed with an exception
+     */
+    void endSlim(long start, boolean success)
+    {
+        m_inFlight.decrement();
+        
+        if (success) {
+            m_requests.increment();
+            m_slimLatency.add(System.nanoTime() - start);
+        } else {
+            m_failures.increment();
+        }
+    }
+    
+    /**
+     * Note a library analysis.
+     * 
+     * @param lib    the analyzed library
+     * @param nanos  the time the analysis took in nanoseconds
+     */
+    void addAnalysis(LibraryGraph lib, long nanos)
+    {
+        m_analyses.increment();
+        m_analysisLatency.add(nanos);
+        
+        if (!lib.hasErrors()) {
+            m_graphs.put(lib, Boolean.TRUE);
+        }
+    }
+    
+    /**
+     * Set the library cache these stats report on.
+     * 
+     * @param cache  the cache
+     */
+    void setLibraryCache(LibraryCache cache)
+    {
+        m_libCache = cache;
+    }
+    
+    /**
+     * Add a bundle cache to these stats.  The hit ratio and size of all the bundle caches
+     * are added together.
+     * 
+     * @param cache  the cache
+     */
+    public void addBundleCache(BundleCache cache)
+    {
+        m_bundleCaches.add(cache);
+    }
+    
+    /**
+     * Register these stats with the platform MBean server.
+     * 
+     * @param name   the name of these stats which tells them apart from the stats of
+     *               other engines in the same process
+     * 
+     * @return the JMX name of these stats
+     * @exception JMException
+     *                   if the stats can't be registered
+     */
+    public synchronized ObjectName register(String name)
+        throws JMException
+    {
+        ObjectName objectName = new ObjectName("com.grossbart.jslim:type=JSlimStats,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        m_name = objectName;
+        
+        return objectName;
+    }
+    
+    /**
+     * Remove these stats from the platform MBean server if they were registered.
+     * 
+     * @exception JMException
+     *                   if the stats can't be removed
+     */
+    public synchronized void unregister()
+        throws JMException
+    {
+        if (m_name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_name);
+            m_name = null;
+        }
+    }
+    
+    @Override
+    public long getRequestCount()
+    {
+        return m_requests.sum();
+    }
+    
+    @Override
+    public long getFailureCount()
+    {
+        return m_failures.sum();
+    }
+    
+    @Override
+    public long getInFlightCount()
+    {
+        return m_inFlight.sum();
+    }
+    
+    @Override
+    public long getAnalysisCount()
+    {
+        return m_analyses.sum();
+    }
+    
+    @Override
+    public long[] getLatencyBucketBounds()
+    {
+        return BUCKET_BOUNDS.clone();
+    }
+    
+    @Override
+    public long[] getSlimLatencyHistogram()
+    {
+        return m_slimLatency.getCounts();
+    }
+    
+    @Override
+    public double getSlimLatencyP50Millis()
+    {
+        return m_slimLatency.getPercentile(50);
+    }
+    
+    @Override
+    public double getSlimLatencyP90Millis()
+    {
+        return m_slimLatency.getPercentile(90);
+    }
+    
+    @Override
+    public double getSlimLatencyP99Millis()
+    {
+        return m_slimLatency.getPercentile(99);
+    }
+    
+    @Override
+    public double getSlimLatencyMaxMillis()
+    {
+        return m_slimLatency.getMaxMillis();
+    }
+    
+    @Override
+    public long[] getAnalysisLatencyHistogram()
+    {
+        return m_analysisLatency.getCounts();
+    }
+    
+    @Override
+    public double getAnalysisLatencyP99Millis()
+    {
+        return m_analysisLatency.getPercentile(99);
+    }
+    
+    @Override
+    public double getLibraryCacheHitRatio()
+    {
+        LibraryCache cache = m_libCache;
+        if (cache == null) {
+            return 0;
+        }
+        
+        return getRatio(cache.getHitCount(), cache.getMissCount());
+    }
+    
+    @Override
+    public double getBundleCacheHitRatio()
+    {
+        long hits = 0;
+        long misses = 0;
+        synchronized (m_bundleCaches) {
+            for (BundleCache cache : m_bundleCaches) {
+                hits += cache.getHitCount();
+                misses += cache.getMissCount();
+            }
+        }
+        
+        return getRatio(hits, misses);
+    }
+    
+    private static double getRatio(long hits, long misses)
+    {
+        if (hits + misses == 0) {
+            return 0;
+        }
+        
+        return (double) hits / (hits + misses);
+    }
+    
+    @Override
+    public int getLibraryGraphCount()
+    {
+        return m_graphs.size();
+    }
+    
+    @Override
+    public long getEstimatedHeapBytes()
+    {
+        long bytes = 0;
+        synchronized (m_graphs) {
+            for (LibraryGraph lib : m_graphs.keySet()) {
+                bytes += lib.getEstimatedSize();
+            }
+        }
+        
+        synchronized (m_bundleCaches) {
+            for (BundleCache cache : m_bundleCaches) {
+                bytes += cache.getEstimatedSize();
+            }
+        }
+        
+        return bytes;
+    }
+    
+    @Override
+    public void reset()
+    {
+        m_requests.reset();
+        m_failures.reset();
+        m_analyses.reset();
+        m_slimLatency.reset();
+        m_analysisLatency.reset();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "JSlimStats: " + getRequestCount() + " requests, " + getInFlightCount() + " in flight, " +
+            getLibraryGraphCount() + " library graphs";
+    }
+}
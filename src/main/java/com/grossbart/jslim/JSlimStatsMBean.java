@@ -0,0 +1,144 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+/**
+ * The management interface for {@link JSlimStats}.  Each getter is an attribute in JMX
+ * tools like JConsole.
+ */
+public interface JSlimStatsMBean
+{
+    /**
+     * Get the number of prune requests which finished.
+     * 
+     * @return the request count
+     */
+    long getRequestCount();
+    
+    /**
+     * Get the number of prune requests which failed with an exception.
+     * 
+     * @return the failure count
+     */
+    long getFailureCount();
+    
+    /**
+     * Get the number of prune requests which are running right now.
+     * 
+     * @return the in-flight count
+     */
+    long getInFlightCount();
+    
+    /**
+     * Get the number of library files which were analyzed or found in the library cache.
+     * 
+     * @return the analysis count
+     */
+    long getAnalysisCount();
+    
+    /**
+     * Get the upper bound in milliseconds of each bucket in the latency histograms.  The
+     * last bucket holds everything slower than the last bound.
+     * 
+     * @return the bucket bounds
+     */
+    long[] getLatencyBucketBounds();
+    
+    /**
+     * Get the number of prune requests in each latency bucket.
+     * 
+     * @return the histogram
+     */
+    long[] getSlimLatencyHistogram();
+    
+    /**
+     * Get the estimated 50th percentile prune latency.
+     * 
+     * @return the latency in milliseconds
+     */
+    double getSlimLatencyP50Millis();
+    
+    /**
+     * Get the estimated 90th percentile prune latency.
+     * 
+     * @return the latency in milliseconds
+     */
+    double getSlimLatencyP90Millis();
+    
+    /**
+     * Get the estimated 99th percentile prune latency.
+     * 
+     * @return the latency in milliseconds
+     */
+    double getSlimLatencyP99Millis();
+    
+    /**
+     * Get the slowest prune latency.
+     * 
+     * @return the latency in milliseconds
+     */
+    double getSlimLatencyMaxMillis();
+    
+    /**
+     * Get the number of library analyses in each latency bucket.
+     * 
+     * @return the histogram
+     */
+    long[] getAnalysisLatencyHistogram();
+    
+    /**
+     * Get the estimated 99th percentile library analysis latency.
+     * 
+     * @return the latency in milliseconds
+     */
+    double getAnalysisLatencyP99Millis();
+    
+    /**
+     * Get the share of library lookups which were found in the library cache.
+     * 
+     * @return the hit ratio from 0 to 1 or 0 if there is no library cache
+     */
+    double getLibraryCacheHitRatio();
+    
+    /**
+     * Get the share of bundle lookups which were found in the bundle cache.
+     * 
+     * @return the hit ratio from 0 to 1 or 0 if there is no bundle cache
+     */
+    double getBundleCacheHitRatio();
+    
+    /**
+     * Get the number of analyzed libraries which are still in memory.
+     * 
+     * @return the library graph count
+     */
+    int getLibraryGraphCount();
+    
+    /**
+     * Get the estimated heap size of the analyzed libraries in memory and the cached
+     * bundles.
+     * 
+     * @return the estimated size in bytes
+     */
+    long getEstimatedHeapBytes();
+    
+    /**
+     * Reset the request counters and histograms.  The cache counters aren't reset.
+     */
+    void reset();
+}
@@ -0,0 +1,204 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * <p>
+ * The LibraryCache holds analyzed library files so they can be used by many prune
+ * operations without parsing them again.  Libraries are looked up by a hash of their
+ * contents and the defines they're analyzed with so a new version of a library is
+ * analyzed even if the file name is the same.
+ * </p>
+ *
+ * <p>
+ * The cache is limited by the estimated memory size of the libraries it holds instead of
+ * the number of libraries.  When a new library doesn't fit we remove the least recently
+ * used libraries until it does.  This class is thread-safe.
+ * </p>
+ */
+public class LibraryCache
+{
+    private long m_maxBytes;
+    private long m_bytes;
+    
+    private long m_hits;
+    private long m_misses;
+    private long m_evictions;
+    
+    /*
+     This map is in access order so the first entry is always the least
+     recently used.
+     */
+    private LinkedHashMap<String, LibraryGraph> m_libs = new LinkedHashMap<String, LibraryGraph>(16, 0.75f, true);
+    
+    /**
+     * Create a new LibraryCache.
+     * 
+     * @param maxBytes the maximum estimated size in bytes of all the libraries in this cache
+     */
+    public LibraryCache(long maxBytes)
+    {
+        m_maxBytes = maxBytes;
+    }
+    
+    /**
+     * Get the analyzed version of a library file.  If the library isn't in the cache then
+     * we analyze it and add it to the cache.  Libraries with errors are never cached.
+     * 
+     * @param file   the library file
+     * @param slim   the compiler to analyze the library with if it isn't in the cache
+     * 
+     * @return the analyzed library
+     */
+    public LibraryGraph get(JSFile file, JSlim slim)
+    {
+        /*
+         The defines change the analyzed library so the same file with
+         different defines is a different library.
+         */
+        String key = LibraryGraph.hash(file.getContent()) + slim.getDefines();
+        
+        synchronized (this) {
+            LibraryGraph lib = m_libs.get(key);
+            if (lib != null) {
+                m_hits++;
+                return lib;
+            }
+            
+            m_misses++;
+        }
+        
+        /*
+         We analyze the library outside of the lock so other threads can
+         keep using the cache while we parse.
+         */
+        LibraryGraph lib = slim.analyzeLibrary(file);
+        if (lib.hasErrors() || lib.getEstimatedSize() > m_maxBytes) {
+            return lib;
+        }
+        
+        synchronized (this) {
+            LibraryGraph current = m_libs.get(key);
+            if (current != null) {
+                /*
+                 Another thread analyzed the same library while we were
+                 working on it so we use theirs.
+                 */
+                return current;
+            }
+            
+            m_bytes += lib.getEstimatedSize();
+            m_libs.put(key, lib);
+            
+            Iterator<Map.Entry<String, LibraryGraph>> it = m_libs.entrySet().iterator();
+            while (m_bytes > m_maxBytes && it.hasNext()) {
+                LibraryGraph oldest = it.next().getValue();
+                if (oldest == lib) {
+                    continue;
+                }
+                
+                JSlim.getLogger().log(Level.FINE, "Removing " + oldest + " from the library cache");
+                m_bytes -= oldest.getEstimatedSize();
+                m_evictions++;
+                it.remove();
+            }
+        }
+        
+        return lib;
+    }
+    
+    /**
+     * Remove all of the libraries from this cache.  The counters aren't reset.
+     */
+    public synchronized void clear()
+    {
+        m_libs.clear();
+        m_bytes = 0;
+    }
+    
+    /**
+     * Get the number of times a library was found in the cache.
+     * 
+     * @return the hit count
+     */
+    public synchronized long getHitCount()
+    {
+        return m_hits;
+    }
+    
+    /**
+     * Get the number of times a library wasn't found in the cache and had to be analyzed.
+     * 
+     * @return the miss count
+     */
+    public synchronized long getMissCount()
+    {
+        return m_misses;
+    }
+    
+    /**
+     * Get the number of libraries removed from the cache to make room for new libraries.
+     * 
+     * @return the eviction count
+     */
+    public synchronized long getEvictionCount()
+    {
+        return m_evictions;
+    }
+    
+    /**
+     * Get the number of libraries in the cache.
+     * 
+     * @return the library count
+     */
+    public synchronized int getLibraryCount()
+    {
+        return m_libs.size();
+    }
+    
+    /**
+     * Get the estimated size in bytes of all of the libraries in the cache.
+     * 
+     * @return the estimated size
+     */
+    public synchronized long getEstimatedSize()
+    {
+        return m_bytes;
+    }
+    
+    /**
+     * Get the maximum estimated size in bytes of all of the libraries in the cache.
+     * 
+     * @return the maximum size
+     */
+    public long getMaxSize()
+    {
+        return m_maxBytes;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "LibraryCache: " + m_libs.size() + " libraries, " + m_bytes + " of " + m_maxBytes + " bytes";
+    }
+}
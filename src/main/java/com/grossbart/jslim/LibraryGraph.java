@@ -0,0 +1,396 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.javascript.jscomp.ErrorManager;
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * A LibraryGraph is a single library file after it has been parsed and analyzed.  It holds
+ * the parse tree, the interesting functions in that tree, and the calls the library makes.
+ * The graph is never changed once it is created so the same graph can be used to prune any
+ * number of programs, even from multiple threads at the same time.
+ */
+public class LibraryGraph
+{
+    /**
+     * A rough guess at the number of bytes each node in the parse tree uses.  This includes
+     * the node, its property list, and its share of the strings in the tree.
+     */
+    private static final int BYTES_PER_NODE = 96;
+    
+    private String m_name;
+    private String m_content;
+    private String m_hash;
+    private Set<String> m_owners;
+    private Node m_script;
+    private long m_size;
+    private int m_length;
+    private int m_funcSizes[];
+
+    private List<Node> m_funcs;
+    private List<Call> m_calls;
+    
+    private ErrorManager m_errMgr;
+    
+    /**
+     * Create a new LibraryGraph.
+     * 
+     * @param file   the library file
+     * @param script the SCRIPT node for this library or null if the library couldn't be parsed
+     * @param funcs  the interesting functions in this library
+     * @param calls  the calls this library makes
+     * @param errMgr the error manager from parsing this library
+     */
+    LibraryGraph(JSFile file, Node script, List<Node> funcs, List<Call> calls, ErrorManager errMgr)
+    {
+        m_name = file.getName();
+        m_content = file.getContent();
+        m_script = script;
+        m_length = file.getContent().length();
+        
+        /*
+         The parse tree keeps a reference to the source code so we count
+         that as well as the nodes.
+         */
+        m_size = 2L * file.getContent().length();
+        if (script != null) {
+            m_size += BYTES_PER_NODE * countNodes(script);
+        }
+        
+        m_funcs = Collections.unmodifiableList(funcs);
+        m_calls = Collections.unmodifiableList(calls);
+        m_errMgr = errMgr;
+    }
+    
+    /**
+     * Get the name of the library file.
+     * 
+     * @return the file name
+     */
+    public String getName()
+    {
+        return m_name;
+    }
+    
+    /**
+     * Get a hash of the contents of this library.  Two libraries with the same contents
+     * always have the same hash.
+     * 
+     * @return the SHA-1 hash as a hexadecimal string
+     */
+    public synchronized String getHash()
+    {
+        if (m_hash == null) {
+            /*
+             Only the bundle cache needs the hash so we don't pay for the
+             digest and the security providers until it asks.
+             */
+            m_hash = hash(m_content);
+            m_content = null;
+        }
+        
+        return m_hash;
+    }
+    
+    /**
+     * Get the owners of the member groups in this library.  Two pages which call the same
+     * functions and mention the same owners always get the same pruned library.
+     * 
+     * @return the owner names
+     */
+    synchronized Set<String> getGroupOwners()
+    {
+        if (m_owners == null) {
+            /*
+             Only the bundle cache needs the owners so we don't look for
+             them until it asks.
+             */
+            List<MemberGroup> groups = new ArrayList<MemberGroup>();
+            if (m_script != null) {
+                MemberGroup.findGroups(m_script, groups);
+            }
+            
+            m_owners = new HashSet<String>();
+            for (MemberGroup group : groups) {
+                m_owners.add(group.getOwner());
+            }
+        }
+        
+        return m_owners;
+    }
+    
+    /**
+     * Get the number of named or "interesting" functions in this library.
+     * 
+     * @return the function count
+     */
+    public int getFunctionCount()
+    {
+        return m_funcs.size();
+    }
+    
+    /**
+     * Get an estimate of the number of bytes of memory this graph uses.  This is only a 
+     * rough estimate based on the size of the source code and the number of nodes in the 
+     * parse tree.
+     * 
+     * @return the estimated size in bytes
+     */
+    public long getEstimatedSize()
+    {
+        return m_size;
+    }
+    
+    /**
+     * Indicate if there were errors parsing this library.  A library with errors can't be
+     * pruned.
+     * 
+     * @return true if there were parse errors and false otherwise
+     */
+    public boolean hasErrors()
+    {
+        return m_script == null;
+    }
+    
+    /**
+     * Get the error manager from parsing this library.
+     * 
+     * @return the error manager
+     */
+    public ErrorManager getErrorManager()
+    {
+        return m_errMgr;
+    }
+    
+    /**
+     * Get the calls this library makes.  These calls must be copied before their counts
+     * are changed.
+     * 
+     * @return the read-only list of calls
+     */
+    List<Call> getCalls()
+    {
+        return m_calls;
+    }
+    
+    /**
+     * Get the length of the library source code.
+     * 
+     * @return the length in characters
+     */
+    int getLength()
+    {
+        return m_length;
+    }
+    
+    /**
+     * <p>
+     * Get the estimated size in the source code of each interesting function in the same
+     * order as the functions in this graph.
+     * </p>
+     * 
+     * <p>
+     * The parse tree only knows where each node starts so a function ends where the first
+     * node after its last node starts.  That includes the whitespace and comments after the
+     * function.  The sizes are only worked out the first time they're needed.
+     * </p>
+     * 
+     * @return the sizes in characters
+     */
+    synchronized int[] getFunctionSizes()
+    {
+        if (m_funcSizes == null) {
+            m_funcSizes = new int[m_funcs.size()];
+            if (m_script != null) {
+                List<Integer> offsets = new ArrayList<Integer>();
+                addOffsets(m_script, offsets);
+                Collections.sort(offsets);
+                
+                for (int i = 0; i < m_funcs.size(); i++) {
+                    int range[] = {Integer.MAX_VALUE, -1};
+                    findRange(m_funcs.get(i), range);
+                    
+                    /*
+                     The first offset after the last node in the function is
+                     where the next statement or property starts.
+                     */
+                    int next = Collections.binarySearch(offsets, range[1] + 1);
+                    int end = next < 0 ? -next - 1 : next;
+                    int stop = end < offsets.size() ? offsets.get(end) : m_length;
+                    
+                    m_funcSizes[i] = Math.max(0, stop - range[0]);
+                }
+            }
+        }
+        
+        return m_funcSizes;
+    }
+    
+    /**
+     * Add the source offsets of all the nodes in a tree.
+     * 
+     * @param node    the root of the tree
+     * @param offsets the list to add the offsets to
+     */
+    private static void addOffsets(Node node, List<Integer> offsets)
+    {
+        if (node.getSourceOffset() > -1) {
+            offsets.add(node.getSourceOffset());
+        }
+        
+        for (Node n : node.children()) {
+            addOffsets(n, offsets);
+        }
+    }
+    
+    /**
+     * Find the first and last source offsets in a tree.
+     * 
+     * @param node   the root of the tree
+     * @param range  the first and last offsets found so far
+     */
+    private static void findRange(Node node, int range[])
+    {
+        int offset = node.getSourceOffset();
+        if (offset > -1) {
+            range[0] = Math.min(range[0], offset);
+            range[1] = Math.max(range[1], offset);
+        }
+        
+        for (Node n : node.children()) {
+            findRange(n, range);
+        }
+    }
+    
+    /**
+     * Make a private copy of this library's tree for a single prune operation.  Pruning
+     * detaches nodes from the tree so each prune works on its own copy.
+     * 
+     * @param funcs  the list to add the copies of the interesting functions to.  They are
+     *               added in the same order as the functions in this graph.
+     * 
+     * @return the copied SCRIPT node
+     */
+    Node copyTree(List<Node> funcs)
+    {
+        Map<Node, Integer> index = new IdentityHashMap<Node, Integer>();
+        for (int i = 0; i < m_funcs.size(); i++) {
+            index.put(m_funcs.get(i), i);
+        }
+        
+        Node copies[] = new Node[m_funcs.size()];
+        Node script = m_script.cloneTree();
+        mapCopies(m_script, script, index, copies);
+        
+        /*
+         The SCRIPT node needs a parent so we can tell the difference between
+         top-level functions and functions which have already been removed.
+         */
+        new Node(Token.BLOCK, script);
+        
+        Collections.addAll(funcs, copies);
+        return script;
+    }
+    
+    /**
+     * Get a SHA-1 hash of the specified text.
+     * 
+     * @param content the text to hash
+     * 
+     * @return the hash as a hexadecimal string
+     */
+    static String hash(String content)
+    {
+        try {
+            byte digest[] = MessageDigest.getInstance("SHA-1").digest(content.getBytes("UTF-8"));
+            
+            StringBuffer sb = new StringBuffer();
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Count the nodes in the specified tree.
+     * 
+     * @param node   the root of the tree
+     * 
+     * @return the number of nodes
+     */
+    private static int countNodes(Node node)
+    {
+        int count = 1;
+        for (Node n : node.children()) {
+            count += countNodes(n);
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Walk the original tree and the copied tree together and find the copies of all the
+     * interesting functions.
+     * 
+     * @param orig   the original node
+     * @param copy   the copied node with the same position in the copied tree
+     * @param index  the position of each interesting function in our list of functions
+     * @param copies the array of copied functions to fill in
+     */
+    private static void mapCopies(Node orig, Node copy, Map<Node, Integer> index, Node copies[])
+    {
+        Integer i = index.get(orig);
+        if (i != null) {
+            copies[i] = copy;
+        }
+        
+        Iterator<Node> origs = orig.children().iterator();
+        Iterator<Node> dups = copy.children().iterator();
+        
+        while (origs.hasNext()) {
+            mapCopies(origs.next(), dups.next(), index, copies);
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "LibraryGraph: " + m_name;
+    }
+}
@@ -0,0 +1,409 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import com.google.javascript.jscomp.CompilationLevel;
+import com.google.javascript.jscomp.ErrorManager;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * <p>
+ * The MacroBenchmark runs a complete slim job many times in the same JVM and reports how
+ * long each phase took.  It runs the same steps as a normal slim job, but it reads,
+ * validates, and analyzes all the files again for every run so each run does all the work.
+ * </p>
+ *
+ * <p>
+ * The first runs are a warm-up and aren't counted.  The report has the 50th, 90th, and
+ * 99th percentile for each phase along with the number of removed functions and the size
+ * of the output.  It can also be saved as CSV or JSON to compare different versions of
+ * JSlim.
+ * </p>
+ */
+class MacroBenchmark
+{
+    /*
+     These are the phases of a slim job in the order they run.  The last
+     one is the total time for the whole job.
+     */
+    private static final String PHASES[] = {
+        "read", "validate", "analyze", "prune", "compile", "write", "gzip", "total"
+    };
+    
+    private static final int READ = 0;
+    private static final int VALIDATE = 1;
+    private static final int ANALYZE = 2;
+    private static final int PRUNE = 3;
+    private static final int COMPILE = 4;
+    private static final int WRITE = 5;
+    private static final int GZIP = 6;
+    private static final int TOTAL = 7;
+    
+    private JSlimRunner m_runner;
+    private int m_runs;
+    private int m_warmup;
+    
+    private long m_times[][];
+    
+    private int m_funcCount;
+    private int m_removedCount;
+    private long m_sizeBefore;
+    private long m_sizeAfter;
+    private long m_gzipSize;
+    
+    /**
+     * Create a new MacroBenchmark.
+     * 
+     * @param runner the runner with the options for the slim job
+     * @param runs   the number of runs to measure
+     * @param warmup the number of runs before the measured runs
+     */
+    MacroBenchmark(JSlimRunner runner, int runs, int warmup)
+    {
+        m_runner = runner;
+        m_runs = runs;
+        m_warmup = warmup;
+        m_times = new long[PHASES.length][runs];
+    }
+    
+    /**
+     * Run the benchmark.  If there is no output file then the results are written to a
+     * temporary file which is deleted when the benchmark is done.
+     * 
+     * @param js      the main files
+     * @param libJs   the library files
+     * @param externs the externs files
+     * @param output  the output file or null
+     * 
+     * @return true if all the runs finished and false if there was an error
+     * @exception IOException
+     *                   if there's an error reading or writing the files
+     */
+    boolean run(List<String> js, List<String> libJs, List<String> externs, String output)
+        throws IOException
+    {
+        File out;
+        if (output == null) {
+            out = File.createTempFile("jslim-bench", ".js");
+        } else {
+            out = new File(output).getAbsoluteFile();
+            if (!out.getParentFile().exists()) {
+                m_runner.getLogger().log(Level.SEVERE,
+                                      "The specified output directory " + out.getParent() + " does not exist");
+                return false;
+            }
+        }
+        
+        File gzip = new File(out.getParentFile(), out.getName() + ".gz");
+        
+        try {
+            for (int i = 0; i < m_warmup + m_runs; i++) {
+                long times[] = runOnce(js, libJs, externs, out, gzip);
+                if (times == null) {
+                    return false;
+                }
+                
+                if (i >= m_warmup) {
+                    for (int p = 0; p < PHASES.length; p++) {
+                        m_times[p][i - m_warmup] = times[p];
+                    }
+                }
+            }
+        } finally {
+            if (output == null) {
+                FileUtils.deleteQuietly(out);
+                FileUtils.deleteQuietly(gzip);
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Run the slim job once.
+     * 
+     * @param js      the main files
+     * @param libJs   the library files
+     * @param externs the externs files
+     * @param out     the output file
+     * @param gzip    the GZIPed output file
+     * 
+     * @return the time in nanoseconds for each phase or null if there was an error
+     * @exception IOException
+     *                   if there's an error reading or writing the files
+     */
+    private long[] runOnce(List<String> js, List<String> libJs, List<String> externs, File out, File gzip)
+        throws IOException
+    {
+        JSlimEngine engine = m_runner.getEngine();
+        String charset = m_runner.getCharset();
+        long times[] = new long[PHASES.length];
+        
+        long start = System.nanoTime();
+        long time = start;
+        
+        List<JSFile> mains = readFiles(js, false);
+        List<JSFile> libs = readFiles(libJs, true);
+        List<String> externLines = new ArrayList<String>();
+        for (String f : externs) {
+            externLines.addAll(FileUtils.readLines(new File(f), charset));
+        }
+        time = mark(times, READ, time);
+        
+        if (m_runner.isValidating()) {
+            List<JSFile> all = new ArrayList<JSFile>(mains);
+            all.addAll(libs);
+            for (JSFile file : all) {
+                ErrorManager mgr = JSlim.validate(file.getName(), file.getContent(), engine.getFormattingOptions());
+                if (mgr.getErrorCount() != 0) {
+                    mgr.generateReport();
+                    return null;
+                }
+            }
+        }
+        time = mark(times, VALIDATE, time);
+        
+        List<LibraryGraph> graphs = new ArrayList<LibraryGraph>();
+        for (JSFile lib : libs) {
+            LibraryGraph graph = engine.analyzeLibrary(lib);
+            if (graph.hasErrors()) {
+                graph.getErrorManager().generateReport();
+                return null;
+            }
+            graphs.add(graph);
+        }
+        time = mark(times, ANALYZE, time);
+        
+        JSlim slim = m_runner.createSlim();
+        for (String extern : externLines) {
+            slim.addExtern(extern);
+        }
+        
+        StringBuffer mainFiles = new StringBuffer();
+        for (JSFile main : mains) {
+            slim.addSourceFile(main);
+            mainFiles.append(main.getContent() + "\n");
+        }
+        
+        String result = slim.prune(graphs, engine.getCompilationLevel());
+        time = mark(times, PRUNE, time);
+        
+        if (!m_runner.isSeparate()) {
+            result = result + "\n" + mainFiles;
+        }
+        
+        CompilationLevel level = engine.getCompilationLevel();
+        if (level != null) {
+            result = engine.compile(out.getName(), result);
+        }
+        time = mark(times, COMPILE, time);
+        
+        FileUtils.writeStringToFile(out, result, charset);
+        time = mark(times, WRITE, time);
+        
+        if (!m_runner.isSkipGzip()) {
+            JSlim.writeGzip(result, out, charset);
+        }
+        time = mark(times, GZIP, time);
+        
+        times[TOTAL] = time - start;
+        
+        m_funcCount = slim.getTotalFunctionCount();
+        m_removedCount = m_funcCount - slim.getKeptFunctions().length;
+        m_sizeBefore = 0;
+        for (JSFile file : libs) {
+            m_sizeBefore += file.getContent().getBytes(charset).length;
+        }
+        for (JSFile file : mains) {
+            m_sizeBefore += file.getContent().getBytes(charset).length;
+        }
+        m_sizeAfter = out.length();
+        m_gzipSize = m_runner.isSkipGzip() ? 0 : gzip.length();
+        
+        return times;
+    }
+    
+    /**
+     * Record the time for a phase.
+     * 
+     * @param times  the phase times
+     * @param phase  the phase which just finished
+     * @param start  the time the phase started
+     * 
+     * @return the current time which is the start of the next phase
+     */
+    private static long mark(long times[], int phase, long start)
+    {
+        long now = System.nanoTime();
+        times[phase] = now - start;
+        return now;
+    }
+    
+    /**
+     * Read a list of files.
+     * 
+     * @param files  the file names
+     * @param isLib  true if these are library files
+     * 
+     * @return the files
+     * @exception IOException
+     *                   if there's an error reading the files
+     */
+    private List<JSFile> readFiles(List<String> files, boolean isLib)
+        throws IOException
+    {
+        List<JSFile> list = new ArrayList<JSFile>();
+        for (String file : files) {
+            File f = new File(file);
+            list.add(new JSFile(f.getName(), FileUtils.readFileToString(f, m_runner.getCharset()), isLib));
+        }
+        
+        return list;
+    }
+    
+    /**
+     * Get a percentile of the measured times for a phase using the nearest rank.
+     * 
+     * @param phase      the phase
+     * @param percentile the percentile from 1 to 100
+     * 
+     * @return the time in milliseconds
+     */
+    double getPercentile(int phase, int percentile)
+    {
+        long sorted[] = m_times[phase].clone();
+        Arrays.sort(sorted);
+        
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1000000.0;
+    }
+    
+    /**
+     * Print the report to System.out.
+     */
+    void printReport()
+    {
+        System.out.println("Benchmarked " + m_runs + " runs after " + m_warmup + " warm-up runs");
+        System.out.println(String.format(Locale.US, "%-10s %10s %10s %10s", "phase", "p50 ms", "p90 ms", "p99 ms"));
+        
+        for (int p = 0; p < PHASES.length; p++) {
+            System.out.println(String.format(Locale.US, "%-10s %10.3f %10.3f %10.3f", PHASES[p],
+                                             getPercentile(p, 50), getPercentile(p, 90), getPercentile(p, 99)));
+        }
+        
+        System.out.println("Removed " + m_removedCount + " out of " + m_funcCount + " named functions.");
+        System.out.println("Size before: " + m_sizeBefore + " bytes, after: " + m_sizeAfter +
+                           " bytes, gzip: " + m_gzipSize + " bytes");
+    }
+    
+    /**
+     * Write the report to a file.  Files ending in .json are written as JSON and all other
+     * files are written as CSV with one metric and value on each line.
+     * 
+     * @param file   the file to write
+     * 
+     * @exception IOException
+     *                   if there's an error writing the file
+     */
+    void writeReport(File file)
+        throws IOException
+    {
+        if (file.getName().toLowerCase(Locale.US).endsWith(".json")) {
+            FileUtils.writeStringToFile(file, toJSON(), "UTF-8");
+        } else {
+            FileUtils.writeStringToFile(file, toCSV(), "UTF-8");
+        }
+    }
+    
+    /**
+     * Get the report as CSV.
+     * 
+     * @return the CSV report
+     */
+    String toCSV()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("metric,value\n");
+        sb.append("version," + getVersion() + "\n");
+        sb.append("runs," + m_runs + "\n");
+        sb.append("warmup," + m_warmup + "\n");
+        
+        for (int p = 0; p < PHASES.length; p++) {
+            sb.append(String.format(Locale.US, "%s.p50_ms,%.3f\n", PHASES[p], getPercentile(p, 50)));
+            sb.append(String.format(Locale.US, "%s.p90_ms,%.3f\n", PHASES[p], getPercentile(p, 90)));
+            sb.append(String.format(Locale.US, "%s.p99_ms,%.3f\n", PHASES[p], getPercentile(p, 99)));
+        }
+        
+        sb.append("functions.total," + m_funcCount + "\n");
+        sb.append("functions.removed," + m_removedCount + "\n");
+        sb.append("bytes.before," + m_sizeBefore + "\n");
+        sb.append("bytes.after," + m_sizeAfter + "\n");
+        sb.append("bytes.gzip," + m_gzipSize + "\n");
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Get the report as JSON.
+     * 
+     * @return the JSON report
+     */
+    String toJSON()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("{\n");
+        sb.append("  \"version\": \"" + getVersion() + "\",\n");
+        sb.append("  \"runs\": " + m_runs + ",\n");
+        sb.append("  \"warmup\": " + m_warmup + ",\n");
+        sb.append("  \"phases\": {\n");
+        
+        for (int p = 0; p < PHASES.length; p++) {
+            sb.append(String.format(Locale.US, "    \"%s\": {\"p50_ms\": %.3f, \"p90_ms\": %.3f, \"p99_ms\": %.3f}",
+                                    PHASES[p], getPercentile(p, 50), getPercentile(p, 90), getPercentile(p, 99)));
+            sb.append(p < PHASES.length - 1 ? ",\n" : "\n");
+        }
+        
+        sb.append("  },\n");
+        sb.append("  \"functions\": {\"total\": " + m_funcCount + ", \"removed\": " + m_removedCount + "},\n");
+        sb.append("  \"bytes\": {\"before\": " + m_sizeBefore + ", \"after\": " + m_sizeAfter +
+                  ", \"gzip\": " + m_gzipSize + "}\n");
+        sb.append("}\n");
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Get the version of JSlim from the JAR manifest.
+     * 
+     * @return the version or "unknown" when we aren't running from the JAR
+     */
+    private static String getVersion()
+    {
+        String version = JSlim.class.getPackage().getImplementationVersion();
+        return version == null ? "unknown" : version;
+    }
+}
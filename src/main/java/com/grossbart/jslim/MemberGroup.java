@@ -0,0 +1,266 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.Token;
+
+/**
+ * <p>
+ * A MemberGroup is an object literal passed to an extend-style call.  Libraries add
+ * most of their methods this way:
+ * </p>
+ *
+ * <pre>
+ * jQuery.fn.extend({ ... });
+ * _.extend(Model.prototype, { ... });
+ * var View = Backbone.View.extend({ ... });
+ * $.widget("ui.dialog", { ... });
+ * </pre>
+ *
+ * <p>
+ * Each group has an owner, which is the name code uses to get to the members.  That's the
+ * name of the object being extended, the variable the new class is assigned to, or the
+ * name of the widget.  If nothing outside the group mentions the owner then none of the
+ * members can be called, even if another group has members with the same names.
+ * </p>
+ */
+final class MemberGroup
+{
+    private String m_owner;
+    private Node m_site;
+    private List<Node> m_members = new ArrayList<Node>();
+    private Set<String> m_names = new HashSet<String>();
+    
+    private MemberGroup(String owner, Node site)
+    {
+        m_owner = owner;
+        m_site = site;
+    }
+    
+    /**
+     * Get the name code uses to get to the members of this group.
+     * 
+     * @return the owner name
+     */
+    String getOwner()
+    {
+        return m_owner;
+    }
+    
+    /**
+     * Get the node which declares this group.  This is the extend call or the assignment
+     * or variable the call is part of.  Names under this node don't count as uses of the
+     * owner.
+     * 
+     * @return the declaring node
+     */
+    Node getSite()
+    {
+        return m_site;
+    }
+    
+    /**
+     * Get the member functions of this group.
+     * 
+     * @return the FUNCTION nodes of the members
+     */
+    List<Node> getMembers()
+    {
+        return m_members;
+    }
+    
+    /**
+     * Get all of the names used in the declaration of this group, including the ones in
+     * the member functions.
+     * 
+     * @return the names
+     */
+    Set<String> getNames()
+    {
+        return m_names;
+    }
+    
+    /**
+     * Find all of the member groups under the specified node.
+     * 
+     * @param node   the node to search
+     * @param groups the list to add the groups to
+     */
+    static void findGroups(Node node, List<MemberGroup> groups)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if (n.getType() == Token.CALL) {
+                MemberGroup group = createGroup(n);
+                if (group != null) {
+                    groups.add(group);
+                }
+            }
+            
+            findGroups(n, groups);
+        }
+    }
+    
+    /**
+     * Create the member group for the specified call if it's an extend-style call.
+     * 
+     * @param call   the CALL node
+     * 
+     * @return the group or null if this call doesn't declare a group
+     */
+    private static MemberGroup createGroup(Node call)
+    {
+        Node callee = call.getFirstChild();
+        String method = null;
+        if (callee.getType() == Token.NAME) {
+            method = callee.getString();
+        } else if (callee.getType() == Token.GETPROP && callee.getLastChild().getType() == Token.STRING) {
+            method = callee.getLastChild().getString();
+        }
+        
+        Node arg = callee.getNext();
+        if (arg != null && arg.getType() == Token.TRUE) {
+            /*
+             This is a deep extend like $.extend(true, target, { ... })
+             */
+            arg = arg.getNext();
+        }
+        
+        if (arg == null) {
+            return null;
+        }
+        
+        String owner = null;
+        Node site = call;
+        
+        if ("widget".equals(method)) {
+            /*
+             A jQuery UI widget like $.widget("ui.dialog", { ... }) is
+             called as $(elem).dialog().
+             */
+            if (arg.getType() == Token.STRING && arg.getString().indexOf('.') > -1) {
+                owner = arg.getString().substring(arg.getString().lastIndexOf('.') + 1);
+            }
+        } else if ("extend".equals(method)) {
+            Node parent = call.getParent();
+            if (parent.getType() == Token.NAME) {
+                /*
+                 var View = Backbone.View.extend({ ... })
+                 */
+                owner = parent.getString();
+                site = parent;
+            } else if (parent.getType() == Token.ASSIGN && parent.getLastChild() == call) {
+                /*
+                 Backbone.View = Backbone.View.extend({ ... })
+                 */
+                owner = getOwner(parent.getFirstChild());
+                site = parent;
+            } else if (arg.getNext() == null) {
+                /*
+                 jQuery.fn.extend({ ... })
+                 */
+                if (callee.getType() == Token.GETPROP) {
+                    owner = getOwner(callee.getFirstChild());
+                }
+            } else {
+                /*
+                 _.extend(Model.prototype, { ... })
+                 */
+                owner = getOwner(arg);
+                arg = arg.getNext();
+            }
+        }
+        
+        if (owner == null || owner.length() == 0) {
+            return null;
+        }
+        
+        MemberGroup group = new MemberGroup(owner, site);
+        for (; arg != null; arg = arg.getNext()) {
+            if (arg.getType() != Token.OBJECTLIT) {
+                continue;
+            }
+            
+            for (Node key = arg.getFirstChild(); key != null; key = key.getNext()) {
+                if (key.getType() == Token.STRING && key.getFirstChild() != null &&
+                    key.getFirstChild().getType() == Token.FUNCTION) {
+                    group.m_members.add(key.getFirstChild());
+                }
+            }
+        }
+        
+        if (group.m_members.isEmpty()) {
+            return null;
+        }
+        
+        addNames(site, group.m_names, null);
+        return group;
+    }
+    
+    /**
+     * Get the owner name for the object an extend call adds members to.  The owner of
+     * Model.prototype and jQuery.fn is Model and jQuery.
+     * 
+     * @param target the extended object
+     * 
+     * @return the owner name or null if the owner can't be found
+     */
+    private static String getOwner(Node target)
+    {
+        if (target.getType() == Token.NAME) {
+            return target.getString();
+        } else if (target.getType() == Token.GETPROP && target.getLastChild().getType() == Token.STRING) {
+            String name = target.getLastChild().getString();
+            if ("prototype".equals(name) || "fn".equals(name)) {
+                return getOwner(target.getFirstChild());
+            }
+            
+            return name;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Add all of the names and strings under the specified node.  Strings are included
+     * since code can get to a property by its name like obj["name"].
+     * 
+     * @param node   the node to search
+     * @param names  the set to add the names to
+     * @param skip   the nodes to skip along with their children or null to skip nothing
+     */
+    static void addNames(Node node, Set<String> names, Set<Node> skip)
+    {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNext()) {
+            if (skip != null && skip.contains(n)) {
+                continue;
+            }
+            
+            if (n.getType() == Token.NAME || n.getType() == Token.STRING) {
+                names.add(n.getString());
+            }
+            
+            addNames(n, names, skip);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.Iterator;
+
+import com.google.javascript.rhino.Node;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>
+ * SlimEvents sends Java Flight Recorder events for each parse, analysis pass, reachability
+ * round, Closure compile, and output write.  The events show up under JSlim in Java Mission
+ * Control next to the allocation, GC, and lock events from the same recording.
+ * </p>
+ *
+ * <p>
+ * Each begin method returns an event handle which is passed to the matching commit method
+ * when the phase is done.  The handles are null when this JVM doesn't have Flight Recorder
+ * so JSlim still runs on older JVMs.  They are also null until Flight Recorder starts since
+ * registering the event classes takes a few hundred milliseconds, which is a big part of a
+ * small command line run.  The event fields are only filled in when the event is being
+ * recorded and an event which isn't recorded costs about as much as an empty method call.
+ * </p>
+ *
+ * <p>
+ * The event fields are named with the Name annotation since the names of the Java fields
+ * would otherwise be the field names in the recording.
+ * </p>
+ */
+final class SlimEvents
+{
+    private static final boolean AVAILABLE = isAvailable();
+    
+    private SlimEvents()
+    {
+        /*
+         This class only has static methods.
+         */
+    }
+    
+    /**
+     * Determine if this JVM has Flight Recorder.
+     * 
+     * @return true if it does and false otherwise
+     */
+    private static boolean isAvailable()
+    {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Determine if Flight Recorder is running in this JVM.  It starts with the
+     * -XX:StartFlightRecording argument, a jcmd JFR.start command, or a new Recording.
+     * 
+     * @return true if it is running and false otherwise
+     */
+    private static boolean isRecording()
+    {
+        return AVAILABLE && FlightRecorder.isInitialized();
+    }
+    
+    /**
+     * Count the nodes in a tree.
+     * 
+     * @param node   the root of the tree
+     * 
+     * @return the node count
+     */
+    private static long countNodes(Node node)
+    {
+        long count = 1;
+        Iterator<Node> nodes = node.children().iterator();
+        while (nodes.hasNext()) {
+            count += countNodes(nodes.next());
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Start a parse event.
+     * 
+     * @return the event handle
+     */
+    static Object beginParse()
+    {
+        return isRecording() ? ParseEvent.create() : null;
+    }
+    
+    /**
+     * Commit a parse event.
+     * 
+     * @param event  the handle from {@link #beginParse()}
+     * @param name   the name of the parsed file
+     * @param code   the parsed code
+     * @param root   the root of the tree or null if there were errors parsing the file
+     */
+    static void commitParse(Object event, String name, String code, Node root)
+    {
+        if (event != null) {
+            ParseEvent.commit(event, name, code, root);
+        }
+    }
+    
+    /**
+     * Start an analysis event.
+     * 
+     * @return the event handle
+     */
+    static Object beginAnalysis()
+    {
+        return isRecording() ? AnalysisEvent.create() : null;
+    }
+    
+    /**
+     * Commit an analysis event.
+     * 
+     * @param event      the handle from {@link #beginAnalysis()}
+     * @param file       the analyzed file
+     * @param nodeVisits the number of nodes the analysis looked at
+     * @param callSites  the number of call sites the analysis found
+     * @param funcs      the number of interesting functions the analysis found
+     */
+    static void commitAnalysis(Object event, JSFile file, long nodeVisits, long callSites, long funcs)
+    {
+        if (event != null) {
+            AnalysisEvent.commit(event, file, nodeVisits, callSites, funcs);
+        }
+    }
+    
+    /**
+     * Start a reachability event.
+     * 
+     * @return the event handle
+     */
+    static Object beginReachability()
+    {
+        return isRecording() ? ReachabilityEvent.create() : null;
+    }
+    
+    /**
+     * Commit a reachability event.
+     * 
+     * @param event      the handle from {@link #beginReachability()}
+     * @param round      the round of this prune operation starting at 1
+     * @param calls      the number of calls which were followed
+     * @param funcs      the number of library functions before this round
+     * @param removed    the number of library functions this round removed
+     * @param nodeVisits the number of nodes this round looked at
+     */
+    static void commitReachability(Object event, int round, long calls, long funcs, long removed, long nodeVisits)
+    {
+        if (event != null) {
+            ReachabilityEvent.commit(event, round, calls, funcs, removed, nodeVisits);
+        }
+    }
+    
+    /**
+     * Start a compile event.
+     * 
+     * @return the event handle
+     */
+    static Object beginCompile()
+    {
+        return isRecording() ? CompileEvent.create() : null;
+    }
+    
+    /**
+     * Commit a compile event.
+     * 
+     * @param event  the handle from {@link #beginCompile()}
+     * @param name   the name of the compiled file
+     * @param level  the compilation level
+     * @param code   the code before the compile
+     * @param result the code after the compile
+     */
+    static void commitCompile(Object event, String name, Object level, String code, String result)
+    {
+        if (event != null) {
+            CompileEvent.commit(event, name, level, code, result);
+        }
+    }
+    
+    /**
+     * Start a write event.
+     * 
+     * @return the event handle
+     */
+    static Object beginWrite()
+    {
+        return isRecording() ? WriteEvent.create() : null;
+    }
+    
+    /**
+     * Commit a write event.
+     * 
+     * @param event  the handle from {@link #beginWrite()}
+     * @param name   the name of the written file
+     * @param bytes  the number of bytes before compression
+     * @param gzip   true if the file was GZIPed and false otherwise
+     */
+    static void commitWrite(Object event, String name, long bytes, boolean gzip)
+    {
+        if (event != null) {
+            WriteEvent.commit(event, name, bytes, gzip);
+        }
+    }
+    
+    /**
+     * The event for parsing one file.
+     */
+    @Name("com.grossbart.jslim.Parse")
+    @Label("Parse")
+    @Category("JSlim")
+    @Description("Parsing a JavaScript file into a tree")
+    @StackTrace(false)
+    static class ParseEvent extends Event
+    {
+        @Label("File")
+        @Name("fileName")
+        String m_fileName;
+        
+        @Label("Size")
+        @DataAmount
+        @Name("size")
+        long m_size;
+        
+        @Label("Nodes")
+        @Name("nodeCount")
+        long m_nodeCount;
+        
+        @Label("Errors")
+        @Name("errors")
+        boolean m_errors;
+        
+        static Object create()
+        {
+            ParseEvent event = new ParseEvent();
+            event.begin();
+            return event;
+        }
+        
+        static void commit(Object handle, String name, String code, Node root)
+        {
+            ParseEvent event = (ParseEvent) handle;
+            event.end();
+            if (event.shouldCommit()) {
+                event.m_fileName = name;
+                event.m_size = code.length();
+                event.m_nodeCount = root == null ? 0 : countNodes(root);
+                event.m_errors = root == null;
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * The event for finding the calls and functions in one file.
+     */
+    @Name("com.grossbart.jslim.Analysis")
+    @Label("Analysis")
+    @Category("JSlim")
+    @Description("Finding the calls and functions in a parsed file")
+    @StackTrace(false)
+    static class AnalysisEvent extends Event
+    {
+        @Label("File")
+        @Name("fileName")
+        String m_fileName;
+        
+        @Label("Library")
+        @Name("library")
+        boolean m_library;
+        
+        @Label("Size")
+        @DataAmount
+        @Name("size")
+        long m_size;
+        
+        @Label("Node Visits")
+        @Name("nodeVisits")
+        long m_nodeVisits;
+        
+        @Label("Call Sites")
+        @Name("callSites")
+        long m_callSites;
+        
+        @Label("Functions")
+        @Name("functions")
+        long m_functions;
+        
+        static Object create()
+        {
+            AnalysisEvent event = new AnalysisEvent();
+            event.begin();
+            return event;
+        }
+        
+        static void commit(Object handle, JSFile file, long nodeVisits, long callSites, long funcs)
+        {
+            AnalysisEvent event = (AnalysisEvent) handle;
+            event.end();
+            if (event.shouldCommit()) {
+                event.m_fileName = file.getName();
+                event.m_library = file.isLib();
+                event.m_size = file.getContent().length();
+                event.m_nodeVisits = nodeVisits;
+                event.m_callSites = callSites;
+                event.m_functions = funcs;
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * The event for one round of finding the reachable functions and removing the others.
+     */
+    @Name("com.grossbart.jslim.Reachability")
+    @Label("Reachability Round")
+    @Category("JSlim")
+    @Description("Finding the reachable library functions and removing the others")
+    @StackTrace(false)
+    static class ReachabilityEvent extends Event
+    {
+        @Label("Round")
+        @Name("round")
+        int m_round;
+        
+        @Label("Calls")
+        @Name("calls")
+        long m_calls;
+        
+        @Label("Functions")
+        @Name("functions")
+        long m_functions;
+        
+        @Label("Removed Functions")
+        @Name("removed")
+        long m_removed;
+        
+        @Label("Node Visits")
+        @Name("nodeVisits")
+        long m_nodeVisits;
+        
+        static Object create()
+        {
+            ReachabilityEvent event = new ReachabilityEvent();
+            event.begin();
+            return event;
+        }
+        
+        static void commit(Object handle, int round, long calls, long funcs, long removed, long nodeVisits)
+        {
+            ReachabilityEvent event = (ReachabilityEvent) handle;
+            event.end();
+            if (event.shouldCommit()) {
+                event.m_round = round;
+                event.m_calls = calls;
+                event.m_functions = funcs;
+                event.m_removed = removed;
+                event.m_nodeVisits = nodeVisits;
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * The event for one run of the Closure Compiler.
+     */
+    @Name("com.grossbart.jslim.Compile")
+    @Label("Closure Compile")
+    @Category("JSlim")
+    @Description("Running the slimmed code through the Closure Compiler")
+    @StackTrace(false)
+    static class CompileEvent extends Event
+    {
+        @Label("File")
+        @Name("fileName")
+        String m_fileName;
+        
+        @Label("Compilation Level")
+        @Name("level")
+        String m_level;
+        
+        @Label("Input Size")
+        @DataAmount
+        @Name("inputSize")
+        long m_inputSize;
+        
+        @Label("Output Size")
+        @DataAmount
+        @Name("outputSize")
+        long m_outputSize;
+        
+        static Object create()
+        {
+            CompileEvent event = new CompileEvent();
+            event.begin();
+            return event;
+        }
+        
+        static void commit(Object handle, String name, Object level, String code, String result)
+        {
+            CompileEvent event = (CompileEvent) handle;
+            event.end();
+            if (event.shouldCommit()) {
+                event.m_fileName = name;
+                event.m_level = String.valueOf(level);
+                event.m_inputSize = code.length();
+                event.m_outputSize = result.length();
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * The event for writing one output file.
+     */
+    @Name("com.grossbart.jslim.Write")
+    @Label("Write")
+    @Category("JSlim")
+    @Description("Writing a slimmed file")
+    @StackTrace(false)
+    static class WriteEvent extends Event
+    {
+        @Label("File")
+        @Name("fileName")
+        String m_fileName;
+        
+        @Label("Size")
+        @DataAmount
+        @Name("size")
+        long m_size;
+        
+        @Label("GZIP")
+        @Name("gzip")
+        boolean m_gzip;
+        
+        static Object create()
+        {
+            WriteEvent event = new WriteEvent();
+            event.begin();
+            return event;
+        }
+        
+        static void commit(Object handle, String name, long bytes, boolean gzip)
+        {
+            WriteEvent event = (WriteEvent) handle;
+            event.end();
+            if (event.shouldCommit()) {
+                event.m_fileName = name;
+                event.m_size = bytes;
+                event.m_gzip = gzip;
+                event.commit();
+            }
+        }
+    }
+}
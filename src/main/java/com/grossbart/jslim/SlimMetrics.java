@@ -0,0 +1,689 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * <p>
+ * SlimMetrics collects the time spent in each phase of the slimming process along with
+ * counters for the work the analysis did.  One metrics object can be shared by every
+ * compiler from a {@link JSlimEngine} and the numbers from all of them are added together.
+ * This class is thread-safe.
+ * </p>
+ * 
+ * <p>
+ * Times are measured as wall time and CPU time of the thread running the phase.  CPU time
+ * is zero if the JVM can't measure it.  The Closure Compiler does most of its work on a
+ * thread of its own so the CPU time of the compile and toSource phases is much lower than
+ * the wall time.
+ * </p>
+ * 
+ * <p>
+ * Metrics created with memory tracking also measure the bytes allocated by the thread
+ * running each phase and the peak heap usage during each phase.  The allocated bytes come
+ * from the JVM's thread allocation counter and miss the work the Closure Compiler does on
+ * its own thread.  The peak heap is for the whole JVM so it is most useful when one slim
+ * job runs at a time.
+ * </p>
+ */
+public class SlimMetrics
+{
+    /**
+     * The phases of the slimming process.
+     */
+    public static enum Phase
+    {
+        /**
+         * Reading the input files
+         */
+        READ("read"),
+        
+        /**
+         * Validating the input files
+         */
+        VALIDATE("validate"),
+        
+        /**
+         * Parsing the files into a tree
+         */
+        PARSE("parse"),
+        
+        /**
+         * Finding the calls and functions in the tree
+         */
+        PROCESS("process"),
+        
+        /**
+         * Finding the functions to keep and removing the others
+         */
+        PRUNE("prune"),
+        
+        /**
+         * Generating the code for the pruned tree
+         */
+        TO_SOURCE("toSource"),
+        
+        /**
+         * Running the Closure Compiler
+         */
+        COMPILE("compile"),
+        
+        /**
+         * Writing the output file
+         */
+        WRITE("write"),
+        
+        /**
+         * Writing the GZIPed output file
+         */
+        GZIP("gzip");
+        
+        private String m_name;
+        
+        private Phase(String name)
+        {
+            m_name = name;
+        }
+        
+        /**
+         * Get the name of this phase in the metrics report.
+         * 
+         * @return the name
+         */
+        public String getName()
+        {
+            return m_name;
+        }
+    }
+    
+    /**
+     * A Timer measures one run of a phase.  Timers must be stopped on the same thread
+     * which started them.
+     */
+    public final class Timer
+    {
+        private Phase m_phase;
+        private long m_wallStart;
+        private long m_cpuStart;
+        private long m_allocStart;
+        private long m_heapStart;
+        
+        private Timer(Phase phase)
+        {
+            m_phase = phase;
+            
+            if (m_trackMemory) {
+                resetPeakHeap();
+                m_heapStart = getUsedHeap();
+                m_allocStart = getAllocatedBytes();
+            }
+            
+            m_cpuStart = getCpuTime();
+            m_wallStart = System.nanoTime();
+        }
+        
+        /**
+         * Stop this timer and add the time to the metrics.
+         */
+        public void stop()
+        {
+            long wall = System.nanoTime() - m_wallStart;
+            long cpu = getCpuTime() - m_cpuStart;
+            
+            int i = m_phase.ordinal();
+            m_wall[i].addAndGet(wall);
+            m_cpu[i].addAndGet(cpu);
+            m_runs[i].incrementAndGet();
+            
+            if (m_trackMemory) {
+                m_allocated[i].addAndGet(getAllocatedBytes() - m_allocStart);
+                
+                long peak = Math.max(m_heapStart, Math.max(getUsedHeap(), getPeakHeap()));
+                setMax(m_peakHeap[i], peak);
+            }
+        }
+    }
+    
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final List<MemoryPoolMXBean> HEAP_POOLS = getHeapPools();
+    
+    private boolean m_trackMemory;
+    
+    private AtomicLong m_wall[] = createCounters(Phase.values().length);
+    private AtomicLong m_cpu[] = createCounters(Phase.values().length);
+    private AtomicLong m_runs[] = createCounters(Phase.values().length);
+    private AtomicLong m_allocated[] = createCounters(Phase.values().length);
+    private AtomicLong m_peakHeap[] = createCounters(Phase.values().length);
+    
+    private AtomicLong m_nodeVisits = new AtomicLong();
+    private AtomicLong m_callSites = new AtomicLong();
+    private AtomicLong m_symbols = new AtomicLong();
+    private AtomicLong m_lookups = new AtomicLong();
+    private AtomicLong m_funcs = new AtomicLong();
+    private AtomicLong m_removedFuncs = new AtomicLong();
+    private AtomicLong m_bytesIn = new AtomicLong();
+    private AtomicLong m_bytesOut = new AtomicLong();
+    
+    /**
+     * Create new metrics without memory tracking.
+     */
+    public SlimMetrics()
+    {
+        this(false);
+    }
+    
+    /**
+     * Create new metrics.
+     * 
+     * @param trackMemory
+     *               true if these metrics should measure the allocated bytes and peak heap
+     *               of each phase and false otherwise
+     */
+    public SlimMetrics(boolean trackMemory)
+    {
+        m_trackMemory = trackMemory;
+    }
+    
+    private static AtomicLong[] createCounters(int count)
+    {
+        AtomicLong counters[] = new AtomicLong[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new AtomicLong();
+        }
+        
+        return counters;
+    }
+    
+    /**
+     * Get the CPU time of the current thread.
+     * 
+     * @return the CPU time in nanoseconds or zero if the JVM can't measure it
+     */
+    private static long getCpuTime()
+    {
+        if (THREADS.isCurrentThreadCpuTimeSupported()) {
+            return THREADS.getCurrentThreadCpuTime();
+        } else {
+            return 0;
+        }
+    }
+    
+    /**
+     * Get the memory pools which hold the heap.
+     * 
+     * @return the heap pools
+     */
+    private static List<MemoryPoolMXBean> getHeapPools()
+    {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        
+        return pools;
+    }
+    
+    /**
+     * Get the number of bytes the current thread has allocated.
+     * 
+     * @return the allocated bytes or zero if the JVM can't measure it
+     */
+    private static long getAllocatedBytes()
+    {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Get the heap memory in use right now.
+     * 
+     * @return the used heap in bytes
+     */
+    private static long getUsedHeap()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+    
+    /**
+     * Get the peak heap usage since the last call to {@link #resetPeakHeap()}.  This adds
+     * the peak of each pool together so it can be a little higher than the real peak.
+     * 
+     * @return the peak heap in bytes
+     */
+    private static long getPeakHeap()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : HEAP_POOLS) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        
+        return peak;
+    }
+    
+    /**
+     * Start measuring a new peak heap usage.
+     */
+    private static void resetPeakHeap()
+    {
+        for (MemoryPoolMXBean pool : HEAP_POOLS) {
+            pool.resetPeakUsage();
+        }
+    }
+    
+    /**
+     * Raise a counter to the specified value if it is lower.
+     * 
+     * @param counter the counter
+     * @param value   the new value
+     */
+    private static void setMax(AtomicLong counter, long value)
+    {
+        long current = counter.get();
+        while (value > current && !counter.compareAndSet(current, value)) {
+            current = counter.get();
+        }
+    }
+    
+    /**
+     * Determine if these metrics measure the allocated bytes and peak heap of each phase.
+     * 
+     * @return true if they do and false otherwise
+     */
+    public boolean isTrackingMemory()
+    {
+        return m_trackMemory;
+    }
+    
+    /**
+     * Start timing a phase.
+     * 
+     * @param phase  the phase to time
+     * 
+     * @return the timer to stop when the phase is done
+     */
+    public Timer start(Phase phase)
+    {
+        return new Timer(phase);
+    }
+    
+    /**
+     * Add the number of tree nodes the analysis looked at.
+     * 
+     * @param count  the number of nodes
+     */
+    void addNodeVisits(long count)
+    {
+        m_nodeVisits.addAndGet(count);
+    }
+    
+    /**
+     * Add the number of call sites the analysis found.
+     * 
+     * @param count  the number of call sites
+     */
+    void addCallSites(long count)
+    {
+        m_callSites.addAndGet(count);
+    }
+    
+    /**
+     * Add the number of distinct called names in a prune operation.
+     * 
+     * @param count  the number of names
+     */
+    void addSymbols(long count)
+    {
+        m_symbols.addAndGet(count);
+    }
+    
+    /**
+     * Add the number of lookups for calls and functions by name.
+     * 
+     * @param count  the number of lookups
+     */
+    void addLookups(long count)
+    {
+        m_lookups.addAndGet(count);
+    }
+    
+    /**
+     * Add the results of a prune operation.
+     * 
+     * @param funcs   the number of named functions in the libraries
+     * @param removed the number of functions which were removed
+     */
+    void addFunctions(long funcs, long removed)
+    {
+        m_funcs.addAndGet(funcs);
+        m_removedFuncs.addAndGet(removed);
+    }
+    
+    /**
+     * Add the size of the input files.
+     * 
+     * @param bytes  the number of bytes read
+     */
+    void addBytesIn(long bytes)
+    {
+        m_bytesIn.addAndGet(bytes);
+    }
+    
+    /**
+     * Add the size of the output files.
+     * 
+     * @param bytes  the number of bytes written
+     */
+    void addBytesOut(long bytes)
+    {
+        m_bytesOut.addAndGet(bytes);
+    }
+    
+    /**
+     * Get the total wall time of a phase.
+     * 
+     * @param phase  the phase
+     * 
+     * @return the time in nanoseconds
+     */
+    public long getWallTime(Phase phase)
+    {
+        return m_wall[phase.ordinal()].get();
+    }
+    
+    /**
+     * Get the total CPU time of a phase.
+     * 
+     * @param phase  the phase
+     * 
+     * @return the time in nanoseconds
+     */
+    public long getCpuTime(Phase phase)
+    {
+        return m_cpu[phase.ordinal()].get();
+    }
+    
+    /**
+     * Get the number of times a phase ran.
+     * 
+     * @param phase  the phase
+     * 
+     * @return the run count
+     */
+    public long getRunCount(Phase phase)
+    {
+        return m_runs[phase.ordinal()].get();
+    }
+    
+    /**
+     * Get the number of bytes the thread running a phase allocated.
+     * 
+     * @param phase  the phase
+     * 
+     * @return the allocated bytes or zero if these metrics don't track memory
+     */
+    public long getAllocatedBytes(Phase phase)
+    {
+        return m_allocated[phase.ordinal()].get();
+    }
+    
+    /**
+     * Get the highest heap usage during any run of a phase.
+     * 
+     * @param phase  the phase
+     * 
+     * @return the peak heap in bytes or zero if these metrics don't track memory
+     */
+    public long getPeakHeap(Phase phase)
+    {
+        return m_peakHeap[phase.ordinal()].get();
+    }
+    
+    /**
+     * Get the highest heap usage during any phase.
+     * 
+     * @return the peak heap in bytes or zero if these metrics don't track memory
+     */
+    public long getOverallPeakHeap()
+    {
+        long peak = 0;
+        for (Phase phase : Phase.values()) {
+            peak = Math.max(peak, getPeakHeap(phase));
+        }
+        
+        return peak;
+    }
+    
+    /**
+     * Get the number of tree nodes the analysis looked at.
+     * 
+     * @return the node visits
+     */
+    public long getNodeVisits()
+    {
+        return m_nodeVisits.get();
+    }
+    
+    /**
+     * Get the number of calls and new expressions the analysis found.
+     * 
+     * @return the call site count
+     */
+    public long getCallSites()
+    {
+        return m_callSites.get();
+    }
+    
+    /**
+     * Get the number of distinct called names in the prune operations.
+     * 
+     * @return the symbol count
+     */
+    public long getSymbols()
+    {
+        return m_symbols.get();
+    }
+    
+    /**
+     * Get the number of times a call or function was looked up by name.
+     * 
+     * @return the lookup count
+     */
+    public long getLookups()
+    {
+        return m_lookups.get();
+    }
+    
+    /**
+     * Get the number of named functions in the library files.
+     * 
+     * @return the function count
+     */
+    public long getFunctionCount()
+    {
+        return m_funcs.get();
+    }
+    
+    /**
+     * Get the number of functions the prune operations removed.
+     * 
+     * @return the removed function count
+     */
+    public long getRemovedFunctionCount()
+    {
+        return m_removedFuncs.get();
+    }
+    
+    /**
+     * Get the size of the input files.
+     * 
+     * @return the size in bytes
+     */
+    public long getBytesIn()
+    {
+        return m_bytesIn.get();
+    }
+    
+    /**
+     * Get the size of the output files.
+     * 
+     * @return the size in bytes
+     */
+    public long getBytesOut()
+    {
+        return m_bytesOut.get();
+    }
+    
+    /**
+     * Get the number of bytes saved by slimming and compiling the input files.
+     * 
+     * @return the saved bytes
+     */
+    public long getBytesSaved()
+    {
+        return getBytesIn() - getBytesOut();
+    }
+    
+    /**
+     * Write these metrics to a file.  Files ending in .csv are written as CSV with one
+     * metric and value on each line and all other files are written as JSON.
+     * 
+     * @param file   the file to write
+     * 
+     * @exception IOException
+     *                   if there's an error writing the file
+     */
+    public void write(File file)
+        throws IOException
+    {
+        if (file.getName().toLowerCase(Locale.US).endsWith(".csv")) {
+            FileUtils.writeStringToFile(file, toCSV(), "UTF-8");
+        } else {
+            FileUtils.writeStringToFile(file, toJSON(), "UTF-8");
+        }
+    }
+    
+    /**
+     * Get these metrics as CSV.
+     * 
+     * @return the CSV metrics
+     */
+    public String toCSV()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("metric,value\n");
+        
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format(Locale.US, "%s.wall_ms,%.3f\n", phase.getName(), getWallTime(phase) / 1000000.0));
+            sb.append(String.format(Locale.US, "%s.cpu_ms,%.3f\n", phase.getName(), getCpuTime(phase) / 1000000.0));
+            sb.append(phase.getName() + ".runs," + getRunCount(phase) + "\n");
+            
+            if (m_trackMemory) {
+                sb.append(phase.getName() + ".allocated_bytes," + getAllocatedBytes(phase) + "\n");
+                sb.append(phase.getName() + ".peak_heap_bytes," + getPeakHeap(phase) + "\n");
+            }
+        }
+        
+        sb.append("node_visits," + getNodeVisits() + "\n");
+        sb.append("call_sites," + getCallSites() + "\n");
+        sb.append("distinct_symbols," + getSymbols() + "\n");
+        sb.append("lookups," + getLookups() + "\n");
+        sb.append("functions.total," + getFunctionCount() + "\n");
+        sb.append("functions.removed," + getRemovedFunctionCount() + "\n");
+        sb.append("bytes.in," + getBytesIn() + "\n");
+        sb.append("bytes.out," + getBytesOut() + "\n");
+        sb.append("bytes.saved," + getBytesSaved() + "\n");
+        
+        if (m_trackMemory) {
+            sb.append("heap.peak," + getOverallPeakHeap() + "\n");
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Get these metrics as JSON.
+     * 
+     * @return the JSON metrics
+     */
+    public String toJSON()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("{\n");
+        sb.append("  \"phases\": {\n");
+        
+        Phase phases[] = Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            sb.append(String.format(Locale.US, "    \"%s\": {\"wall_ms\": %.3f, \"cpu_ms\": %.3f, \"runs\": %d",
+                                    phases[i].getName(), getWallTime(phases[i]) / 1000000.0,
+                                    getCpuTime(phases[i]) / 1000000.0, getRunCount(phases[i])));
+            
+            if (m_trackMemory) {
+                sb.append(", \"allocated_bytes\": " + getAllocatedBytes(phases[i]) +
+                          ", \"peak_heap_bytes\": " + getPeakHeap(phases[i]));
+            }
+            
+            sb.append(i < phases.length - 1 ? "},\n" : "}\n");
+        }
+        
+        sb.append("  },\n");
+        sb.append("  \"node_visits\": " + getNodeVisits() + ",\n");
+        sb.append("  \"call_sites\": " + getCallSites() + ",\n");
+        sb.append("  \"distinct_symbols\": " + getSymbols() + ",\n");
+        sb.append("  \"lookups\": " + getLookups() + ",\n");
+        sb.append("  \"functions\": {\"total\": " + getFunctionCount() + ", \"removed\": " +
+                  getRemovedFunctionCount() + "},\n");
+        sb.append("  \"bytes\": {\"in\": " + getBytesIn() + ", \"out\": " + getBytesOut() +
+                  ", \"saved\": " + getBytesSaved() + "}");
+        
+        if (m_trackMemory) {
+            sb.append(",\n  \"heap\": {\"peak\": " + getOverallPeakHeap() + "}");
+        }
+        
+        sb.append("\n");
+        sb.append("}\n");
+        
+        return sb.toString();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SlimMetrics: removed " + getRemovedFunctionCount() + " out of " + getFunctionCount() +
+            " named functions and saved " + getBytesSaved() + " bytes";
+    }
+}
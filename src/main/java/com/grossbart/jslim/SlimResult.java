@@ -0,0 +1,102 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+/**
+ * A SlimResult is the outcome of a single prune operation from a {@link JSlimEngine}.  It
+ * never changes once it is created so it is safe to share between threads.
+ */
+public class SlimResult
+{
+    private String m_code;
+    private String m_coldCode;
+    private String m_keptFuncs[];
+    private int m_funcCount;
+    
+    /**
+     * Create a new SlimResult.
+     * 
+     * @param code      the pruned library code
+     * @param coldCode  the cold chunk with the removed functions or null if there isn't one
+     * @param keptFuncs the names of the functions which were kept
+     * @param funcCount the total number of named functions in the library files
+     */
+    SlimResult(String code, String coldCode, String keptFuncs[], int funcCount)
+    {
+        m_code = code;
+        m_coldCode = coldCode;
+        m_keptFuncs = keptFuncs.clone();
+        m_funcCount = funcCount;
+    }
+    
+    /**
+     * Get the pruned library code.
+     * 
+     * @return the code
+     */
+    public String getCode()
+    {
+        return m_code;
+    }
+    
+    /**
+     * Get the cold chunk with the functions the prune replaced with stubs.
+     * 
+     * @return the JSON for the cold chunk or null if the prune didn't create stubs
+     */
+    public String getColdCode()
+    {
+        return m_coldCode;
+    }
+    
+    /**
+     * Get the names of all the functions which were kept after the prune operation.
+     * 
+     * @return a copy of the kept function names
+     */
+    public String[] getKeptFunctions()
+    {
+        return m_keptFuncs.clone();
+    }
+    
+    /**
+     * Get the total number of named or "interesting" functions in the library files.
+     * 
+     * @return the total number of functions
+     */
+    public int getTotalFunctionCount()
+    {
+        return m_funcCount;
+    }
+    
+    /**
+     * Get the number of named functions which were removed.
+     * 
+     * @return the number of removed functions
+     */
+    public int getRemovedFunctionCount()
+    {
+        return m_funcCount - m_keptFuncs.length;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SlimResult: removed " + getRemovedFunctionCount() + " out of " + m_funcCount + " named functions";
+    }
+}
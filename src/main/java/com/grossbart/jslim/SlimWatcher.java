@@ -0,0 +1,321 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * <p>
+ * The SlimWatcher keeps running after the first slim and slims the files again every time
+ * they change.
+ * </p>
+ *
+ * <p>
+ * The watcher keeps the analysis of every file between runs.  When a main file changes we
+ * only parse that file again and replace the calls it made with the new ones.  When a
+ * library file changes we only analyze that library again.  The output is only written when
+ * the pruned library code or the main source changes.
+ * </p>
+ */
+class SlimWatcher
+{
+    /**
+     * Editors often save a file in more than one step so we wait this long for more
+     * changes before we slim the files again.
+     */
+    private static final long SETTLE_MILLIS = 50;
+    
+    private JSlimRunner m_runner;
+    private String m_output;
+    
+    private List<File> m_externs = new ArrayList<File>();
+    private Map<File, List<Call>> m_mainCalls = new LinkedHashMap<File, List<Call>>();
+    private Map<File, LibraryGraph> m_libs = new LinkedHashMap<File, LibraryGraph>();
+    private Map<File, String> m_contents = new HashMap<File, String>();
+    
+    private Map<WatchKey, Path> m_dirs = new HashMap<WatchKey, Path>();
+    
+    private String m_lastPruned;
+    
+    /**
+     * Create a new SlimWatcher.
+     * 
+     * @param runner  the runner with the options for this slim
+     * @param js      the main files
+     * @param libJs   the library files
+     * @param externs the externs files
+     * @param output  the output file or null to write to stdout
+     */
+    SlimWatcher(JSlimRunner runner, List<String> js, List<String> libJs, List<String> externs, String output)
+    {
+        m_runner = runner;
+        m_output = output;
+        
+        for (String f : js) {
+            m_mainCalls.put(toFile(f), null);
+        }
+        
+        for (String f : libJs) {
+            m_libs.put(toFile(f), null);
+        }
+        
+        for (String f : externs) {
+            m_externs.add(toFile(f));
+        }
+    }
+    
+    /**
+     * Get the normalized absolute file for a file name so it matches the paths from
+     * the watch events.
+     * 
+     * @param name   the file name
+     * 
+     * @return the file
+     */
+    private static File toFile(String name)
+    {
+        return new File(name).getAbsoluteFile().toPath().normalize().toFile();
+    }
+    
+    /**
+     * Slim the files and then watch them for changes.  This method only returns if the
+     * thread is interrupted.
+     * 
+     * @param libs   the analyzed library files in the same order as the library file names
+     * 
+     * @exception IOException
+     *                   if there's an error reading or writing the files
+     * @exception InterruptedException
+     *                   if the thread is interrupted while waiting for changes
+     */
+    void watch(List<LibraryGraph> libs)
+        throws IOException, InterruptedException
+    {
+        int i = 0;
+        for (File f : m_libs.keySet()) {
+            m_libs.put(f, libs.get(i++));
+            m_contents.put(f, FileUtils.readFileToString(f, m_runner.getCharset()));
+        }
+        
+        for (File f : m_externs) {
+            m_contents.put(f, FileUtils.readFileToString(f, m_runner.getCharset()));
+        }
+        
+        for (File f : m_mainCalls.keySet()) {
+            /*
+             A main file which isn't valid JavaScript yet is still watched
+             and we slim as soon as it's fixed.  The errors have already
+             been reported.
+             */
+            String contents = m_runner.readFile(f);
+            m_contents.put(f, contents);
+            if (contents != null) {
+                m_mainCalls.put(f, m_runner.createSlim().analyzeMain(new JSFile(f.getName(), contents, false)));
+            }
+        }
+        
+        slim(true);
+        
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        try {
+            for (File f : m_contents.keySet()) {
+                Path dir = f.getParentFile().toPath();
+                if (!m_dirs.containsValue(dir)) {
+                    m_dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                            StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                }
+            }
+            
+            m_runner.getLogger().log(Level.INFO, "Watching " + m_contents.size() + " files for changes");
+            
+            while (true) {
+                Set<File> changed = new LinkedHashSet<File>();
+                
+                WatchKey key = watcher.take();
+                while (key != null) {
+                    addChanges(key, changed);
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                
+                update(changed);
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+    
+    /**
+     * Add the watched files from the events of a watch key to the set of changed files.
+     * 
+     * @param key     the watch key
+     * @param changed the set of changed files
+     */
+    private void addChanges(WatchKey key, Set<File> changed)
+    {
+        Path dir = m_dirs.get(key);
+        
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                /*
+                 We lost some events so we have to check every file.
+                 */
+                changed.addAll(m_contents.keySet());
+            } else {
+                File f = dir.resolve((Path) event.context()).toFile();
+                if (m_contents.containsKey(f)) {
+                    changed.add(f);
+                }
+            }
+        }
+        
+        key.reset();
+    }
+    
+    /**
+     * Analyze the changed files again and slim if any of them really changed.
+     * 
+     * @param changed the files with change events
+     * 
+     * @exception IOException
+     *                   if there's an error reading or writing the files
+     */
+    private void update(Set<File> changed)
+        throws IOException
+    {
+        boolean hasChanges = false;
+        boolean mainChanged = false;
+        
+        for (File f : changed) {
+            if (!f.exists()) {
+                /*
+                 Some editors delete the file and then write it again so
+                 we'll see it when it comes back.
+                 */
+                continue;
+            }
+            
+            String contents;
+            if (m_externs.contains(f)) {
+                contents = FileUtils.readFileToString(f, m_runner.getCharset());
+            } else {
+                contents = m_runner.readFile(f);
+                if (contents == null) {
+                    /*
+                     The file isn't valid JavaScript right now so we keep
+                     the last good version.  The errors have already been
+                     reported.
+                     */
+                    continue;
+                }
+            }
+            
+            if (contents.equals(m_contents.get(f))) {
+                continue;
+            }
+            
+            m_runner.getLogger().log(Level.INFO, "File changed: " + f);
+            
+            if (m_libs.containsKey(f)) {
+                LibraryGraph lib = m_runner.getEngine().analyzeLibrary(new JSFile(f.getName(), contents, true));
+                if (lib.hasErrors()) {
+                    lib.getErrorManager().generateReport();
+                    continue;
+                }
+                m_libs.put(f, lib);
+            } else if (m_mainCalls.containsKey(f)) {
+                m_mainCalls.put(f, m_runner.createSlim().analyzeMain(new JSFile(f.getName(), contents, false)));
+                mainChanged = true;
+            }
+            
+            m_contents.put(f, contents);
+            hasChanges = true;
+        }
+        
+        if (hasChanges) {
+            slim(mainChanged && !m_runner.isSeparate());
+        }
+    }
+    
+    /**
+     * Prune the library files with the current analysis and write the output if it changed.
+     * 
+     * @param mainChanged true if the main source in the output changed
+     * 
+     * @exception IOException
+     *                   if there's an error writing the files
+     */
+    private void slim(boolean mainChanged)
+        throws IOException
+    {
+        for (Map.Entry<File, List<Call>> entry : m_mainCalls.entrySet()) {
+            if (entry.getValue() == null) {
+                m_runner.getLogger().log(Level.WARNING, "Waiting for a valid version of " + entry.getKey());
+                return;
+            }
+        }
+        
+        long start = System.currentTimeMillis();
+        
+        JSlim slim = m_runner.createSlim();
+        
+        for (File f : m_externs) {
+            for (String extern : m_contents.get(f).split("\r?\n")) {
+                slim.addExtern(extern);
+            }
+        }
+        
+        StringBuffer mainFiles = new StringBuffer();
+        for (Map.Entry<File, List<Call>> entry : m_mainCalls.entrySet()) {
+            slim.addCalls(entry.getValue());
+            mainFiles.append(m_contents.get(entry.getKey()) + "\n");
+        }
+        
+        SlimResult result = m_runner.getEngine().prune(slim, new ArrayList<LibraryGraph>(m_libs.values()));
+        String pruned = result.getCode();
+        JSlimRunner.printRemoved(slim);
+        
+        if (!mainChanged && pruned.equals(m_lastPruned)) {
+            m_runner.getLogger().log(Level.INFO, "The kept functions didn't change so the output is up to date");
+            return;
+        }
+        
+        m_lastPruned = pruned;
+        if (m_runner.write(pruned, mainFiles.toString(), m_output) && m_runner.writeCold(result.getColdCode())) {
+            m_runner.getLogger().log(Level.INFO, "Slimmed in " + (System.currentTimeMillis() - start) + " ms");
+            m_runner.writeMetrics();
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.javascript.jscomp.CompilationLevel;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This test class covers running many prune operations at the same time with one engine.
+ */
+public class JSlimEngineTest
+{
+    private static final String MAINS[] = {
+        "lib.func1();",
+        "lib.func2();",
+        "lib.func4(); lib.func2();"
+    };
+    
+    private static final String KEPT[][] = {
+        {"func1", "func3"},
+        {"func2"},
+        {"func2", "func4"}
+    };
+    
+    /**
+     * Run many prune operations from many threads against the same analyzed library and
+     * make sure each one keeps the right functions.
+     * 
+     * @exception Exception if there is any error running the prune operations
+     */
+    @Test
+    public void concurrentSlimTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        final JSlimEngine engine = new JSlimEngine.Builder()
+            .setCompilationLevel(CompilationLevel.SIMPLE_OPTIMIZATIONS)
+            .setLibraryCache(new LibraryCache(Long.MAX_VALUE))
+            .build();
+        
+        final List<LibraryGraph> libs = engine.analyzeLibraries(
+            Arrays.asList(new JSFile("enginelib.js", readFile("enginelib.js"), true)));
+        assertFalse(libs.get(0).hasErrors());
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SlimResult>> results = new ArrayList<Future<SlimResult>>();
+            for (int i = 0; i < 200; i++) {
+                final String main = MAINS[i % MAINS.length];
+                results.add(executor.submit(new Callable<SlimResult>() {
+                    @Override
+                    public SlimResult call()
+                    {
+                        return engine.slim(Arrays.asList(new JSFile("main.js", main, false)),
+                                           new ArrayList<String>(), libs);
+                    }
+                }));
+            }
+            
+            for (int i = 0; i < results.size(); i++) {
+                SlimResult result = results.get(i).get();
+                String kept[] = result.getKeptFunctions();
+                Arrays.sort(kept);
+                
+                assertEquals(Arrays.asList(KEPT[i % KEPT.length]), Arrays.asList(kept));
+                assertEquals(4, result.getTotalFunctionCount());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        /*
+         The shared library should be the same after all that pruning.
+         */
+        assertEquals(4, libs.get(0).getFunctionCount());
+        assertEquals(1, engine.getLibraryCache().getLibraryCount());
+    }
+    
+    /**
+     * Slim with metrics and make sure every compiler from the engine adds to them.
+     * 
+     * @exception Exception if there is any error running the prune operations
+     */
+    @Test
+    public void metricsTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        SlimMetrics metrics = new SlimMetrics();
+        JSlimEngine engine = new JSlimEngine.Builder()
+            .setCompilationLevel(CompilationLevel.SIMPLE_OPTIMIZATIONS)
+            .setMetrics(metrics)
+            .build();
+        
+        List<LibraryGraph> libs = engine.analyzeLibraries(
+            Arrays.asList(new JSFile("enginelib.js", readFile("enginelib.js"), true)));
+        
+        for (String main : MAINS) {
+            SlimResult result = engine.slim(Arrays.asList(new JSFile("main.js", main, false)),
+                                            new ArrayList<String>(), libs);
+            engine.compile("main.js", result.getCode());
+        }
+        
+        assertEquals(1 + MAINS.length, metrics.getRunCount(SlimMetrics.Phase.PARSE));
+        assertEquals(1 + MAINS.length, metrics.getRunCount(SlimMetrics.Phase.PROCESS));
+        assertEquals(MAINS.length, metrics.getRunCount(SlimMetrics.Phase.PRUNE));
+        assertEquals(MAINS.length, metrics.getRunCount(SlimMetrics.Phase.TO_SOURCE));
+        assertEquals(MAINS.length, metrics.getRunCount(SlimMetrics.Phase.COMPILE));
+        assertEquals(0, metrics.getRunCount(SlimMetrics.Phase.READ));
+        
+        assertEquals(4 * MAINS.length, metrics.getFunctionCount());
+        assertEquals(2 + 3 + 2, metrics.getRemovedFunctionCount());
+        assertTrue(metrics.getNodeVisits() > 0);
+        assertTrue(metrics.getCallSites() >= 4);
+        assertTrue(metrics.getLookups() > 0);
+        assertTrue(metrics.getSymbols() > 0);
+        assertTrue(metrics.getWallTime(SlimMetrics.Phase.PARSE) > 0);
+        
+        assertTrue(metrics.toJSON().contains("\"removed\": 7"));
+        assertTrue(metrics.toCSV().contains("functions.removed,7\n"));
+        assertFalse(metrics.toJSON().contains("peak_heap_bytes"));
+        
+        /*
+         Metrics with memory tracking also measure the allocations and
+         the peak heap of each phase.
+         */
+        SlimMetrics memory = new SlimMetrics(true);
+        engine = new JSlimEngine.Builder()
+            .setCompilationLevel(null)
+            .setMetrics(memory)
+            .build();
+        
+        libs = engine.analyzeLibraries(Arrays.asList(new JSFile("enginelib.js", readFile("enginelib.js"), true)));
+        engine.slim(Arrays.asList(new JSFile("main.js", MAINS[0], false)), new ArrayList<String>(), libs);
+        
+        assertTrue(memory.getAllocatedBytes(SlimMetrics.Phase.PARSE) > 0);
+        assertTrue(memory.getPeakHeap(SlimMetrics.Phase.PRUNE) > 0);
+        assertTrue(memory.getOverallPeakHeap() >= memory.getPeakHeap(SlimMetrics.Phase.PARSE));
+        assertEquals(0, memory.getAllocatedBytes(SlimMetrics.Phase.COMPILE));
+        assertTrue(memory.toJSON().contains("\"heap\": {\"peak\": " + memory.getOverallPeakHeap() + "}"));
+    }
+    
+    /**
+     * Run prune requests with live stats and read the stats through JMX.
+     * 
+     * @exception Exception if there is any error running the prune operations
+     */
+    @Test
+    public void statsTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        JSlimStats stats = new JSlimStats();
+        JSlimEngine engine = new JSlimEngine.Builder()
+            .setCompilationLevel(null)
+            .setLibraryCache(new LibraryCache(Long.MAX_VALUE))
+            .setStats(stats)
+            .build();
+        
+        JSFile lib = new JSFile("enginelib.js", readFile("enginelib.js"), true);
+        List<LibraryGraph> libs = engine.analyzeLibraries(Arrays.asList(lib, lib));
+        
+        BundleCache cache = new BundleCache(engine, Long.MAX_VALUE);
+        stats.addBundleCache(cache);
+        
+        for (int i = 0; i < 4; i++) {
+            cache.getBundle(Arrays.asList(new JSFile("main.js", MAINS[i % 2], false)),
+                            new ArrayList<String>(), libs.subList(0, 1));
+        }
+        
+        assertEquals(2, stats.getRequestCount());
+        assertEquals(0, stats.getInFlightCount());
+        assertEquals(0, stats.getFailureCount());
+        assertEquals(2, stats.getAnalysisCount());
+        assertEquals(0.5, stats.getLibraryCacheHitRatio(), 0.001);
+        assertEquals(0.5, stats.getBundleCacheHitRatio(), 0.001);
+        assertEquals(1, stats.getLibraryGraphCount());
+        assertEquals(libs.get(0).getEstimatedSize() + cache.getEstimatedSize(), stats.getEstimatedHeapBytes());
+        
+        long histogram[] = stats.getSlimLatencyHistogram();
+        assertEquals(stats.getLatencyBucketBounds().length + 1, histogram.length);
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        assertEquals(2, total);
+        assertTrue(stats.getSlimLatencyP50Millis() <= stats.getSlimLatencyP99Millis());
+        assertTrue(stats.getSlimLatencyP99Millis() <= stats.getSlimLatencyMaxMillis());
+        
+        ObjectName name = stats.register("statsTest");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(2L, server.getAttribute(name, "RequestCount"));
+            assertEquals(1, server.getAttribute(name, "LibraryGraphCount"));
+            
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            assertEquals(0, stats.getRequestCount());
+        } finally {
+            stats.unregister();
+        }
+        
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+    
+    /**
+     * Analyze a slim job without generating any code and make sure the report lists the
+     * kept and removed functions with their sizes.
+     * 
+     * @exception Exception if there is any error analyzing the files
+     */
+    @Test
+    public void analyzeTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        JSlimEngine engine = new JSlimEngine.Builder().build();
+        String lib = readFile("enginelib.js");
+        List<LibraryGraph> libs = engine.analyzeLibraries(Arrays.asList(new JSFile("enginelib.js", lib, true)));
+        
+        JSlim slim = engine.createSlim();
+        slim.addSourceFile(new JSFile("main.js", MAINS[0], false));
+        AnalysisReport report = slim.analyze(libs);
+        
+        assertEquals(2, report.getKept().size());
+        assertEquals("func1", report.getKept().get(0).getName());
+        assertEquals("func3", report.getKept().get(1).getName());
+        assertEquals(2, report.getRemoved().size());
+        assertEquals("func2", report.getRemoved().get(0).getName());
+        assertEquals("enginelib.js", report.getRemoved().get(0).getFile());
+        assertEquals(6, report.getRemoved().get(0).getLine());
+        
+        for (AnalysisReport.Entry entry : report.getRemoved()) {
+            assertTrue(entry.getSize() > "function(){}".length());
+        }
+        
+        assertEquals(lib.length(), report.getLibraryBytes());
+        assertTrue(report.getKeptBytes() + report.getRemovedBytes() < lib.length());
+        assertTrue(report.toJSON().contains("\"removed_count\": 2"));
+        assertTrue(report.toJSON().contains("{\"name\": \"func4\", \"file\": \"enginelib.js\", \"line\": 14"));
+    }
+    
+    /**
+     * Analyze a function in an assignment chain and make sure the report lists it once
+     * with all of its names and only counts its size once.
+     * 
+     * @exception Exception if there is any error analyzing the files
+     */
+    @Test
+    public void analyzeChainTest()
+        throws Exception
+    {
+        JSlimEngine engine = new JSlimEngine.Builder().setLoggingLevel(Level.WARNING).build();
+        String lib = "var A = {}, B = {};\n" +
+            "A.extend = B.copy = function(a) { return a; };\n" +
+            "A.other = function() { return 1; };\n";
+        List<LibraryGraph> libs = engine.analyzeLibraries(Arrays.asList(new JSFile("chain.js", lib, true)));
+        
+        JSlim slim = engine.createSlim();
+        slim.addSourceFile(new JSFile("main.js", "B.copy(1);", false));
+        AnalysisReport report = slim.analyze(libs);
+        
+        assertEquals(1, report.getKept().size());
+        assertEquals("extend|copy", report.getKept().get(0).getName());
+        assertTrue(report.getKept().get(0).getSize() >= "A.extend = B.copy = function(a) { return a; }".length());
+        assertEquals(report.getKept().get(0).getSize(), report.getKeptBytes());
+        assertEquals(1, report.getRemoved().size());
+        assertEquals("other", report.getRemoved().get(0).getName());
+    }
+    
+    /**
+     * Build bundles for pages which call the same functions in different ways and make sure
+     * they share one bundle which is only built once.
+     * 
+     * @exception Exception if there is any error building the bundles
+     */
+    @Test
+    public void bundleCacheTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        final JSlimEngine engine = new JSlimEngine.Builder()
+            .setCompilationLevel(CompilationLevel.SIMPLE_OPTIMIZATIONS)
+            .build();
+        
+        final List<LibraryGraph> libs = engine.analyzeLibraries(
+            Arrays.asList(new JSFile("enginelib.js", readFile("enginelib.js"), true)));
+        final BundleCache cache = new BundleCache(engine, Long.MAX_VALUE);
+        
+        SlimResult first = cache.getBundle(Arrays.asList(new JSFile("page1.js", "lib.func2(); lib.func4();", false)),
+                                           new ArrayList<String>(), libs);
+        SlimResult second = cache.getBundle(Arrays.asList(new JSFile("page2.js", "if (a) { lib.func4(); } lib.func2();", false)),
+                                            new ArrayList<String>(), libs);
+        
+        assertSame(first, second);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        
+        String kept[] = first.getKeptFunctions();
+        Arrays.sort(kept);
+        assertEquals(Arrays.asList(KEPT[2]), Arrays.asList(kept));
+        
+        /*
+         Many threads asking for a new bundle at the same time should only
+         build it once.
+         */
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SlimResult>> results = new ArrayList<Future<SlimResult>>();
+            for (int i = 0; i < 50; i++) {
+                results.add(executor.submit(new Callable<SlimResult>() {
+                    @Override
+                    public SlimResult call()
+                    {
+                        return cache.getBundle(Arrays.asList(new JSFile("main.js", MAINS[0], false)),
+                                               new ArrayList<String>(), libs);
+                    }
+                }));
+            }
+            
+            for (Future<SlimResult> result : results) {
+                assertEquals(2, result.get().getRemovedFunctionCount());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getBundleCount());
+        
+        /*
+         A cache with no room keeps no bundles, but still builds them.
+         */
+        BundleCache small = new BundleCache(engine, 0);
+        assertEquals(2, small.getBundle(Arrays.asList(new JSFile("main.js", MAINS[0], false)),
+                                        new ArrayList<String>(), libs).getRemovedFunctionCount());
+        assertEquals(0, small.getBundleCount());
+        assertEquals(0, small.getEstimatedSize());
+        
+        /*
+         Bundles finished by other threads but not counted yet can't be
+         evicted or the size would go below zero.
+         */
+        final BundleCache tiny = new BundleCache(engine, 1);
+        executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SlimResult>> results = new ArrayList<Future<SlimResult>>();
+            for (int i = 0; i < 50; i++) {
+                final List<String> externs = Arrays.asList("extern" + i);
+                final String main = MAINS[i % MAINS.length];
+                results.add(executor.submit(new Callable<SlimResult>() {
+                    @Override
+                    public SlimResult call()
+                    {
+                        return tiny.getBundle(Arrays.asList(new JSFile("main.js", main, false)), externs, libs);
+                    }
+                }));
+            }
+            
+            for (Future<SlimResult> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        assertEquals(0, tiny.getBundleCount());
+        assertEquals(0, tiny.getEstimatedSize());
+    }
+    
+    /**
+     * Make sure the prune finds the unused member groups when the main files are analyzed
+     * on their own the way the watcher and the bundle cache do it.
+     * 
+     * @exception Exception if there is any error running the prune operations
+     */
+    @Test
+    public void memberGroupTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        JSlimEngine engine = new JSlimEngine.Builder()
+            .setCompilationLevel(null)
+            .build();
+        
+        List<LibraryGraph> libs = engine.analyzeLibraries(
+            Arrays.asList(new JSFile("membergroup.js", readFile("membergroup.js"), true)));
+        List<JSFile> mains = Arrays.asList(
+            new JSFile("main.js", "$('#d').dialog().open(); new Collection().fetch().save();", false));
+        
+        String expected = engine.slim(mains, new ArrayList<String>(), libs).getCode();
+        assertTrue("The tooltip widget is never used", expected.indexOf("tooltip open") == -1);
+        
+        /*
+         The watcher analyzes each main file once and adds the calls to a
+         new compiler every time something changes.
+         */
+        List<Call> calls = engine.createSlim().analyzeMain(mains.get(0));
+        JSlim slim = engine.createSlim();
+        slim.addCalls(calls);
+        assertEquals(expected, engine.prune(slim, libs).getCode());
+        
+        Set<String> names = new HashSet<String>();
+        SortedSet<String> called = engine.findCalls(mains, names);
+        assertEquals(expected, engine.slimCalls(called, names, libs).getCode());
+        
+        BundleCache cache = new BundleCache(engine, Long.MAX_VALUE);
+        assertEquals(expected, cache.getBundle(mains, new ArrayList<String>(), libs).getCode());
+        
+        /*
+         Without the names from the main files we can't tell which groups
+         are unused so we have to keep them all.
+         */
+        assertTrue(engine.slimCalls(called, libs).getCode().indexOf("tooltip open") > -1);
+    }
+    
+    /**
+     * Make sure each engine logs at its own level without changing the level of the
+     * process logger or the other engines.
+     * 
+     * @exception Exception if there is any error running the prune operations
+     */
+    @Test
+    public void loggingLevelTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        JSlimEngine loud = new JSlimEngine.Builder()
+            .setLoggingLevel(Level.INFO)
+            .build();
+        JSlimEngine quiet = new JSlimEngine.Builder()
+            .setLoggingLevel(Level.SEVERE)
+            .build();
+        
+        final List<LogRecord> loudRecords = new ArrayList<LogRecord>();
+        final List<LogRecord> quietRecords = new ArrayList<LogRecord>();
+        loud.getLogger().addHandler(new RecordHandler(loudRecords));
+        quiet.getLogger().addHandler(new RecordHandler(quietRecords));
+        
+        List<LibraryGraph> libs = loud.analyzeLibraries(
+            Arrays.asList(new JSFile("enginelib.js", readFile("enginelib.js"), true)));
+        
+        loud.slim(Arrays.asList(new JSFile("main.js", MAINS[0], false)), new ArrayList<String>(), libs);
+        quiet.slim(Arrays.asList(new JSFile("main.js", MAINS[0], false)), new ArrayList<String>(), libs);
+        
+        assertFalse(loudRecords.isEmpty());
+        assertTrue(quietRecords.isEmpty());
+        assertEquals(Level.WARNING, JSlim.getLogger().getLevel());
+        assertEquals(Level.INFO, loud.getLogger().getLevel());
+    }
+    
+    /**
+     * This handler saves every log record it gets.
+     */
+    private static class RecordHandler extends Handler
+    {
+        private List<LogRecord> m_records;
+        
+        RecordHandler(List<LogRecord> records)
+        {
+            m_records = records;
+        }
+        
+        @Override
+        public void publish(LogRecord record)
+        {
+            m_records.add(record);
+        }
+        
+        @Override
+        public void flush()
+        {
+        }
+        
+        @Override
+        public void close()
+        {
+        }
+    }
+    
+    private String readFile(String name)
+        throws IOException
+    {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(name);
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
@@ -19,6 +19,8 @@ package com.grossbart.jslim;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.javascript.jscomp.CompilationLevel;
 
@@ -298,6 +300,311 @@ public class JSlimTest
         assertEquals("func1", funcs[0]);
     }
     
+    /**
+     * Test that we remove the variables nothing reads unless they might have side effects.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void unusedVarsTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        String out = slim.addLib("vars.js", readFile("vars.js"), CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertEquals(1, slim.getKeptFunctions().length);
+        
+        assertTrue("The helper variable is global", out.indexOf("helper") > -1);
+        assertTrue("The count variable is read by func1", out.indexOf("count") > -1);
+        assertTrue("The config variable is read by func1", out.indexOf("config") > -1);
+        assertTrue("The pending variable has side effects", out.indexOf("pending") > -1);
+        
+        assertTrue("The unused variable should be removed", out.indexOf("unused") == -1);
+        assertTrue("The toString variable should be removed", out.indexOf("toString") == -1);
+        
+        /*
+         The cache variable is only read by func2 so it goes when func2 does.
+         */
+        assertTrue("The cache variable should be removed", out.indexOf("cache") == -1);
+    }
+    
+    /**
+     * Test that we remove the members of extend-style object literals nothing uses even
+     * when other members with the same names are called.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void memberGroupTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "$('#d').dialog().open(); new Collection().fetch().save();", false));
+        slim.addSourceFile(new JSFile("membergroup.js", readFile("membergroup.js"), true));
+        String out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertEquals(3, slim.getKeptFunctions().length);
+        assertTrue("The dialog open member is called", out.indexOf("dialog open") > -1);
+        assertTrue("The tooltip widget is never used", out.indexOf("tooltip open") == -1);
+        
+        /*
+         The model is only mentioned by the collection, but the collection is used.
+         */
+        assertTrue("The model save member is called", out.indexOf("model save") > -1);
+        assertTrue("The collection fetch member is called", out.indexOf("collection fetch") > -1);
+    }
+    
+    /**
+     * Test matching calls to functions by the object they're called on.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void receiverTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "Lists.each([1, 2], function(i) { alert(i); });", false));
+        slim.addSourceFile(new JSFile("receivers.js", readFile("receivers.js"), true));
+        String out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertEquals(1, slim.getKeptFunctions().length);
+        assertTrue("The lists each function is called", out.indexOf("lists each") > -1);
+        assertTrue("The trees each function is never called on Lists", out.indexOf("trees each") == -1);
+        
+        slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "Copies.each({}, function(i) { alert(i); });", false));
+        slim.addSourceFile(new JSFile("receivers.js", readFile("receivers.js"), true));
+        out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertTrue("The trees each function is copied to Copies", out.indexOf("trees each") > -1);
+        
+        slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "copy(Lists, Trees); Lists.each([1, 2], function(i) { alert(i); });", false));
+        slim.addSourceFile(new JSFile("receivers.js", readFile("receivers.js"), true));
+        out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertTrue("The main file might copy Trees into Lists", out.indexOf("trees each") > -1);
+    }
+    
+    /**
+     * Test calls through variables which hold functions from other objects.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void aliasTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "var iterate = Util.each; iterate([1], alert); mapAll([1], alert);", false));
+        slim.addSourceFile(new JSFile("aliases.js", readFile("aliases.js"), true));
+        String out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertTrue("The util each function is called through an alias", out.indexOf("util each") > -1);
+        assertTrue("The util map function is called through an alias chain", out.indexOf("util map") > -1);
+        assertTrue("The util filter alias is never called", out.indexOf("util filter") == -1);
+        assertTrue("The filterAll function is never called", out.indexOf("filterAll") == -1);
+    }
+    
+    /**
+     * Test functions with computed names like jQuery.fn["inner" + name].
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void computedNamesTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "Lib.fn.innerWidth(); Lib.fn.show(); jQuery.fn.outerHeight();", false));
+        slim.addSourceFile(new JSFile("computednames.js", readFile("computednames.js"), true));
+        String out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertTrue("The innerWidth function is called", out.indexOf("inner size") > -1);
+        assertTrue("The show function is called", out.indexOf("toggle visible") > -1);
+        assertTrue("The outerHeight function is called", out.indexOf("outer size") > -1);
+        assertTrue("The width function is never called", out.indexOf("plain size") == -1);
+        assertTrue("The scrollLeft function is never called", out.indexOf("scroll offset") == -1);
+        assertTrue("The margin functions are never called", out.indexOf("margin size") == -1);
+        
+        /*
+         The definition of Lib.each passes the key first, jQuery.each is the
+         same function, and Lib.map passes the value first, so calls by the
+         indexes don't match those functions.  Other.each isn't in the
+         library so its callback might get the index as the name.
+         */
+        slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "Lib.fn.inner0(); jQuery.fn.outer1(); Lib.fn.margin1(); Lib.fn.padding0();", false));
+        slim.addSourceFile(new JSFile("computednames.js", readFile("computednames.js"), true));
+        out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertTrue("Lib.each passes the index first", out.indexOf("inner size") == -1);
+        assertTrue("jQuery.each is Lib.each", out.indexOf("outer size") == -1);
+        assertTrue("Lib.map passes the index second", out.indexOf("margin size") == -1);
+        assertTrue("The order of Other.each is unknown", out.indexOf("padding size") > -1);
+        
+        slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "Lib.fn.marginTop();", false));
+        slim.addSourceFile(new JSFile("computednames.js", readFile("computednames.js"), true));
+        out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertTrue("The marginTop function is called", out.indexOf("margin size") > -1);
+        assertTrue("The innerWidth function is never called", out.indexOf("inner size") == -1);
+    }
+    
+    /**
+     * Test calls through the call, apply, and bind methods of functions.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void indirectCallTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "go();", false));
+        slim.addSourceFile(new JSFile("indirect.js", readFile("indirect.js"), true));
+        String out = slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertTrue("The helper function is called with call", out.indexOf("helper called") > -1);
+        assertTrue("The run function is called with apply", out.indexOf("run called") > -1);
+        assertTrue("The stop function is called with bind", out.indexOf("stop called") > -1);
+        assertTrue("The init function is called with apply on a property chain", out.indexOf("init called") > -1);
+        assertTrue("The setup function is called with call on an index", out.indexOf("setup called") > -1);
+        assertTrue("The teardown function is called with bind on an index", out.indexOf("teardown called") > -1);
+        assertTrue("The unused function is never called", out.indexOf("unused called") == -1);
+    }
+    
+    /**
+     * Test the functions declared inside a module wrapper.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void wrapperTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.addSourceFile(new JSFile("main.js", "Lib.show(Lib.text.trim('a')); Lib.fire('click');", false));
+        slim.addSourceFile(new JSFile("wrapper.js", readFile("wrapper.js"), true));
+        String out = slim.prune(CompilationLevel.WHITESPACE_ONLY);
+        
+        assertTrue("The format function is called", out.indexOf("format called") > -1);
+        assertTrue("The tick function is passed to setTimeout", out.indexOf("tick called") > -1);
+        assertTrue("The strip function is exported as trim", out.indexOf("strip called") > -1);
+        assertTrue("The pad function is kept by the object literal it's in", out.indexOf("pad called") > -1);
+        assertTrue("The onClick function is called through the handlers object", out.indexOf("onClick called") > -1);
+        assertTrue("The handlers object is kept with its reference", out.indexOf("click:onClick") > -1);
+        assertTrue("The unused function is never called", out.indexOf("unused called") == -1);
+    }
+    
+    /**
+     * Test the branches removed by compile-time defines.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void defineTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.addDefine("DEBUG", "false");
+        slim.addDefine("Lib.support.opacity", "true");
+        slim.addDefine("MODE", "'fast'");
+        slim.addSourceFile(new JSFile("main.js", "Lib.show(1); Lib.hide();", false));
+        slim.addSourceFile(new JSFile("defines.js", readFile("defines.js"), true));
+        String out = slim.prune(CompilationLevel.WHITESPACE_ONLY);
+        
+        assertTrue("The log function is called with the DEBUG parameter", out.indexOf("log called") > -1);
+        assertTrue("The modern function is called with opacity", out.indexOf("modern called") > -1);
+        assertTrue("The fast function is called in fast mode", out.indexOf("fast called") > -1);
+        assertTrue("The legacy function is only called without opacity", out.indexOf("legacy called") == -1);
+        assertTrue("The slow function is only called in slow mode", out.indexOf("slow called") == -1);
+        assertTrue("The DEBUG global is folded", out.indexOf("DEBUG&&") == -1);
+    }
+    
+    /**
+     * Test the functions removed and kept with browser coverage.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void coverageTest()
+        throws IOException
+    {
+        String lib = readFile("coverage.js");
+        String json = "[{\"url\": \"http://example.com/js/coverage.js?v=1\", \"ranges\": [" +
+            getRange(lib, "used") + ", " + getRange(lib, "dynamic") + "]}]";
+        
+        JSlim slim = new JSlim();
+        slim.addCoverage(CoverageProfile.parse("coverage.json", json));
+        slim.addSourceFile(new JSFile("main.js", "used(); neverRuns(); window[name]();", false));
+        slim.addSourceFile(new JSFile("coverage.js", lib, true));
+        slim.addSourceFile(new JSFile("other.js", "var Other = {}; Other.dynamic = function() { return 'other dynamic called'; };", true));
+        String out = slim.prune(CompilationLevel.WHITESPACE_ONLY);
+        
+        assertTrue("The used function is called and it ran", out.indexOf("used called") > -1);
+        assertTrue("The dynamic function isn't called but it ran", out.indexOf("dynamic called") > -1);
+        assertTrue("The neverRuns function is called but it never ran", out.indexOf("neverRuns called") == -1);
+        assertTrue("The unused function isn't called", out.indexOf("unused called") == -1);
+        assertTrue("The other dynamic function only has the same name as a hot one", out.indexOf("other dynamic called") == -1);
+    }
+    
+    /**
+     * Get the DevTools coverage range of a function in a sample file.
+     * 
+     * @param lib    the contents of the sample file
+     * @param name   the name of the function
+     * 
+     * @return the range as JSON
+     */
+    private static String getRange(String lib, String name)
+    {
+        int start = lib.indexOf("function " + name);
+        return "{\"start\": " + start + ", \"end\": " + (lib.indexOf('}', start) + 1) + "}";
+    }
+    
+    /**
+     * Test the stubs for removed functions and the cold chunk with the real functions.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void coldChunkTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.setColdUrl("app.cold.json");
+        slim.addSourceFile(new JSFile("main.js", "used();", false));
+        slim.addSourceFile(new JSFile("cold.js", readFile("cold.js"), true));
+        String out = slim.prune(CompilationLevel.WHITESPACE_ONLY);
+        String cold = slim.getColdCode();
+        
+        assertTrue("The used function is kept", out.indexOf("used ran") > -1);
+        assertTrue("The unused function is a stub", out.indexOf("function unused(value)") > -1);
+        assertTrue("The stub loads the cold chunk", out.indexOf("eval(jslimCold.load(\"app.cold.json\",0,\"unused\"))") > -1);
+        assertTrue("The unused function is only in the cold chunk", out.indexOf("unused called") == -1);
+        assertTrue("The cold chunk has the unused function", cold.indexOf("unused called") > -1);
+        assertTrue("The cold chunk doesn't have the used function", cold.indexOf("used ran") == -1);
+    }
+    
+    /**
+     * Test that the cold chunk can't be used with a level which renames local variables.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test(expected = IllegalStateException.class)
+    public void coldChunkLevelTest()
+        throws IOException
+    {
+        JSlim slim = new JSlim();
+        slim.setColdUrl("app.cold.json");
+        slim.addSourceFile(new JSFile("main.js", "used();", false));
+        slim.addSourceFile(new JSFile("cold.js", readFile("cold.js"), true));
+        slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+    }
+    
     /**
      * Test a property assignment chain.
      * 
@@ -430,6 +737,82 @@ public class JSlimTest
         assertEquals("func1", funcs[0]);
     }
     
+    /**
+     * Make sure an analyzed library can be used for more than one prune without
+     * changing the library.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void sharedLibraryTest()
+        throws IOException
+    {
+        JSlim analyzer = new JSlim();
+        List<LibraryGraph> libs = new ArrayList<LibraryGraph>();
+        libs.add(analyzer.analyzeLibrary(new JSFile("sharedlib.js", readFile("sharedlib.js"), true)));
+        
+        JSlim slim1 = new JSlim();
+        slim1.addSourceFile(new JSFile("main1.js", "obj1.func1();", false));
+        String out1 = slim1.prune(libs, CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        JSlim slim2 = new JSlim();
+        slim2.addSourceFile(new JSFile("main2.js", "obj1.func2();", false));
+        String out2 = slim2.prune(libs, CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertEquals(1, slim1.getKeptFunctions().length);
+        assertEquals("func1", slim1.getKeptFunctions()[0]);
+        assertTrue("The func2 function should be removed", out1.indexOf("func2") == -1);
+        
+        assertEquals(1, slim2.getKeptFunctions().length);
+        assertEquals("func2", slim2.getKeptFunctions()[0]);
+        assertTrue("The func1 function should be removed", out2.indexOf("func1") == -1);
+        
+        assertEquals(2, libs.get(0).getFunctionCount());
+    }
+    
+    /**
+     * Test the hits, misses, and evictions of the library cache.
+     * 
+     * @exception IOException if there is any error reading the sample file
+     */
+    @Test
+    public void libraryCacheTest()
+        throws IOException
+    {
+        JSFile shared = new JSFile("sharedlib.js", readFile("sharedlib.js"), true);
+        JSFile basic = new JSFile("basic.js", readFile("basic.js"), true);
+        
+        JSlim analyzer = new JSlim();
+        long max = Math.max(analyzer.analyzeLibrary(shared).getEstimatedSize(), 
+                            analyzer.analyzeLibrary(basic).getEstimatedSize());
+        
+        /*
+         This cache only has room for one of the libraries at a time.
+         */
+        LibraryCache cache = new LibraryCache(max);
+        
+        LibraryGraph lib = cache.get(shared, analyzer);
+        assertTrue("The library should be cached", lib == cache.get(shared, analyzer));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        
+        JSlim slim = new JSlim();
+        slim.setLibraryCache(cache);
+        slim.addSourceFile(new JSFile("main.js", "obj1.func2();", false));
+        slim.addSourceFile(shared);
+        slim.prune(CompilationLevel.SIMPLE_OPTIMIZATIONS);
+        
+        assertEquals(1, slim.getKeptFunctions().length);
+        assertEquals("func2", slim.getKeptFunctions()[0]);
+        assertEquals(2, cache.getHitCount());
+        
+        cache.get(basic, analyzer);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.getLibraryCount());
+        assertTrue("The cache should stay in its budget", cache.getEstimatedSize() <= max);
+    }
+    
     /**
      * Check a file with a parse error.
      * 
@@ -0,0 +1,253 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * <p>
+ * The LibraryGenerator writes synthetic JavaScript libraries of any size for stress
+ * testing.  The libraries use the same kinds of functions JSlim finds in real libraries:
+ * </p>
+ *
+ * <ul>
+ * <li>Object literal methods grouped into modules like <code>lib.m3 = {f12: function...}</code></li>
+ * <li>Named functions like <code>function f12()</code></li>
+ * <li>Alias chains like <code>lib.m3.f12 = lib.m3.f13 = function...</code></li>
+ * </ul>
+ *
+ * <p>
+ * Each function calls a few later functions in the same module and some functions call
+ * back to earlier functions to make cycles.  Calls stay in the module so the main file
+ * decides how much of the library is kept.  The same seed always generates the same
+ * library.
+ * </p>
+ */
+public class LibraryGenerator
+{
+    private Random m_random;
+    
+    private int m_funcCount = 1000;
+    private int m_fanOut = 2;
+    private int m_moduleSize = 50;
+    private int m_aliasChain = 3;
+    private double m_cycleRatio = 0.05;
+    
+    /**
+     * Create a new LibraryGenerator.
+     * 
+     * @param seed   the seed for the random numbers
+     */
+    public LibraryGenerator(long seed)
+    {
+        m_random = new Random(seed);
+    }
+    
+    /**
+     * Set the number of functions in the library.
+     * 
+     * @param count  the function count
+     * 
+     * @return this generator
+     */
+    public LibraryGenerator setFunctionCount(int count)
+    {
+        m_funcCount = count;
+        return this;
+    }
+    
+    /**
+     * Set the number of other functions each function calls.
+     * 
+     * @param fanOut the number of calls in each function
+     * 
+     * @return this generator
+     */
+    public LibraryGenerator setFanOut(int fanOut)
+    {
+        m_fanOut = fanOut;
+        return this;
+    }
+    
+    /**
+     * Set the number of functions in each module.  Each module has one named function, one
+     * alias chain, and one object literal with the rest of the functions.
+     * 
+     * @param size   the module size
+     * 
+     * @return this generator
+     */
+    public LibraryGenerator setModuleSize(int size)
+    {
+        m_moduleSize = size;
+        return this;
+    }
+    
+    /**
+     * Set the number of names in each alias chain.
+     * 
+     * @param length the alias chain length
+     * 
+     * @return this generator
+     */
+    public LibraryGenerator setAliasChain(int length)
+    {
+        m_aliasChain = length;
+        return this;
+    }
+    
+    /**
+     * Set the share of calls which go back to an earlier function and make a cycle.
+     * 
+     * @param ratio  the cycle ratio from 0 to 1
+     * 
+     * @return this generator
+     */
+    public LibraryGenerator setCycleRatio(double ratio)
+    {
+        m_cycleRatio = ratio;
+        return this;
+    }
+    
+    /**
+     * Get the number of functions in the library.
+     * 
+     * @return the function count
+     */
+    public int getFunctionCount()
+    {
+        return m_funcCount;
+    }
+    
+    /**
+     * Generate the library.
+     * 
+     * @return the library code
+     */
+    public String generateLibrary()
+    {
+        StringBuffer sb = new StringBuffer(m_funcCount * 80);
+        sb.append("var lib = {};\n");
+        
+        int func = 0;
+        for (int module = 0; func < m_funcCount; module++) {
+            int start = func;
+            int end = Math.min(m_funcCount, start + Math.max(m_aliasChain + 2, m_moduleSize));
+            
+            /*
+             The named function and the alias chain come first and then
+             the rest of the module is an object literal.
+             */
+            sb.append("function f" + func + "(a) {");
+            appendBody(sb, func, start, end);
+            sb.append("}\n");
+            func++;
+            
+            if (func + m_aliasChain < end && m_aliasChain > 0) {
+                for (int i = 0; i < m_aliasChain; i++) {
+                    sb.append("lib.f" + (func + i) + " = ");
+                }
+                
+                sb.append("function(a) {");
+                appendBody(sb, func + m_aliasChain - 1, start, end);
+                sb.append("};\n");
+                func += m_aliasChain;
+            }
+            
+            sb.append("lib.m" + module + " = {\n");
+            for (; func < end; func++) {
+                sb.append("    f" + func + ": function(a) {");
+                appendBody(sb, func, start, end);
+                sb.append(func < end - 1 ? "},\n" : "}\n");
+            }
+            sb.append("};\n");
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Generate a main file which calls the specified number of functions spread out
+     * through the library.
+     * 
+     * @param calls  the number of calls
+     * 
+     * @return the main code
+     */
+    public String generateMain(int calls)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < calls; i++) {
+            int func = (int) ((long) i * m_funcCount / calls);
+            sb.append("lib.f" + func + "(" + i + ");\n");
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Add the calls for one function.
+     * 
+     * @param sb     the buffer to add the calls to
+     * @param func   the index of the function
+     * @param start  the index of the first function in the module
+     * @param end    the index after the last function in the module
+     */
+    private void appendBody(StringBuffer sb, int func, int start, int end)
+    {
+        for (int i = 0; i < m_fanOut; i++) {
+            int callee = -1;
+            if (func > start && m_random.nextDouble() < m_cycleRatio) {
+                callee = start + m_random.nextInt(func - start);
+            } else if (func + 1 < end) {
+                callee = func + 1 + m_random.nextInt(end - func - 1);
+            }
+            
+            if (callee >= 0) {
+                sb.append(" a = lib.f" + callee + "(a);");
+            }
+        }
+        
+        sb.append(" return a; ");
+    }
+    
+    /**
+     * Write a generated library and main file.  This is handy for trying large libraries
+     * with --bench.
+     * 
+     * @param args   the function count, the library file, and the main file
+     * 
+     * @exception IOException if there is an error writing the files
+     */
+    public static void main(String[] args)
+        throws IOException
+    {
+        if (args.length != 3) {
+            System.out.println("java LibraryGenerator <function count> <library file> <main file>");
+            return;
+        }
+        
+        LibraryGenerator gen = new LibraryGenerator(42).setFunctionCount(Integer.parseInt(args[0]));
+        FileUtils.writeStringToFile(new File(args[1]), gen.generateLibrary(), "UTF-8");
+        FileUtils.writeStringToFile(new File(args[2]), gen.generateMain(Math.max(1, gen.getFunctionCount() / 100)), "UTF-8");
+    }
+}
@@ -0,0 +1,168 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <p>
+ * This test slims generated libraries of growing sizes and fails if the time or memory
+ * grows faster than the size of the library.  It protects the engine from changes which
+ * make it quadratic.
+ * </p>
+ *
+ * <p>
+ * By default the libraries go from 2,000 to 16,000 functions so the test runs quickly.
+ * Set the jslim.stress.max system property to test bigger libraries like this:
+ * </p>
+ *
+ * <pre>
+ * -Djslim.stress.max=200000
+ * </pre>
+ */
+public class ScalingStressTest
+{
+    private List<Object> m_kept = new ArrayList<Object>();
+    
+    private static final int MIN_FUNCS = 2000;
+    
+    /*
+     The biggest library can take this many times longer than linear
+     growth predicts.  Quadratic growth over an 8x size range is 8x too
+     slow so this still catches it while leaving room for noisy machines.
+     */
+    private static final double TOLERANCE = 2.5;
+    
+    /*
+     Time and memory measurements are noisy for small libraries so we
+     add this much slack to the smallest measurement.
+     */
+    private static final long MIN_NANOS = 20 * 1000 * 1000L;
+    private static final long MIN_BYTES = 2 * 1024 * 1024L;
+    
+    /**
+     * Slim libraries of growing sizes and make sure the time and memory grow linearly.
+     * 
+     * @exception Exception if there is any error slimming the libraries
+     */
+    @Test
+    public void scalingTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        int max = Integer.getInteger("jslim.stress.max", MIN_FUNCS * 8);
+        
+        JSlimEngine engine = new JSlimEngine.Builder()
+            .setCompilationLevel(null)
+            .build();
+        
+        /*
+         We run the smallest library a few times first so the JIT compiler
+         is warmed up before we measure anything.
+         */
+        for (int i = 0; i < 3; i++) {
+            measure(engine, MIN_FUNCS);
+        }
+        
+        long base[] = measure(engine, MIN_FUNCS);
+        long baseNanos = Math.max(base[0], MIN_NANOS);
+        long baseBytes = Math.max(base[1], MIN_BYTES);
+        
+        for (int size = MIN_FUNCS * 2; size <= max; size *= 2) {
+            long result[] = measure(engine, size);
+            double growth = (double) size / MIN_FUNCS;
+            
+            String message = size + " functions took " + (result[0] / 1000000) + " ms and " +
+                (result[1] / 1024) + " KB compared to " + (base[0] / 1000000) + " ms and " +
+                (base[1] / 1024) + " KB for " + MIN_FUNCS + " functions";
+            System.out.println(message);
+            
+            assertTrue("Time grew faster than linear: " + message,
+                       result[0] <= baseNanos * growth * TOLERANCE);
+            assertTrue("Memory grew faster than linear: " + message,
+                       result[1] <= baseBytes * growth * TOLERANCE);
+        }
+    }
+    
+    /**
+     * Analyze and slim a generated library.  We take the fastest of a few runs since it
+     * is the least affected by garbage collection and other noise.
+     * 
+     * @param engine the engine to slim with
+     * @param size   the number of functions in the library
+     * 
+     * @return the time in nanoseconds and the memory in bytes of the analyzed library
+     */
+    private long[] measure(JSlimEngine engine, int size)
+    {
+        LibraryGenerator gen = new LibraryGenerator(size).setFunctionCount(size);
+        JSFile lib = new JSFile("lib.js", gen.generateLibrary(), true);
+        JSFile main = new JSFile("main.js", gen.generateMain(size / 100), false);
+        
+        long best = Long.MAX_VALUE;
+        long bytes = 0;
+        
+        for (int i = 0; i < 3; i++) {
+            m_kept.clear();
+            long before = usedMemory();
+            long start = System.nanoTime();
+            
+            LibraryGraph graph = engine.analyzeLibrary(lib);
+            assertFalse(graph.hasErrors());
+            
+            SlimResult result = engine.slim(Arrays.asList(main), new ArrayList<String>(),
+                                            Arrays.asList(graph));
+            
+            best = Math.min(best, System.nanoTime() - start);
+            
+            assertTrue(result.getRemovedFunctionCount() > 0);
+            assertTrue(result.getKeptFunctions().length > 0);
+            
+            /*
+             We hold on to the graph so it counts as used memory.
+             */
+            m_kept.add(graph);
+            bytes = Math.max(bytes, usedMemory() - before);
+        }
+        
+        return new long[] {best, bytes};
+    }
+    
+    /**
+     * Get the used heap memory after a garbage collection.
+     * 
+     * @return the used memory in bytes
+     */
+    private long usedMemory()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,116 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.google.javascript.jscomp.CompilationLevel;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This test records a slim operation with Flight Recorder and checks the JSlim events.
+ */
+public class SlimEventsTest
+{
+    /**
+     * Slim a small library while recording and make sure each phase sent its events.
+     * 
+     * @exception Exception if there is any error slimming or reading the recording
+     */
+    @Test
+    public void recordingTest()
+        throws Exception
+    {
+        JSlim.setLoggingLevel(Level.WARNING);
+        
+        JSlimEngine engine = new JSlimEngine.Builder()
+            .setCompilationLevel(CompilationLevel.WHITESPACE_ONLY)
+            .build();
+        
+        String lib = "var lib = {};\n" +
+            "lib.func1 = function() { return lib.func2(); };\n" +
+            "lib.func2 = function() { return 2; };\n" +
+            "lib.func3 = function() { return 3; };\n";
+        
+        File file = File.createTempFile("jslim", ".jfr");
+        file.deleteOnExit();
+        
+        Recording recording = new Recording();
+        try {
+            recording.enable("com.grossbart.jslim.Parse");
+            recording.enable("com.grossbart.jslim.Analysis");
+            recording.enable("com.grossbart.jslim.Reachability");
+            recording.enable("com.grossbart.jslim.Compile");
+            recording.start();
+            
+            LibraryGraph graph = engine.analyzeLibrary(new JSFile("lib.js", lib, true));
+            SlimResult result = engine.slim(Arrays.asList(new JSFile("main.js", "lib.func1();", false)),
+                                            new ArrayList<String>(), Arrays.asList(graph));
+            engine.compile("out.js", result.getCode());
+            
+            recording.stop();
+            recording.dump(file.toPath());
+        } finally {
+            recording.close();
+        }
+        
+        Map<String, List<RecordedEvent>> events = new HashMap<String, List<RecordedEvent>>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+            String name = event.getEventType().getName();
+            if (!events.containsKey(name)) {
+                events.put(name, new ArrayList<RecordedEvent>());
+            }
+            events.get(name).add(event);
+        }
+        
+        List<RecordedEvent> parses = events.get("com.grossbart.jslim.Parse");
+        assertEquals(2, parses.size());
+        assertEquals("lib.js", parses.get(0).getString("fileName"));
+        assertEquals(lib.length(), parses.get(0).getLong("size"));
+        assertTrue(parses.get(0).getLong("nodeCount") > 10);
+        
+        List<RecordedEvent> analyses = events.get("com.grossbart.jslim.Analysis");
+        assertEquals(2, analyses.size());
+        assertTrue(analyses.get(0).getBoolean("library"));
+        assertEquals(3, analyses.get(0).getLong("functions"));
+        assertEquals(1, analyses.get(1).getLong("callSites"));
+        
+        List<RecordedEvent> rounds = events.get("com.grossbart.jslim.Reachability");
+        assertEquals(2, rounds.size());
+        assertEquals(1, rounds.get(0).getInt("round"));
+        assertEquals(1, rounds.get(0).getLong("removed"));
+        assertEquals(2, rounds.get(1).getInt("round"));
+        
+        List<RecordedEvent> compiles = events.get("com.grossbart.jslim.Compile");
+        assertEquals(1, compiles.size());
+        assertEquals("WHITESPACE_ONLY", compiles.get(0).getString("level"));
+    }
+}
@@ -0,0 +1,134 @@
+/******************************************************************************* 
+ * 
+ * Copyright 2011 Zack Grossbart 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+package com.grossbart.jslim;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.kohsuke.args4j.CmdLineParser;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This test runs the runner with --watch and changes the files it watches.
+ */
+public class SlimWatcherTest
+{
+    private static final long TIMEOUT_MILLIS = 30000;
+    
+    /**
+     * Start watching with a main file which doesn't parse yet, fix it, and then change the
+     * library and make sure the output is slimmed again each time.
+     * 
+     * @exception Exception if there is any error writing the files or watching them
+     */
+    @Test
+    public void watchTest()
+        throws Exception
+    {
+        File dir = Files.createTempDirectory("jslim").toFile();
+        try {
+            File main = new File(dir, "main.js");
+            File lib = new File(dir, "lib.js");
+            File out = new File(dir, "out.js");
+            
+            FileUtils.writeStringToFile(main, "lib.func1(;", "UTF-8");
+            FileUtils.writeStringToFile(lib, "var lib = {};\n" +
+                                        "lib.func1 = function() { return 'func1 called'; };\n" +
+                                        "lib.func2 = function() { return 'func2 called'; };\n", "UTF-8");
+            
+            final JSlimRunner runner = new JSlimRunner();
+            new CmdLineParser(runner).parseArgument(new String[] {
+                "--watch", "--skip_gzip", "--compilation_level", "WHITESPACE_ONLY",
+                "--js", main.getPath(), "--lib_js", lib.getPath(), "--js_output_file", out.getPath()
+            });
+            
+            final Exception errors[] = new Exception[1];
+            Thread thread = new Thread() {
+                @Override
+                public void run()
+                {
+                    try {
+                        runner.prune();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        errors[0] = e;
+                    }
+                }
+            };
+            thread.start();
+            
+            try {
+                /*
+                 The watcher waits for the main file to parse instead of
+                 giving up.
+                 */
+                Thread.sleep(1000);
+                assertTrue("The watcher is still running", thread.isAlive());
+                assertTrue("Nothing is written until the main file parses", !out.exists());
+                
+                FileUtils.writeStringToFile(main, "lib.func1();", "UTF-8");
+                waitFor(out, "func1 called");
+                assertTrue("The func2 function is never called", !read(out).contains("func2 called"));
+                
+                FileUtils.writeStringToFile(lib, "var lib = {};\n" +
+                                            "lib.func1 = function() { return lib.func2(); };\n" +
+                                            "lib.func2 = function() { return 'func2 called'; };\n", "UTF-8");
+                waitFor(out, "func2 called");
+                assertTrue("The new version of func1 is in the output", !read(out).contains("func1 called"));
+            } finally {
+                thread.interrupt();
+                thread.join(TIMEOUT_MILLIS);
+            }
+            
+            assertTrue("The watcher didn't fail: " + errors[0], errors[0] == null);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    /**
+     * Wait for the output file to have the specified text.
+     * 
+     * @param out    the output file
+     * @param text   the text to wait for
+     * 
+     * @exception Exception if there is any error reading the file or we stop waiting
+     */
+    private static void waitFor(File out, String text)
+        throws Exception
+    {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < end) {
+            if (out.exists() && read(out).contains(text)) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        
+        assertTrue("The output has " + text, false);
+    }
+    
+    private static String read(File f)
+        throws Exception
+    {
+        return FileUtils.readFileToString(f, "UTF-8");
+    }
+}
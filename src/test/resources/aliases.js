@@ -0,0 +1,27 @@
+var Util = {
+    each: function(list, func) {
+        for (var i = 0; i < list.length; i++) {
+            func(list[i]);
+        }
+        return "util each";
+    },
+    
+    map: function(list, func) {
+        return "util map";
+    },
+    
+    filter: function(list, func) {
+        return "util filter";
+    }
+};
+
+function mapAll(lists, func) {
+    var m = Util.map;
+    var loop = m;
+    return loop(lists, func);
+}
+
+function filterAll(lists, func) {
+    var m = Util.filter;
+    return lists;
+}
@@ -0,0 +1,7 @@
+function used() {
+    return "used ran";
+}
+
+function unused(value) {
+    return "unused called " + value;
+}
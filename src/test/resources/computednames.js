@@ -0,0 +1,65 @@
+var Lib = { fn: {} };
+var jQuery = { fn: {} };
+
+Lib.each = function(obj, callback) {
+    for (var key in obj) {
+        callback(key, obj[key]);
+    }
+    return obj;
+};
+
+Lib.map = function(list, callback) {
+    var results = [];
+    for (var i = 0; i < list.length; i++) {
+        results.push(callback.call(list, list[i], i));
+    }
+    return results;
+};
+
+jQuery.each = Lib.each;
+
+(function() {
+    Lib.each([ "Height", "Width" ], function(i, name) {
+        var type = name.toLowerCase();
+        
+        Lib.fn[ "inner" + name ] = function() {
+            return "inner size";
+        };
+        
+        Lib.fn[ type ] = function() {
+            return "plain size";
+        };
+    });
+    
+    "show hide".split(" ").forEach(function(name) {
+        Lib.fn[ name ] = function() {
+            return "toggle visible";
+        };
+    });
+    
+    Lib.map([ "Top", "Left" ], function(name, i) {
+        Lib.fn[ "margin" + name ] = function() {
+            return "margin size";
+        };
+    });
+    
+    Other.each([ "Top", "Left" ], function(i, name) {
+        Lib.fn[ "padding" + name ] = function() {
+            return "padding size";
+        };
+    });
+    
+    Lib.each({ scrollLeft: "pageXOffset" }, function(method, prop) {
+        Lib.fn[ method ] = function() {
+            return "scroll offset";
+        };
+    });
+})();
+
+(function() {
+    jQuery.each([ "Height", "Width" ], function(i, name) {
+        jQuery.fn[ "outer" + name ] = function() {
+            return "outer size";
+        };
+    });
+})();
@@ -0,0 +1,15 @@
+function used() {
+    return "used called";
+}
+
+function neverRuns() {
+    return "neverRuns called";
+}
+
+function dynamic() {
+    return "dynamic called";
+}
+
+function unused() {
+    return "unused called";
+}
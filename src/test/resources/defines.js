@@ -0,0 +1,41 @@
+function log(message) {
+    return "log called " + message;
+}
+
+function legacy() {
+    return "legacy called";
+}
+
+function modern() {
+    return "modern called";
+}
+
+function fast() {
+    return "fast called";
+}
+
+function slow() {
+    return "slow called";
+}
+
+var Lib = {
+    support: {},
+    
+    show: function(value, DEBUG) {
+        if (DEBUG) {
+            log(value);
+        }
+        
+        if (!Lib.support.opacity) {
+            legacy();
+        } else {
+            modern();
+        }
+        
+        return MODE === "fast" ? fast() : slow();
+    },
+    
+    hide: function() {
+        return DEBUG && log("hide");
+    }
+};
@@ -0,0 +1,17 @@
+lib = {
+    func1: function() {
+        lib.func3();
+    },
+    
+    func2: function() {
+        alert("I'm func 2");
+    },
+    
+    func3: function() {
+        alert("I'm func 3");
+    },
+    
+    func4: function() {
+        alert("I'm func 4");
+    }
+};
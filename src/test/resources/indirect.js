@@ -0,0 +1,41 @@
+function helper() {
+    return "helper called";
+}
+
+function unused() {
+    return "unused called";
+}
+
+var Obj = {
+    run: function() {
+        return "run called";
+    },
+    
+    stop: function() {
+        return "stop called";
+    }
+};
+
+var Lib = { fn: {} };
+
+Lib.fn.init = function() {
+    return "init called";
+};
+
+Lib.fn.setup = function() {
+    return "setup called";
+};
+
+Lib.fn.teardown = function() {
+    return "teardown called";
+};
+
+function go() {
+    var stop = Obj.stop.bind(Obj);
+    helper.call(this);
+    Obj.run.apply(Obj, []);
+    Lib.fn.init.apply(this, arguments);
+    Lib.fn[ "setup" ].call(this);
+    setTimeout(Lib.fn[ "tear" + "down" ].bind(this), 10);
+    return stop();
+}
@@ -0,0 +1,31 @@
+(function($) {
+    $.widget("ui.dialog", {
+        open: function() {
+            return "dialog open";
+        },
+        
+        close: function() {
+            return "dialog close";
+        }
+    });
+    
+    $.widget("ui.tooltip", {
+        open: function() {
+            return "tooltip open";
+        }
+    });
+    
+    var Model = Backbone.Model.extend({
+        save: function() {
+            return "model save";
+        }
+    });
+    
+    _.extend(Collection.prototype, {
+        model: Model,
+        
+        fetch: function() {
+            return "collection fetch";
+        }
+    });
+})(jQuery);
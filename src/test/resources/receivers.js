@@ -0,0 +1,22 @@
+var Lists = {
+    each: function(list, func) {
+        for (var i = 0; i < list.length; i++) {
+            func(list[i]);
+        }
+        return "lists each";
+    },
+    
+    first: function(list) {
+        return list[0];
+    }
+};
+
+var Trees = {
+    each: function(tree, func) {
+        func(tree.value);
+        return "trees each";
+    }
+};
+
+var Copies = {};
+Copies.each = Trees.each;
@@ -0,0 +1,9 @@
+obj1 = {
+    func1: function() {
+        alert("I'm func 1");
+    },
+    
+    func2: function() {
+        alert("I'm func 2");
+    }
+};
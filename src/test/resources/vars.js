@@ -0,0 +1,22 @@
+var helper = "I'm a global so I'm always kept";
+
+(function() {
+    var unused = "I'm never read",
+        count = 0,
+        cache = {},
+        pending = $.Deferred(),
+        config = { debug: false },
+        toString = Object.prototype.toString;
+    
+    obj1 = {
+        func1: function() {
+            return count + config.debug;
+        },
+        
+        func2: function() {
+            return cache;
+        }
+    };
+    
+    obj1.func1();
+})();
@@ -0,0 +1,50 @@
+(function(window) {
+    function format(value) {
+        return "format called " + value;
+    }
+    
+    function unused() {
+        return "unused called";
+    }
+    
+    function tick() {
+        return "tick called";
+    }
+    
+    function strip(value) {
+        return "strip called " + value;
+    }
+    
+    function pad(value) {
+        return "pad called " + value;
+    }
+    
+    function onClick() {
+        return "onClick called";
+    }
+    
+    var handlers = {
+        click: onClick
+    };
+    
+    function fire(type) {
+        return handlers[type]();
+    }
+    
+    var Lib = {
+        show: function(value) {
+            window.setTimeout(tick, 10);
+            return format(value);
+        },
+        fire: fire
+    };
+    
+    Lib.text = (function() {
+        return {
+            trim: strip,
+            pad: pad
+        };
+    })();
+    
+    window.Lib = Lib;
+})(window);